@@ -0,0 +1,273 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.eXistMessage;
+
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Sender that puts messages into a bounded in-memory queue; a dedicated
+ * publisher thread drains the queue in order and passes the messages to the
+ * wrapped sender. This takes the broker round-trip off the thread that
+ * executes the database transaction.
+ *
+ * @author Dannes Wessels
+ */
+public class AsyncMessageSender implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncMessageSender.class);
+
+    /**
+     * Maximum time to wait for the queue to be drained on close.
+     */
+    private static final long CLOSE_TIMEOUT = 30000;
+
+    /**
+     * Queued message(s) with time of enqueue.
+     */
+    private static class Entry {
+
+        private final List<eXistMessage> messages;
+        private final long enqueueTime;
+
+        Entry(List<eXistMessage> messages) {
+            this.messages = messages;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+
+    private final MessageSender sender;
+    private final Consumer<List<eXistMessage>> failureListener;
+    private final BlockingQueue<Entry> queue;
+    private final PublisherParameters.OverflowPolicy overflowPolicy;
+    private final Thread publisherThread;
+
+    private volatile boolean closed = false;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param sender The sender that actually sends the messages
+     * @param queueSize Capacity of the queue
+     * @param overflowPolicy What to do when the queue is full
+     * @param name Name of the publisher thread
+     * @param failureListener Called with the messages that could not be sent
+     */
+    AsyncMessageSender(MessageSender sender, int queueSize, PublisherParameters.OverflowPolicy overflowPolicy, String name,
+                       Consumer<List<eXistMessage>> failureListener) {
+        this.sender = sender;
+        this.failureListener = failureListener;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.overflowPolicy = overflowPolicy;
+
+        publisherThread = new Thread(this::drain, name);
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+    }
+
+    /**
+     * Put {@link eXistMessage} into the queue.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException The sender is closed, the message was dropped
+     * or the thread was interrupted.
+     */
+    @Override
+    public void sendMessage(eXistMessage em) throws TransportException {
+        enqueue(Collections.singletonList(em));
+    }
+
+    /**
+     * Put batch of {@link eXistMessage}s into the queue, the batch is passed
+     * as a whole to the wrapped sender.
+     *
+     * @param messages The messages that need to be sent
+     * @throws TransportException The sender is closed, the messages were
+     * dropped or the thread was interrupted.
+     */
+    @Override
+    public void sendMessages(List<eXistMessage> messages) throws TransportException {
+        if (!messages.isEmpty()) {
+            enqueue(messages);
+        }
+    }
+
+    private void enqueue(List<eXistMessage> messages) throws TransportException {
+
+        if (closed) {
+            throw new TransportException("Sender is closed.");
+        }
+
+        Entry entry = new Entry(messages);
+
+        if (overflowPolicy == PublisherParameters.OverflowPolicy.DROP) {
+            if (!queue.offer(entry)) {
+                dropped.addAndGet(messages.size());
+                messages.forEach(eXistMessage::releasePayload);
+                throw new TransportException(String.format("Queue is full, %s message(s) dropped. %s",
+                        messages.size(), messages.get(0).getReport()));
+            }
+
+        } else {
+            try {
+                queue.put(entry);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted while waiting for queue.", ex);
+            }
+        }
+
+        enqueued.addAndGet(messages.size());
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Publisher thread: send all queued messages.
+     */
+    private void drain() {
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry entry = queue.poll(1, TimeUnit.SECONDS);
+                if (entry == null) {
+                    continue;
+                }
+
+                try {
+                    if (entry.messages.size() == 1) {
+                        sender.sendMessage(entry.messages.get(0));
+                    } else {
+                        sender.sendMessages(entry.messages);
+                    }
+                    sent.addAndGet(entry.messages.size());
+
+                } catch (TransportException ex) {
+                    failureListener.accept(entry.messages);
+                    entry.messages.forEach(eXistMessage::releasePayload);
+                    failed.addAndGet(entry.messages.size());
+                    LOG.error(String.format("Unable to send queued message: %s", ex.getMessage()), ex);
+                }
+
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.enqueueTime);
+                totalLatency.addAndGet(latency * entry.messages.size());
+                maxLatency.accumulateAndGet(latency, Math::max);
+
+            } catch (InterruptedException ex) {
+                LOG.debug("Publisher thread interrupted.");
+                break;
+
+            } catch (Throwable t) {
+                LOG.error(t.getMessage(), t);
+            }
+        }
+
+        if (!queue.isEmpty()) {
+            LOG.error(String.format("Publisher stopped, %s queued message(s) not sent.", queue.size()));
+
+            List<Entry> unsent = new ArrayList<>();
+            queue.drainTo(unsent);
+            for (Entry entry : unsent) {
+                failureListener.accept(entry.messages);
+                entry.messages.forEach(eXistMessage::releasePayload);
+                failed.addAndGet(entry.messages.size());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages, send what is queued and close the wrapped
+     * sender.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            publisherThread.join(CLOSE_TIMEOUT);
+            if (publisherThread.isAlive()) {
+                publisherThread.interrupt();
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            publisherThread.interrupt();
+        }
+        sender.close();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "async", "async", null);
+
+        writeValue(builder, "queueDepth", queue.size());
+        writeValue(builder, "queueCapacity", queue.size() + queue.remainingCapacity());
+        writeValue(builder, "maxQueueDepth", maxQueueDepth.get());
+        writeValue(builder, "overflowPolicy", overflowPolicy.name().toLowerCase(Locale.ENGLISH));
+        writeValue(builder, "nrEnqueuedMessages", enqueued.get());
+        writeValue(builder, "nrSentMessages", sent.get());
+        writeValue(builder, "nrFailedMessages", failed.get());
+        writeValue(builder, "nrDroppedMessages", dropped.get());
+
+        long processed = sent.get() + failed.get();
+        writeValue(builder, "averageLatency", processed == 0 ? 0 : totalLatency.get() / processed);
+        writeValue(builder, "maxLatency", maxLatency.get());
+
+        builder.endElement();
+    }
+}
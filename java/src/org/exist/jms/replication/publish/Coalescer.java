@@ -0,0 +1,565 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Collapses bursts of changes of a document into one message. A created or
+ * updated document is serialized when it was not changed for the duration
+ * of the debounce window, so only its final state is sent; a delete cancels
+ * the pending change.
+ *
+ * All other messages wait until the pending changes of the documents they
+ * involve (the document itself, or the documents in the collection) are
+ * sent, which keeps the order of the changes; other pending changes keep
+ * waiting for their window. The documents are serialized by the sender
+ * thread; a pending document that is moved is read from its new location.
+ *
+ * Messages are sent by a dedicated thread. Messages that could not be sent
+ * are sent again before anything else, at most {@link #MAX_RETRIES} times.
+ * While sending fails, at most {@link #MAX_QUEUED} changes are kept, further
+ * changes are rejected.
+ *
+ * @author Dannes Wessels
+ */
+public class Coalescer {
+
+    private final static Logger LOG = LogManager.getLogger(Coalescer.class);
+
+    /**
+     * A document is sent at the latest after this number of windows, also
+     * when it keeps changing.
+     */
+    private static final int MAX_WINDOWS = 10;
+
+    /**
+     * Delay before messages that could not be sent are sent again.
+     */
+    private static final long RETRY_DELAY = 5 * 1000L;
+
+    /**
+     * Number of times messages are sent again before they are given up.
+     */
+    static final int MAX_RETRIES = 12;
+
+    /**
+     * Maximum number of pending changes and messages waiting to be sent.
+     */
+    static final int MAX_QUEUED = 10000;
+
+    /**
+     * Created or updated document waiting for the window to expire.
+     */
+    private static class Pending {
+
+        private final String path;
+        private String readPath;
+        private eXistMessage.ResourceOperation operation;
+        private final long first;
+        private long last;
+
+        Pending(String path, eXistMessage.ResourceOperation operation, long time) {
+            this.path = path;
+            this.readPath = path;
+            this.operation = operation;
+            this.first = time;
+            this.last = time;
+        }
+    }
+
+    private final Publisher publisher;
+    private final MessageSender sender;
+    private final BrokerPool brokerPool;
+    private final long window;
+    private final Thread senderThread;
+
+    /**
+     * Pending changes by path, in order of arrival.
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Changes (Pending) and messages (eXistMessage) that are ready to be sent.
+     */
+    private final List<Object> ready = new ArrayList<>();
+
+    /**
+     * Changes and messages taken by the sender thread, until the documents
+     * are serialized.
+     */
+    private List<Object> sending = Collections.emptyList();
+
+    /**
+     * Stamped messages that could not be sent and the number of times they
+     * were sent again, only used by the sender thread.
+     */
+    private List<eXistMessage> retry = null;
+    private int nrAttempts = 0;
+
+    private boolean closed = false;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong nrEvents = new AtomicLong();
+    private final AtomicLong nrCoalesced = new AtomicLong();
+    private final AtomicLong nrCancelled = new AtomicLong();
+    private final AtomicLong nrSent = new AtomicLong();
+    private final AtomicLong nrFailed = new AtomicLong();
+    private final AtomicLong nrRetries = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param publisher The publisher, creates the messages of the documents
+     * @param sender The sender that actually sends the messages
+     * @param brokerPool The database, to read the documents
+     * @param window Debounce window in milliseconds
+     * @param name Name of the sender thread
+     */
+    Coalescer(Publisher publisher, MessageSender sender, BrokerPool brokerPool, long window, String name) {
+        this.publisher = publisher;
+        this.sender = sender;
+        this.brokerPool = brokerPool;
+        this.window = window;
+
+        senderThread = new Thread(this::run, name + "-coalescer");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Submit messages of a committed transaction. Messages for created or
+     * updated documents only mark the document as changed, the payload is
+     * ignored.
+     *
+     * @param messages The messages
+     * @throws TransportException The coalescer is closed, or too many
+     * changes are waiting to be sent.
+     */
+    public synchronized void submit(List<eXistMessage> messages) throws TransportException {
+
+        if (closed) {
+            messages.forEach(eXistMessage::releasePayload);
+            throw new TransportException("Sender is closed.");
+        }
+
+        if (pending.size() + ready.size() + messages.size() > MAX_QUEUED) {
+            messages.forEach(eXistMessage::releasePayload);
+            nrFailed.addAndGet(messages.size());
+            throw new TransportException(String.format("%s changes are waiting to be sent, %s message(s) rejected.",
+                    pending.size() + ready.size(), messages.size()));
+        }
+
+        long now = System.currentTimeMillis();
+        for (eXistMessage em : messages) {
+            nrEvents.incrementAndGet();
+
+            if (isDocumentChange(em)) {
+                em.releasePayload();
+                Pending change = pending.get(em.getResourcePath());
+                if (change == null) {
+                    pending.put(em.getResourcePath(), new Pending(em.getResourcePath(), em.getResourceOperation(), now));
+
+                } else {
+                    // A document created in the window is still new for the subscribers
+                    change.last = now;
+                    if (change.operation != eXistMessage.ResourceOperation.CREATE) {
+                        change.operation = em.getResourceOperation();
+                    }
+                    nrCoalesced.incrementAndGet();
+                }
+                continue;
+            }
+
+            if (em.getResourceType() == eXistMessage.ResourceType.DOCUMENT
+                    && em.getResourceOperation() == eXistMessage.ResourceOperation.DELETE
+                    && pending.remove(em.getResourcePath()) != null) {
+                nrCancelled.incrementAndGet();
+            }
+
+            // The operation is done already, pending documents are moved with it
+            if (em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE) {
+                follow(em);
+            }
+
+            // Pending changes of the documents involved are sent first
+            Iterator<Pending> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                Pending change = iterator.next();
+                if (isInvolved(change, em)) {
+                    ready.add(change);
+                    iterator.remove();
+                }
+            }
+            ready.add(em);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Update the location of pending documents that are moved, directly or
+     * with their collection.
+     */
+    private void follow(eXistMessage move) {
+
+        String source = move.getResourcePath();
+        String destination = move.getDestinationPath();
+        if (source == null || destination == null) {
+            return;
+        }
+
+        boolean isCollection = move.getResourceType() == eXistMessage.ResourceType.COLLECTION;
+        List<Pending> changes = new ArrayList<>(pending.values());
+        for (Object item : ready) {
+            if (item instanceof Pending) {
+                changes.add((Pending) item);
+            }
+        }
+        for (Object item : sending) {
+            if (item instanceof Pending) {
+                changes.add((Pending) item);
+            }
+        }
+
+        for (Pending change : changes) {
+            if (change.readPath.equals(source)) {
+                change.readPath = destination;
+
+            } else if (isCollection && change.readPath.startsWith(source + "/")) {
+                change.readPath = destination + change.readPath.substring(source.length());
+            }
+        }
+    }
+
+    /**
+     * Check if the message involves the document of a pending change: the
+     * document itself or its collection, as source or destination.
+     */
+    private static boolean isInvolved(Pending change, eXistMessage em) {
+        return isWithin(change.path, em.getResourcePath()) || isWithin(change.path, em.getDestinationPath())
+                || isWithin(change.readPath, em.getResourcePath()) || isWithin(change.readPath, em.getDestinationPath());
+    }
+
+    private static boolean isWithin(String document, String path) {
+        return path != null && (document.equals(path) || document.startsWith(path + "/"));
+    }
+
+    private static boolean isDocumentChange(eXistMessage em) {
+        return em.getResourceType() == eXistMessage.ResourceType.DOCUMENT
+                && (em.getResourceOperation() == eXistMessage.ResourceOperation.CREATE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.UPDATE);
+    }
+
+    /**
+     * Sender thread: send what is ready, and the pending changes that were
+     * not changed within the window.
+     */
+    private void run() {
+
+        long interval = Math.max(10, window / 4);
+
+        while (true) {
+
+            if (retry != null) {
+                synchronized (this) {
+                    if (!closed) {
+                        try {
+                            wait(RETRY_DELAY);
+                        } catch (InterruptedException ex) {
+                            LOG.debug("Coalescer thread interrupted.");
+                            closed = true;
+                        }
+                    }
+                }
+                nrAttempts++;
+                nrRetries.addAndGet(retry.size());
+                transmit(retry);
+                continue;
+            }
+
+            List<Object> batch;
+            synchronized (this) {
+                moveExpired(closed);
+                if (ready.isEmpty()) {
+                    if (closed) {
+                        break;
+                    }
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException ex) {
+                        LOG.debug("Coalescer thread interrupted.");
+                        closed = true;
+                    }
+                    continue;
+                }
+                batch = new ArrayList<>(ready);
+                ready.clear();
+                sending = batch;
+            }
+
+            send(batch);
+        }
+    }
+
+    /**
+     * Move expired pending changes, in order, to the ready list.
+     */
+    private void moveExpired(boolean all) {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending change = iterator.next();
+            if (all || now - change.last >= window || now - change.first >= window * MAX_WINDOWS) {
+                ready.add(change);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Serialize the changed documents and send everything as one batch.
+     */
+    private void send(List<Object> batch) {
+
+        List<eXistMessage> messages = new ArrayList<>();
+
+        try (DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()))) {
+            for (Object item : batch) {
+                if (item instanceof eXistMessage) {
+                    messages.add((eXistMessage) item);
+
+                } else {
+                    eXistMessage em = createMessage(broker, (Pending) item);
+                    if (em != null) {
+                        messages.add(em);
+                    }
+                }
+            }
+
+        } catch (Throwable t) {
+            LOG.error(String.format("Unable to read changed documents: %s", t.getMessage()), t);
+
+        } finally {
+            synchronized (this) {
+                sending = Collections.emptyList();
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        try {
+            publisher.stamp(messages);
+            publisher.admit(messages);
+
+        } catch (Throwable t) {
+            LOG.error(String.format("Unable to send %s message(s): %s", messages.size(), t.getMessage()), t);
+            fail(messages);
+            return;
+        }
+
+        transmit(messages);
+    }
+
+    /**
+     * Send stamped messages. When sending fails the messages are kept and
+     * sent again before anything else, unless the coalescer is closed, a
+     * payload was released by the sender or they were sent again too often.
+     */
+    private void transmit(List<eXistMessage> messages) {
+
+        List<eXistMessage> withPayload = new ArrayList<>();
+        for (eXistMessage em : messages) {
+            if (em.hasPayload()) {
+                withPayload.add(em);
+            }
+        }
+
+        try {
+            if (messages.size() == 1) {
+                sender.sendMessage(messages.get(0));
+            } else {
+                sender.sendMessages(messages);
+            }
+            nrSent.addAndGet(messages.size());
+            retry = null;
+            nrAttempts = 0;
+
+        } catch (TransportException ex) {
+            boolean complete = withPayload.stream().allMatch(eXistMessage::hasPayload);
+            boolean stopped;
+            synchronized (this) {
+                stopped = closed;
+            }
+
+            if (complete && !stopped && nrAttempts < MAX_RETRIES) {
+                LOG.error(String.format("Unable to send %s message(s), retry in %s ms: %s", messages.size(), RETRY_DELAY, ex.getMessage()));
+                if (retry == null) {
+                    nrAttempts = 0;
+                }
+                retry = messages;
+
+            } else {
+                LOG.error(String.format("Unable to send %s message(s), given up: %s", messages.size(), ex.getMessage()), ex);
+                fail(messages);
+                retry = null;
+                nrAttempts = 0;
+            }
+
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            fail(messages);
+            retry = null;
+            nrAttempts = 0;
+        }
+    }
+
+    /**
+     * Give up on messages, the next update of their documents is sent
+     * completely.
+     */
+    private void fail(List<eXistMessage> messages) {
+        nrFailed.addAndGet(messages.size());
+        publisher.forgetUnsent(messages);
+        messages.forEach(eXistMessage::releasePayload);
+    }
+
+    /**
+     * Create message with the current state of the document.
+     *
+     * @return The message, NULL when the document does not exist anymore or
+     * does not need to be sent.
+     */
+    private eXistMessage createMessage(DBBroker broker, Pending change) {
+
+        String readPath;
+        synchronized (this) {
+            readPath = change.readPath;
+        }
+
+        DocumentImpl document = null;
+        try {
+            while ((document = broker.getXMLResource(XmldbURI.create(readPath), Lock.READ_LOCK)) == null) {
+
+                // Moved while it was being read: read from the new location
+                String movedTo;
+                synchronized (this) {
+                    movedTo = change.readPath;
+                }
+                if (movedTo.equals(readPath)) {
+                    LOG.debug(String.format("Document %s does not exist anymore, change is not sent.", readPath));
+                    return null;
+                }
+                readPath = movedTo;
+            }
+
+            // Moved in the window: sent completely under the changed path, the move follows
+            if (!readPath.equals(change.path)) {
+                publisher.forget(document);
+            }
+
+            eXistMessage em = publisher.createDocumentMessage(broker, null, document, change.operation);
+            if (em != null) {
+                em.setResourcePath(change.path);
+            }
+            return em;
+
+        } catch (Throwable t) {
+            LOG.error(String.format("Unable to create message for %s: %s", change.path, t.getMessage()), t);
+            return null;
+
+        } finally {
+            if (document != null) {
+                document.getUpdateLock().release(Lock.READ_LOCK);
+            }
+        }
+    }
+
+    /**
+     * Send all pending changes and stop the sender thread.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            senderThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        int nrPending;
+        synchronized (this) {
+            nrPending = pending.size() + ready.size();
+        }
+
+        builder.startElement("", "debounce", "debounce", null);
+
+        writeValue(builder, "window", window);
+        writeValue(builder, "nrPending", nrPending);
+        writeValue(builder, "nrEvents", nrEvents.get());
+        writeValue(builder, "nrCoalesced", nrCoalesced.get());
+        writeValue(builder, "nrCancelled", nrCancelled.get());
+        writeValue(builder, "nrSentMessages", nrSent.get());
+        writeValue(builder, "nrFailedMessages", nrFailed.get());
+        writeValue(builder, "nrRetriedMessages", nrRetries.get());
+
+        builder.endElement();
+    }
+}
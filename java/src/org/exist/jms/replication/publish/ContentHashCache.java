@@ -0,0 +1,114 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Bounded cache of the content hash of the last published version of
+ * documents, by document id. Used to detect updates that do not change the
+ * content of a document.
+ *
+ * @author Dannes Wessels
+ */
+public class ContentHashCache {
+
+    private final int maxEntries;
+    private final Map<Integer, String> hashes;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries Maximum number of documents, the least recently used
+     * are removed.
+     */
+    ContentHashCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.hashes = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Register the hash of the published content of a document.
+     *
+     * @param docId Id of the document
+     * @param hash Content hash
+     * @return TRUE when the hash equals the hash of the previously published
+     * content.
+     */
+    public synchronized boolean isUnchanged(int docId, String hash) {
+        String previous = hashes.put(docId, hash);
+        if (hash.equals(previous)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forget document, the next update is published.
+     *
+     * @param docId Id of the document
+     */
+    public synchronized void remove(int docId) {
+        hashes.remove(docId);
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        int size;
+        synchronized (this) {
+            size = hashes.size();
+        }
+
+        builder.startElement("", "unchanged", "unchanged", null);
+
+        writeValue(builder, "cacheSize", size);
+        writeValue(builder, "maxCacheSize", maxEntries);
+        writeValue(builder, "nrHits", hits.get());
+        writeValue(builder, "nrMisses", misses.get());
+
+        builder.endElement();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+
+import org.exist.jms.replication.shared.DeltaCache;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.PayloadCodec;
+import org.exist.jms.replication.shared.PayloadCodecs;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Creates the payload of XML document updates as delta against the previous
+ * replicated version when that is smaller than the document.
+ *
+ * The previous versions are kept in a {@link DeltaCache}. After a number of
+ * deltas the full document is sent again, so subscribers that missed a
+ * version are brought back in sync.
+ *
+ * @author Dannes Wessels
+ */
+public class DeltaEncoder {
+
+    private final static Logger LOG = LogManager.getLogger(DeltaEncoder.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DeltaCache cache;
+    private final int fullInterval;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong nrDeltas = new AtomicLong();
+    private final AtomicLong nrFull = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the cache
+     * @param cacheSize Maximum number of cached documents
+     * @param fullInterval Maximum number of deltas before the full document is
+     * sent
+     * @throws IOException The cache could not be created.
+     */
+    DeltaEncoder(Path directory, int cacheSize, int fullInterval) throws IOException {
+        this.cache = new DeltaCache(directory, cacheSize);
+        this.fullInterval = fullInterval;
+    }
+
+    /**
+     * Serialize XML document and set payload of message, as delta for
+     * updates when possible.
+     *
+     * @param broker The broker
+     * @param transaction The database transaction, the cached version is
+     * discarded when it is aborted.
+     * @param document The document
+     * @param msg The message, CREATE or UPDATE
+     * @param codec The codec to compress the payload
+     * @param level The compression level
+     * @param threshold Maximum number of bytes of the payload kept in memory
+     * @throws IOException The document could not be serialized.
+     */
+    public void encode(DBBroker broker, Txn transaction, DocumentImpl document, eXistMessage msg,
+                       PayloadCodec codec, int level, int threshold) throws IOException {
+
+        final String path = document.getURI().toString();
+        Map<String, Object> md = msg.getMetadata();
+
+        Path file = cache.createTempFile();
+        try {
+            // Uncompressed serialization, the stream is closed by serialize()
+            DigestOutputStream dos = DeltaCache.createDigestStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+            MessageHelper.serialize(broker, document, PayloadCodecs.getCodec(PayloadCodecs.NONE), PayloadCodec.DEFAULT_LEVEL, dos);
+            String hash = DeltaCache.toHash(dos.getMessageDigest());
+
+            long length = Files.size(file);
+            DeltaCache.Entry base = cache.get(path);
+            DeltaCache.Delta delta = null;
+
+            if (msg.getResourceOperation() == eXistMessage.ResourceOperation.UPDATE
+                    && base != null && base.getNrDeltas() < fullInterval) {
+                delta = DeltaCache.compare(base.getFile(), file);
+
+                // Not worth it for large changes
+                if (delta.getReplacementLength() > length / 2) {
+                    delta = null;
+                }
+            }
+
+            PayloadBuffer buffer = new PayloadBuffer(threshold);
+            try (OutputStream os = codec.compress(buffer, level)) {
+                if (delta == null) {
+                    Files.copy(file, os);
+                } else {
+                    DeltaCache.writeReplacement(file, delta, os);
+                }
+
+            } catch (IOException ex) {
+                buffer.release();
+                throw ex;
+            }
+            buffer.close();
+
+            md.put(MessageHelper.EXIST_DELTA_HASH, hash);
+            if (delta == null) {
+                nrFull.incrementAndGet();
+
+            } else {
+                msg.setResourceOperation(eXistMessage.ResourceOperation.DELTA);
+                md.put(MessageHelper.EXIST_DELTA_BASE_HASH, base.getHash());
+                md.put(MessageHelper.EXIST_DELTA_PREFIX, delta.getPrefix());
+                md.put(MessageHelper.EXIST_DELTA_SUFFIX, delta.getSuffix());
+                nrDeltas.incrementAndGet();
+                bytesSaved.addAndGet(length - delta.getReplacementLength());
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("Delta for %s: %s of %s bytes changed", path, delta.getReplacementLength(), length));
+                }
+            }
+            msg.setPayload(buffer);
+
+            cache.put(path, file, hash, (delta == null) ? 0 : base.getNrDeltas() + 1);
+
+            // Subscribers never see an aborted version
+            if (transaction != null) {
+                transaction.registerListener(new TxnListener() {
+                    @Override
+                    public void commit() {
+                        // Nothing to do
+                    }
+
+                    @Override
+                    public void abort() {
+                        cache.remove(path);
+                    }
+                });
+            }
+
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Forget document, e.g. when it is deleted or moved.
+     *
+     * @param path Path of the document
+     */
+    public void remove(String path) {
+        cache.remove(path);
+    }
+
+    /**
+     * Forget all documents in collection.
+     *
+     * @param path Path of the collection
+     */
+    public void removeCollection(String path) {
+        cache.removeCollection(path);
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "delta", "delta", null);
+
+        writeValue(builder, "directory", cache.getDirectory());
+        writeValue(builder, "nrDeltaMessages", nrDeltas.get());
+        writeValue(builder, "nrFullMessages", nrFull.get());
+        writeValue(builder, "bytesSaved", bytesSaved.get());
+
+        builder.endElement();
+    }
+}
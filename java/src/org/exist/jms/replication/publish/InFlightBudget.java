@@ -0,0 +1,198 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Limit on the payload bytes kept in memory and the number of messages
+ * that are in flight, i.e. handed over for sending and not yet released.
+ * There is one budget, shared by all publishers; when publishers configure
+ * different limits the smallest limit is used.
+ *
+ * A request that is larger than the limit is admitted when nothing else is
+ * in flight, otherwise it could never be sent.
+ *
+ * @author Dannes Wessels
+ */
+public class InFlightBudget {
+
+    private final static Logger LOG = LogManager.getLogger(InFlightBudget.class);
+
+    private static final InFlightBudget INSTANCE = new InFlightBudget();
+
+    private long maxBytes = 0;
+    private long maxMessages = 0;
+
+    private long bytes = 0;
+    private long messages = 0;
+
+    private long peakBytes = 0;
+    private long peakMessages = 0;
+
+    private long nrWaits = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+    private long nrTimeouts = 0;
+    private long nrRejected = 0;
+    private long nrSpilled = 0;
+
+    private InFlightBudget() {
+        // Singleton
+    }
+
+    public static InFlightBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Apply limits of a publisher, the smallest limits are kept.
+     *
+     * @param bytes Maximum number of payload bytes in memory, 0 for no limit
+     * @param messages Maximum number of messages, 0 for no limit
+     */
+    public synchronized void configure(long bytes, long messages) {
+
+        if (bytes > 0 && (maxBytes == 0 || bytes < maxBytes)) {
+            maxBytes = bytes;
+        }
+
+        if (messages > 0 && (maxMessages == 0 || messages < maxMessages)) {
+            maxMessages = messages;
+        }
+
+        LOG.info(String.format("In-flight budget: %s bytes, %s messages", maxBytes, maxMessages));
+    }
+
+    /**
+     * @return TRUE when no limits are configured.
+     */
+    public synchronized boolean isUnlimited() {
+        return maxBytes == 0 && maxMessages == 0;
+    }
+
+    private boolean fits(long requestedBytes, long requestedMessages) {
+
+        if (messages == 0) {
+            return true;
+        }
+
+        return (maxBytes == 0 || bytes + requestedBytes <= maxBytes)
+                && (maxMessages == 0 || messages + requestedMessages <= maxMessages);
+    }
+
+    /**
+     * Reserve space, waiting at most the timeout for other messages to be
+     * released.
+     *
+     * @param requestedBytes Payload bytes in memory
+     * @param requestedMessages Number of messages
+     * @param timeout Maximum time to wait in milliseconds, 0 to not wait
+     * @return TRUE when the space is reserved.
+     * @throws InterruptedException The thread is interrupted while waiting.
+     */
+    public synchronized boolean acquire(long requestedBytes, long requestedMessages, long timeout) throws InterruptedException {
+
+        if (!fits(requestedBytes, requestedMessages) && timeout > 0) {
+
+            long start = System.currentTimeMillis();
+            long deadline = start + timeout;
+            long remaining = timeout;
+
+            nrWaits++;
+            try {
+                while (!fits(requestedBytes, requestedMessages) && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } finally {
+                long waited = System.currentTimeMillis() - start;
+                totalWaitTime += waited;
+                maxWaitTime = Math.max(maxWaitTime, waited);
+            }
+
+            if (!fits(requestedBytes, requestedMessages)) {
+                nrTimeouts++;
+            }
+        }
+
+        if (!fits(requestedBytes, requestedMessages)) {
+            return false;
+        }
+
+        bytes += requestedBytes;
+        messages += requestedMessages;
+        peakBytes = Math.max(peakBytes, bytes);
+        peakMessages = Math.max(peakMessages, messages);
+        return true;
+    }
+
+    /**
+     * Return reserved space.
+     *
+     * @param releasedBytes Payload bytes in memory
+     * @param releasedMessages Number of messages
+     */
+    public synchronized void release(long releasedBytes, long releasedMessages) {
+        bytes = Math.max(0, bytes - releasedBytes);
+        messages = Math.max(0, messages - releasedMessages);
+        notifyAll();
+    }
+
+    synchronized void incRejected() {
+        nrRejected++;
+    }
+
+    synchronized void incSpilled(long count) {
+        nrSpilled += count;
+    }
+
+    /**
+     * Write usage and statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public synchronized void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "budget", "budget", null);
+
+        writeValue(builder, "maxBytes", maxBytes);
+        writeValue(builder, "maxMessages", maxMessages);
+        writeValue(builder, "inFlightBytes", bytes);
+        writeValue(builder, "inFlightMessages", messages);
+        writeValue(builder, "peakBytes", peakBytes);
+        writeValue(builder, "peakMessages", peakMessages);
+        writeValue(builder, "nrWaits", nrWaits);
+        writeValue(builder, "averageWaitTime", nrWaits == 0 ? 0 : totalWaitTime / nrWaits);
+        writeValue(builder, "maxWaitTime", maxWaitTime);
+        writeValue(builder, "nrTimeouts", nrTimeouts);
+        writeValue(builder, "nrRejected", nrRejected);
+        writeValue(builder, "nrSpilled", nrSpilled);
+
+        builder.endElement();
+    }
+}
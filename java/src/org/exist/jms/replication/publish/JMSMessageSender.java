@@ -21,41 +21,153 @@
  */
 package org.exist.jms.replication.publish;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.Identity;
 import org.exist.jms.shared.JmsMessageProperties;
-import org.exist.jms.send.Sender;
-
+import org.exist.jms.shared.SequenceCounter;
 import org.exist.jms.shared.eXistMessage;
-import org.exist.jms.shared.eXistMessageItem;
 
+import org.exist.jms.replication.shared.MessageHelper;
 import org.exist.jms.replication.shared.MessageSender;
 import org.exist.jms.replication.shared.TransportException;
 
 /**
- * Specific class for sending a eXistMessage via JMS to a broker
+ * Specific class for sending a eXistMessage via JMS to a broker.
+ *
+ * The sender is long-lived: the JMS connection is kept open and sessions
+ * with their producer are pooled; a session is used by one publishing
+ * thread at a time and at most {@link #MAX_IDLE_SESSIONS} idle sessions are
+ * kept open. When the connection fails it is re-established on the next send. Batches of messages are sent
+ * in one transaction, using a separate transacted session.
+ *
+ * Payloads larger than the configured chunk size are sent as a chunked
+ * transfer: a header message, the chunk messages and a completion marker. When
+ * sending fails halfway, the retry continues with the failed chunk.
  *
  * @author Dannes Wessels
  */
 public class JMSMessageSender implements MessageSender {
 
     private final static Logger LOG = LogManager.getLogger(JMSMessageSender.class);
-    
-    private final PublisherParameters parameters = new PublisherParameters();
+
+    /**
+     * Size of the blocks in which payloads are copied into messages.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of idle sessions of each kind that are kept open.
+     */
+    static final int MAX_IDLE_SESSIONS = 4;
+
+    private final PublisherParameters parameters;
+    private final PublisherLane lane;
+
+    private final JmsMessageProperties messageProperties = new JmsMessageProperties();
+
+    private final String instanceId;
+
+    /**
+     * Progress of a chunked transfer, kept when the send is retried.
+     */
+    private static class ChunkedTransfer {
+
+        private String transferId = null;
+        private long checksum;
+
+        /**
+         * Next chunk to be sent, -1 when the header is not sent yet.
+         */
+        private int nextSequence = -1;
+    }
+
+    /**
+     * Session and producer, used by one publishing thread at a time.
+     */
+    private static class ProducerHolder {
+
+        private final Session session;
+        private final MessageProducer producer;
+        private final int generation;
+
+        ProducerHolder(Session session, MessageProducer producer, int generation) {
+            this.session = session;
+            this.producer = producer;
+            this.generation = generation;
+        }
+
+        void close() {
+            try {
+                session.close();
+            } catch (JMSException ex) {
+                LOG.debug(String.format("Problem closing session, ignored. %s", ex.getMessage()));
+            }
+        }
+    }
+
+    private final Deque<ProducerHolder> idleProducers = new ArrayDeque<>();
+    private final Deque<ProducerHolder> idleTransactedProducers = new ArrayDeque<>();
+    private final Set<ProducerHolder> allProducers = ConcurrentHashMap.newKeySet();
+
+    private final Object connectionLock = new Object();
+    private Connection connection = null;
+    private Destination destination = null;
+
+    /**
+     * Incremented for each new connection, used to detect stale sessions.
+     */
+    private volatile int generation = 0;
+    private volatile boolean connectionBroken = false;
+    private volatile boolean closed = false;
 
     /**
      * Constructor
      *
-     * @param parameters Set of (Key,value) parameters for setting JMS routing
-     * instructions, like java.naming.* , destination and connection factory.
+     * @param parameters Processed set of parameters for setting JMS routing
+     * instructions, like java.naming.* and connection factory.
+     * @param lane Destination, priority and time-to-live of the messages
      */
-    JMSMessageSender(Map<String, List<?>> params) {
-        parameters.setMultiValueParameters(params);
+    JMSMessageSender(PublisherParameters parameters, PublisherLane lane) {
+        this.parameters = parameters;
+        this.lane = lane;
+
+        // Trigger parameters are passed as message properties, as before
+        messageProperties.loadParameters(parameters);
+
+        // Retrieve and set JMS identifier
+        instanceId = Identity.getInstance().getIdentity();
+        if (StringUtils.isNotBlank(instanceId)) {
+            messageProperties.setProperty(Constants.EXIST_INSTANCE_ID, instanceId);
+        } else {
+            LOG.error(String.format("An empty value was provided for '%s'", Constants.EXIST_INSTANCE_ID));
+        }
     }
 
     /**
@@ -67,29 +179,431 @@ public class JMSMessageSender implements MessageSender {
     @Override
     public void sendMessage(eXistMessage em) throws TransportException {
 
-        try {
-            // Get from .xconf file, fill defaults when needed
-            parameters.processParameters();
+        if (closed) {
+            throw new TransportException("Sender is closed.");
+        }
 
-            Sender sender = new Sender();
+        ChunkedTransfer transfer = new ChunkedTransfer();
 
-            eXistMessageItem item = new eXistMessageItem();
-            item.setData(em);
+        int usedGeneration = generation;
+        try {
+            send(em, transfer);
+            em.releasePayload();
 
-            JmsConfiguration jmsConfig = new JmsConfiguration();
-            jmsConfig.loadPublisherParameters(parameters);
+        } catch (JMSException ex) {
+            // Connection might be stale, reconnect and try once more
+            LOG.warn(String.format("Unable to send message, reconnecting. %s (%s)", ex.getMessage(), ex.getErrorCode()));
+            invalidate(usedGeneration);
 
-            JmsMessageProperties msgMetaProps = new JmsMessageProperties();
-            msgMetaProps.loadParameters(parameters);
+            usedGeneration = generation;
+            try {
+                send(em, transfer);
+                em.releasePayload();
 
-            sender.send(jmsConfig, msgMetaProps, item);
+            } catch (Throwable t) {
+                LOG.error(t.getMessage(), t);
+                invalidate(usedGeneration);
+                throw new TransportException(t.getMessage(), t);
+            }
 
         } catch (Throwable ex) {
             // I know, this is bad coding practice,
             // but in case of probles we really need to fire this exception
             LOG.error(ex.getMessage(), ex);
             throw new TransportException(ex.getMessage(), ex);
-        } 
+        }
+    }
+
+    /**
+     * Send all messages in one JMS transaction.
+     *
+     * @param messages The messages that need to be sent
+     * @throws TransportException Thrown when something bad happens, none of
+     * the messages is sent.
+     */
+    @Override
+    public void sendMessages(List<eXistMessage> messages) throws TransportException {
+
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        if (closed) {
+            throw new TransportException("Sender is closed.");
+        }
+
+        int usedGeneration = generation;
+        try {
+            sendTransacted(messages);
+            messages.forEach(eXistMessage::releasePayload);
+
+        } catch (JMSException ex) {
+            // Connection might be stale, reconnect and try once more
+            LOG.warn(String.format("Unable to send %s messages, reconnecting. %s (%s)", messages.size(), ex.getMessage(), ex.getErrorCode()));
+            invalidate(usedGeneration);
+
+            usedGeneration = generation;
+            try {
+                sendTransacted(messages);
+                messages.forEach(eXistMessage::releasePayload);
+
+            } catch (Throwable t) {
+                LOG.error(t.getMessage(), t);
+                invalidate(usedGeneration);
+                throw new TransportException(t.getMessage(), t);
+            }
+
+        } catch (Throwable ex) {
+            LOG.error(ex.getMessage(), ex);
+            throw new TransportException(ex.getMessage(), ex);
+        }
+    }
+
+    private void send(eXistMessage em, ChunkedTransfer transfer) throws JMSException, NamingException, IOException {
+
+        ProducerHolder holder = getProducer(idleProducers, false);
+        try {
+            send(holder, em, transfer);
+
+        } finally {
+            releaseProducer(idleProducers, holder);
+        }
+    }
+
+    private void sendTransacted(List<eXistMessage> messages) throws JMSException, NamingException, IOException {
+
+        ProducerHolder holder = getProducer(idleTransactedProducers, true);
+        try {
+            // After a rollback nothing is sent, always start from the beginning
+            for (eXistMessage em : messages) {
+                send(holder, em, new ChunkedTransfer());
+            }
+            holder.session.commit();
+
+        } catch (JMSException | IOException | RuntimeException ex) {
+            try {
+                holder.session.rollback();
+            } catch (JMSException e) {
+                LOG.debug(String.format("Problem rolling back session, ignored. %s", e.getMessage()));
+            }
+            throw ex;
+
+        } finally {
+            releaseProducer(idleTransactedProducers, holder);
+        }
+    }
+
+    private void send(ProducerHolder holder, eXistMessage em, ChunkedTransfer transfer) throws JMSException, IOException {
+
+        // Numbered when sent the first time, a resent message keeps its number
+        if (!em.getMetadata().containsKey(Constants.EXIST_SEQUENCE)) {
+            em.getMetadata().put(Constants.EXIST_SEQUENCE, SequenceCounter.getInstance().next(lane.getDestination()));
+        }
+
+        int chunkSize = parameters.getChunkSize();
+        if (chunkSize > 0 && em.getPayloadLength() > chunkSize) {
+            sendChunked(holder, em, transfer, chunkSize);
+            return;
+        }
+
+        BytesMessage message = holder.session.createBytesMessage();
+
+        // Stream payload into message when available
+        try (InputStream is = em.getPayloadInputStream()) {
+            if (is == null) {
+                LOG.error("No payload for replication");
+            } else {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = is.read(chunk)) != -1) {
+                    message.writeBytes(chunk, 0, read);
+                }
+            }
+        }
+
+        setMessageProperties(message, em);
+
+        holder.producer.send(message);
+    }
+
+    private void setMessageProperties(BytesMessage message, eXistMessage em) throws JMSException {
+
+        em.updateMessageProperties(message);
 
+        // Set Message properties from trigger configuration
+        for (Map.Entry<Object, Object> entry : messageProperties.entrySet()) {
+            message.setStringProperty((String) entry.getKey(), (String) entry.getValue());
+        }
+    }
+
+    /**
+     * Send payload as header, chunks and completion marker. Continues where
+     * a previous attempt for the same transfer stopped.
+     */
+    private void sendChunked(ProducerHolder holder, eXistMessage em, ChunkedTransfer transfer, int chunkSize) throws JMSException, IOException {
+
+        long length = em.getPayloadLength();
+        int count = (int) ((length + chunkSize - 1) / chunkSize);
+
+        if (transfer.transferId == null) {
+            // The checksum of the payload makes the transfer id deterministic,
+            // a resent payload can be recognized by the receiver.
+            CRC32 crc = new CRC32();
+            try (InputStream is = em.getPayloadInputStream()) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            transfer.checksum = crc.getValue();
+
+            String key = String.format("%s|%s|%s|%s|%s", instanceId, em.getResourceOperation(),
+                    em.getResourcePath(), length, transfer.checksum);
+            transfer.transferId = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+        }
+
+        if (transfer.nextSequence < 0) {
+            BytesMessage header = holder.session.createBytesMessage();
+            setMessageProperties(header, em);
+            setChunkProperties(header, transfer, MessageHelper.CHUNK_TYPE_HEADER);
+            header.setIntProperty(MessageHelper.EXIST_CHUNK_COUNT, count);
+            header.setIntProperty(MessageHelper.EXIST_CHUNK_SIZE, chunkSize);
+            header.setLongProperty(MessageHelper.EXIST_CHUNK_LENGTH, length);
+            header.setLongProperty(MessageHelper.EXIST_CHUNK_CHECKSUM, transfer.checksum);
+            holder.producer.send(header);
+
+            transfer.nextSequence = 0;
+        }
+
+        if (transfer.nextSequence < count) {
+            try (InputStream is = em.getPayloadInputStream()) {
+
+                long skip = (long) transfer.nextSequence * chunkSize;
+                while (skip > 0) {
+                    long skipped = is.skip(skip);
+                    if (skipped <= 0) {
+                        throw new IOException("Unexpected end of payload.");
+                    }
+                    skip -= skipped;
+                }
+
+                byte[] data = new byte[chunkSize];
+                while (transfer.nextSequence < count) {
+
+                    int size = 0;
+                    int read;
+                    while (size < chunkSize && (read = is.read(data, size, chunkSize - size)) != -1) {
+                        size += read;
+                    }
+
+                    CRC32 crc = new CRC32();
+                    crc.update(data, 0, size);
+
+                    BytesMessage chunk = holder.session.createBytesMessage();
+                    chunk.writeBytes(data, 0, size);
+                    setMessageProperties(chunk, em);
+                    setChunkProperties(chunk, transfer, MessageHelper.CHUNK_TYPE_CHUNK);
+                    chunk.setIntProperty(MessageHelper.EXIST_CHUNK_SEQUENCE, transfer.nextSequence);
+                    chunk.setLongProperty(MessageHelper.EXIST_CHUNK_CHECKSUM, crc.getValue());
+                    holder.producer.send(chunk);
+
+                    transfer.nextSequence++;
+                }
+            }
+        }
+
+        BytesMessage complete = holder.session.createBytesMessage();
+        setMessageProperties(complete, em);
+        setChunkProperties(complete, transfer, MessageHelper.CHUNK_TYPE_COMPLETE);
+        holder.producer.send(complete);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Sent %s in %s chunks, transfer %s", em.getResourcePath(), count, transfer.transferId));
+        }
+    }
+
+    private static void setChunkProperties(BytesMessage message, ChunkedTransfer transfer, String type) throws JMSException {
+        message.setStringProperty(MessageHelper.EXIST_CHUNK_TYPE, type);
+        message.setStringProperty(MessageHelper.EXIST_CHUNK_TRANSFER_ID, transfer.transferId);
+    }
+
+    /**
+     * Take an idle session and producer, create one when none is available.
+     * Sessions of a connection that has been renewed are closed.
+     */
+    private ProducerHolder getProducer(Deque<ProducerHolder> idle, boolean transacted) throws JMSException, NamingException {
+
+        synchronized (idle) {
+            ProducerHolder holder;
+            while ((holder = idle.pollFirst()) != null) {
+                if (isCurrent(holder)) {
+                    return holder;
+                }
+                discard(holder);
+            }
+        }
+
+        Connection currentConnection;
+        Destination currentDestination;
+        int currentGeneration;
+        synchronized (connectionLock) {
+            if (closed) {
+                throw new javax.jms.IllegalStateException("Sender is closed.");
+            }
+            if (connection == null || connectionBroken) {
+                connect();
+            }
+            currentConnection = connection;
+            currentDestination = destination;
+            currentGeneration = generation;
+        }
+
+        Session session = currentConnection.createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(currentDestination);
+
+        // Set time-to-live (when available)
+        Long timeToLive = lane.getTimeToLive();
+        if (timeToLive != null) {
+            producer.setTimeToLive(timeToLive);
+        }
+
+        // Set priority (when available)
+        Integer priority = lane.getPriority();
+        if (priority != null) {
+            producer.setPriority(priority);
+        }
+
+        ProducerHolder holder = new ProducerHolder(session, producer, currentGeneration);
+        allProducers.add(holder);
+
+        return holder;
+    }
+
+    /**
+     * Return session and producer after use. The session is closed when it
+     * belongs to an old connection or when enough sessions are idle.
+     */
+    private void releaseProducer(Deque<ProducerHolder> idle, ProducerHolder holder) {
+
+        synchronized (idle) {
+            if (isCurrent(holder) && !closed && idle.size() < MAX_IDLE_SESSIONS) {
+                idle.addFirst(holder);
+                return;
+            }
+        }
+        discard(holder);
+    }
+
+    private boolean isCurrent(ProducerHolder holder) {
+        return holder.generation == generation && !connectionBroken;
+    }
+
+    private void discard(ProducerHolder holder) {
+        allProducers.remove(holder);
+        holder.close();
+    }
+
+    /**
+     * Setup connection and lookup destination. Caller must hold connectionLock.
+     */
+    private void connect() throws JMSException, NamingException {
+
+        closeConnection();
+
+        Context context = new InitialContext(parameters.getInitialContextProps());
+        try {
+            ConnectionFactory cf = (ConnectionFactory) context.lookup(parameters.getConnectionFactory());
+
+            // Setup username/password when required
+            String userName = parameters.getConnectionUsername();
+            String password = parameters.getConnectionPassword();
+
+            Connection newConnection = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
+                    ? cf.createConnection()
+                    : cf.createConnection(userName, password);
+
+            try {
+                // Set clientId when set and not empty
+                String clientId = parameters.getClientId();
+                if (StringUtils.isNotBlank(clientId)) {
+                    // Each lane has its own connection, client ids must be unique
+                    newConnection.setClientID(PublisherLane.DEFAULT.equals(lane.getName())
+                            ? clientId : clientId + "-" + lane.getName());
+                }
+
+                // Mark connection as broken, sessions are recreated on next send
+                newConnection.setExceptionListener((JMSException ex) -> {
+                    LOG.error(String.format("Connection problem, reconnecting on next send. %s (%s)", ex.getMessage(), ex.getErrorCode()));
+                    connectionBroken = true;
+                });
+
+                destination = (Destination) context.lookup(lane.getDestination());
+
+            } catch (JMSException | NamingException ex) {
+                newConnection.close();
+                throw ex;
+            }
+
+            connection = newConnection;
+            connectionBroken = false;
+            generation++;
+
+            LOG.info(String.format("JMS connection for lane %s is established. %s", lane, parameters.getReport()));
+
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Mark the connection as unusable, unless it has been renewed already.
+     *
+     * @param failedGeneration Generation of the connection that failed
+     */
+    private void invalidate(int failedGeneration) {
+        synchronized (connectionLock) {
+            if (failedGeneration == generation) {
+                connectionBroken = true;
+            }
+        }
+    }
+
+    /**
+     * Close connection and all sessions. Caller must hold connectionLock.
+     */
+    private void closeConnection() {
+
+        synchronized (idleProducers) {
+            idleProducers.clear();
+        }
+        synchronized (idleTransactedProducers) {
+            idleTransactedProducers.clear();
+        }
+
+        for (ProducerHolder holder : allProducers) {
+            holder.close();
+        }
+        allProducers.clear();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException ex) {
+                LOG.error(String.format("Problem closing connection, ignored. %s (%s)", ex.getMessage(), ex.getErrorCode()));
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Close all JMS resources, the sender cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (connectionLock) {
+            closed = true;
+            closeConnection();
+        }
     }
 }
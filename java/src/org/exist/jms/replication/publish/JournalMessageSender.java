@@ -0,0 +1,306 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.SequenceCounter;
+import org.exist.jms.shared.eXistMessage;
+
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Sender that writes messages to a {@link ReplicationJournal} first. A
+ * replayer thread sends the journaled messages in order to the wrapped sender
+ * and retries until the message broker accepts them; messages survive broker
+ * outages and database restarts.
+ *
+ * Delivery is at-least-once: after a crash the messages sent since the last
+ * checkpoint are sent again. Messages are numbered before they are written,
+ * a replayed message keeps its number so subscribers detect it as duplicate.
+ *
+ * @author Dannes Wessels
+ */
+public class JournalMessageSender implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(JournalMessageSender.class);
+
+    /**
+     * Write a checkpoint at least after this number of messages.
+     */
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    /**
+     * Maximum number of journaled messages sent in one transaction.
+     */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Retry delays when the broker is not available.
+     */
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    /**
+     * Maximum time to wait for the journal to be drained on close.
+     */
+    private static final long CLOSE_TIMEOUT = 30000;
+
+    private final MessageSender sender;
+    private final String stream;
+    private final ReplicationJournal journal;
+    private final Thread replayerThread;
+
+    private volatile boolean closed = false;
+
+    /*
+     * Statistics
+     */
+    private final AtomicLong journaled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String lastError = null;
+
+    /**
+     * Constructor
+     *
+     * @param sender The sender that actually sends the messages
+     * @param stream Name of the sequence of the messages, the destination
+     * @param directory Directory of the journal
+     * @param segmentSize Size of a journal segment in bytes
+     * @param sync Wait until a message is written to disk
+     * @param payloadThreshold Maximum size of a replayed payload kept in memory
+     * @param name Name of the journal threads
+     * @throws TransportException The journal could not be opened.
+     */
+    JournalMessageSender(MessageSender sender, String stream, Path directory, int segmentSize, boolean sync, int payloadThreshold, String name) throws TransportException {
+        this.sender = sender;
+        this.stream = stream;
+
+        try {
+            journal = new ReplicationJournal(directory, segmentSize, sync, payloadThreshold, name + "-flusher");
+        } catch (IOException ex) {
+            throw new TransportException(String.format("Unable to open journal %s: %s", directory, ex.getMessage()), ex);
+        }
+
+        replayerThread = new Thread(this::replay, name + "-replayer");
+        replayerThread.setDaemon(true);
+        replayerThread.start();
+    }
+
+    /**
+     * Write {@link eXistMessage} to the journal.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException The message could not be written.
+     */
+    @Override
+    public void sendMessage(eXistMessage em) throws TransportException {
+
+        if (closed) {
+            throw new TransportException("Sender is closed.");
+        }
+
+        number(em);
+
+        try {
+            journal.append(em);
+            journaled.incrementAndGet();
+
+        } catch (IOException ex) {
+            throw new TransportException(String.format("Unable to write message to journal: %s. %s", ex.getMessage(), em.getReport()), ex);
+
+        } finally {
+            // The journal has its own copy of the payload
+            em.releasePayload();
+        }
+    }
+
+    /**
+     * Write batch of {@link eXistMessage}s to the journal, with only one wait
+     * for the disk.
+     *
+     * @param messages The messages that need to be sent
+     * @throws TransportException The messages could not be written.
+     */
+    @Override
+    public void sendMessages(List<eXistMessage> messages) throws TransportException {
+
+        if (closed) {
+            throw new TransportException("Sender is closed.");
+        }
+
+        messages.forEach(this::number);
+
+        try {
+            journal.append(messages);
+            journaled.addAndGet(messages.size());
+
+        } catch (IOException ex) {
+            throw new TransportException(String.format("Unable to write %s messages to journal: %s", messages.size(), ex.getMessage()), ex);
+
+        } finally {
+            messages.forEach(eXistMessage::releasePayload);
+        }
+    }
+
+    /**
+     * Stamp the sequence number before the message is journaled, the sender
+     * keeps an existing number.
+     */
+    private void number(eXistMessage em) {
+        if (!em.getMetadata().containsKey(Constants.EXIST_SEQUENCE)) {
+            em.getMetadata().put(Constants.EXIST_SEQUENCE, SequenceCounter.getInstance().next(stream));
+        }
+    }
+
+    /**
+     * Replayer thread: send journaled messages, retry on failure. Messages
+     * that are available are sent in batches.
+     */
+    private void replay() {
+
+        long retryDelay = MIN_RETRY_DELAY;
+        int unsaved = 0;
+
+        while (!closed || !journal.isEmpty()) {
+            try {
+                eXistMessage em = journal.next(1000);
+
+                if (em == null) {
+                    if (unsaved > 0) {
+                        journal.checkpoint();
+                        unsaved = 0;
+                    }
+                    continue;
+                }
+
+                List<eXistMessage> batch = new ArrayList<>();
+                batch.add(em);
+                while (batch.size() < MAX_BATCH_SIZE && (em = journal.next(0)) != null) {
+                    batch.add(em);
+                }
+
+                try {
+                    if (batch.size() == 1) {
+                        sender.sendMessage(batch.get(0));
+                    } else {
+                        sender.sendMessages(batch);
+                    }
+
+                } catch (TransportException ex) {
+                    batch.forEach(eXistMessage::releasePayload);
+                    journal.rewind();
+                    failed.incrementAndGet();
+                    lastError = ex.getMessage();
+                    LOG.error(String.format("Unable to send journaled message, retry in %s ms: %s", retryDelay, ex.getMessage()));
+
+                    if (closed) {
+                        break;
+                    }
+
+                    Thread.sleep(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                    continue;
+                }
+
+                journal.acknowledge();
+                replayed.addAndGet(batch.size());
+                retryDelay = MIN_RETRY_DELAY;
+
+                unsaved += batch.size();
+                if (unsaved >= CHECKPOINT_INTERVAL) {
+                    journal.checkpoint();
+                    unsaved = 0;
+                }
+
+            } catch (InterruptedException ex) {
+                LOG.debug("Replayer thread interrupted.");
+                break;
+
+            } catch (Throwable t) {
+                journal.rewind();
+                LOG.error(t.getMessage(), t);
+            }
+        }
+
+        if (!journal.isEmpty()) {
+            LOG.info(String.format("Replayer stopped, unsent messages are kept in journal %s", journal.getDirectory()));
+        }
+    }
+
+    /**
+     * Stop accepting messages, try to send what is journaled and close the
+     * journal and the wrapped sender.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            replayerThread.join(CLOSE_TIMEOUT);
+            if (replayerThread.isAlive()) {
+                replayerThread.interrupt();
+                replayerThread.join(CLOSE_TIMEOUT);
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            replayerThread.interrupt();
+        }
+
+        journal.close();
+        sender.close();
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "journal", "journal", null);
+
+        writeValue(builder, "directory", journal.getDirectory());
+        writeValue(builder, "nrJournaledMessages", journaled.get());
+        writeValue(builder, "nrReplayedMessages", replayed.get());
+        writeValue(builder, "drained", journal.isEmpty());
+        writeValue(builder, "nrFailedAttempts", failed.get());
+        if (lastError != null) {
+            writeValue(builder, "lastError", lastError);
+        }
+
+        builder.endElement();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+
+/**
+ * Routes messages to the sender of the first matching lane, messages that
+ * do not match any lane are sent by the default sender. Each lane has its
+ * own connection, producer and (asynchronous) queue or journal, so a large
+ * transfer in one lane does not delay the messages of the other lanes.
+ *
+ * Order is kept within a lane only. A batch is split per lane; the parts are
+ * sent in the order of their first message.
+ *
+ * @author Dannes Wessels
+ */
+public class LaneRouter implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(LaneRouter.class);
+
+    /**
+     * Lane with its sender chain.
+     */
+    static class Route {
+
+        final PublisherLane lane;
+        final MessageSender sender;
+        final AsyncMessageSender asyncSender;
+        final JournalMessageSender journalSender;
+
+        private final AtomicLong routed = new AtomicLong();
+
+        /**
+         * Constructor
+         *
+         * @param lane The lane
+         * @param sender First sender of the chain
+         * @param asyncSender Asynchronous sender in the chain, NULL if none
+         * @param journalSender Journal sender in the chain, NULL if none
+         */
+        Route(PublisherLane lane, MessageSender sender, AsyncMessageSender asyncSender, JournalMessageSender journalSender) {
+            this.lane = lane;
+            this.sender = sender;
+            this.asyncSender = asyncSender;
+            this.journalSender = journalSender;
+        }
+    }
+
+    private final List<Route> routes;
+    private final Route defaultRoute;
+
+    /**
+     * Constructor
+     *
+     * @param routes The configured lanes, in order of evaluation
+     * @param defaultRoute Lane for messages that do not match
+     */
+    LaneRouter(List<Route> routes, Route defaultRoute) {
+        this.routes = routes;
+        this.defaultRoute = defaultRoute;
+    }
+
+    private Route route(eXistMessage em) {
+        for (Route route : routes) {
+            if (route.lane.matches(em)) {
+                return route;
+            }
+        }
+        return defaultRoute;
+    }
+
+    @Override
+    public void sendMessage(eXistMessage em) throws TransportException {
+        Route route = route(em);
+        route.routed.incrementAndGet();
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Sending %s via lane %s", em.getResourcePath(), route.lane.getName()));
+        }
+
+        route.sender.sendMessage(em);
+    }
+
+    /**
+     * Send the messages per lane, each part in one JMS transaction.
+     *
+     * @param messages The messages that need to be sent
+     * @throws TransportException Thrown when something bad happens; the
+     * parts of lanes before the failing lane have been sent.
+     */
+    @Override
+    public void sendMessages(List<eXistMessage> messages) throws TransportException {
+
+        Map<Route, List<eXistMessage>> parts = new LinkedHashMap<>();
+        for (eXistMessage em : messages) {
+            parts.computeIfAbsent(route(em), (r) -> new ArrayList<>()).add(em);
+        }
+
+        for (Map.Entry<Route, List<eXistMessage>> part : parts.entrySet()) {
+            part.getKey().routed.addAndGet(part.getValue().size());
+            part.getKey().sender.sendMessages(part.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Route route : routes) {
+            route.sender.close();
+        }
+        defaultRoute.sender.close();
+    }
+
+    /**
+     * Write configuration and statistics of the lanes.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "lanes", "lanes", null);
+
+        for (Route route : routes) {
+            write(builder, route);
+        }
+        write(builder, defaultRoute);
+
+        builder.endElement();
+    }
+
+    private static void write(MemTreeBuilder builder, Route route) {
+
+        builder.startElement("", "lane", "lane", null);
+        builder.addAttribute(new QName("name", null, null), route.lane.getName());
+
+        builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+        builder.characters(route.lane.getDestination());
+        builder.endElement();
+
+        builder.startElement("", "nrRoutedMessages", "nrRoutedMessages", null);
+        builder.characters("" + route.routed.get());
+        builder.endElement();
+
+        if (route.asyncSender != null) {
+            route.asyncSender.write(builder);
+        }
+
+        if (route.journalSender != null) {
+            route.journalSender.write(builder);
+        }
+
+        builder.endElement();
+    }
+}
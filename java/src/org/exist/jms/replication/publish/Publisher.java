@@ -0,0 +1,709 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.HybridLogicalClock;
+import org.exist.jms.shared.Identity;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.ResourceClocks;
+import org.exist.jms.shared.eXistMessage;
+
+import org.exist.jms.replication.shared.BlobStore;
+import org.exist.jms.replication.shared.DeltaCache;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.PayloadCodec;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+
+/**
+ * Long-lived publisher for one replication trigger configuration. Instances
+ * are shared by all trigger instances with the same configuration, see
+ * {@link PublisherRegistry}.
+ *
+ * @author Dannes Wessels
+ */
+public class Publisher implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(Publisher.class);
+
+    private final int id;
+    private final String key;
+    private final PublisherParameters parameters;
+    private final MessageSender sender;
+
+    private AsyncMessageSender asyncSender = null;
+    private JournalMessageSender journalSender = null;
+    private LaneRouter laneRouter = null;
+    private DeltaEncoder deltaEncoder = null;
+    private ContentHashCache contentHashCache = null;
+    private Coalescer coalescer = null;
+    private BlobStore blobStore = null;
+    private InFlightBudget budget = null;
+    private final ReplicationFilter filter;
+
+    /**
+     * Messages of running database transactions, by transaction id.
+     */
+    private final Map<Long, List<eXistMessage>> transactions = new ConcurrentHashMap<>();
+
+    private static int lastId = 0;
+
+    private static synchronized int createNewId() {
+        lastId++;
+        return lastId;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param key Key of the configuration in the registry
+     * @param parameters Processed publisher parameters
+     * @param journalDir Directory of the journal, NULL when not journaled
+     * @param deltaDir Directory of the delta cache, NULL when no deltas are sent
+     * @param brokerPool The database, to read documents after the debounce window
+     * @throws TransportException The journal or delta cache could not be opened.
+     */
+    Publisher(String key, PublisherParameters parameters, Path journalDir, Path deltaDir, BrokerPool brokerPool) throws TransportException {
+        this.id = createNewId();
+        this.key = key;
+        this.parameters = parameters;
+
+        this.filter = new ReplicationFilter(parameters.getInclude(), parameters.getExclude(),
+                parameters.getIncludeMimeTypes(), parameters.getExcludeMimeTypes(), parameters.getMaxSize());
+
+        // Optionally detect updates without content change
+        if (parameters.getUnchangedPolicy() != PublisherParameters.UnchangedPolicy.SEND) {
+            contentHashCache = new ContentHashCache(parameters.getUnchangedCacheSize());
+        }
+
+        // Optionally limit the data in flight, shared by all publishers
+        if (parameters.getBudgetBytes() > 0 || parameters.getBudgetMessages() > 0) {
+            budget = InFlightBudget.getInstance();
+            budget.configure(parameters.getBudgetBytes(), parameters.getBudgetMessages());
+        }
+
+        // Optionally send large binaries by reference
+        if (parameters.getBlobStore() != null) {
+            try {
+                blobStore = new BlobStore(Paths.get(parameters.getBlobStore()));
+            } catch (IOException ex) {
+                throw new TransportException(String.format("Unable to open blob store %s: %s", parameters.getBlobStore(), ex.getMessage()), ex);
+            }
+        }
+
+        // Optionally send XML updates as delta
+        if (deltaDir != null) {
+            try {
+                deltaEncoder = new DeltaEncoder(deltaDir, parameters.getDeltaCacheSize(), parameters.getDeltaFullInterval());
+            } catch (IOException ex) {
+                throw new TransportException(String.format("Unable to open delta cache %s: %s", deltaDir, ex.getMessage()), ex);
+            }
+        }
+
+        // Default lane, using the destination of the configuration
+        LaneRouter.Route defaultRoute = createRoute(parameters.getDefaultLane(), journalDir);
+        asyncSender = defaultRoute.asyncSender;
+        journalSender = defaultRoute.journalSender;
+
+        // Optionally route messages to separate lanes
+        if (parameters.getLanes().isEmpty()) {
+            sender = defaultRoute.sender;
+
+        } else {
+            List<LaneRouter.Route> routes = new ArrayList<>();
+            for (PublisherLane lane : parameters.getLanes()) {
+                routes.add(createRoute(lane, journalDir == null ? null : journalDir.resolve(lane.getName())));
+            }
+            laneRouter = new LaneRouter(routes, defaultRoute);
+            sender = laneRouter;
+        }
+
+        // Optionally collapse bursts of changes of a document
+        if (parameters.getDebounce() > 0) {
+            coalescer = new Coalescer(this, sender, brokerPool, parameters.getDebounce(), "jms-publisher-" + id);
+        }
+    }
+
+    /**
+     * Create sender chain of a lane: JMS sender, optionally preceded by the
+     * journal or the asynchronous queue.
+     */
+    private LaneRouter.Route createRoute(PublisherLane lane, Path journalDir) throws TransportException {
+
+        MessageSender jmsSender = new JMSMessageSender(parameters, lane);
+
+        String name = PublisherLane.DEFAULT.equals(lane.getName())
+                ? "jms-publisher-" + id : "jms-publisher-" + id + "-" + lane.getName();
+
+        // Optionally journal the messages; sending is done by the replayer
+        if (journalDir != null) {
+            if (parameters.isAsync()) {
+                LOG.info(String.format("Journal is enabled, '%s' is ignored.", PublisherParameters.ASYNC));
+            }
+            JournalMessageSender journal = new JournalMessageSender(jmsSender, lane.getDestination(), journalDir, parameters.getJournalSegmentSize(),
+                    parameters.isJournalSync(), parameters.getSpillThreshold(), name);
+            return new LaneRouter.Route(lane, journal, null, journal);
+
+        } else if (parameters.isAsync()) {
+            // Optionally take sending off the thread of the transaction
+            AsyncMessageSender async = new AsyncMessageSender(jmsSender, parameters.getAsyncQueueSize(),
+                    parameters.getAsyncOverflowPolicy(), name, this::forgetUnsent);
+            return new LaneRouter.Route(lane, async, async, null);
+
+        } else {
+            return new LaneRouter.Route(lane, jmsSender, null, null);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public PublisherParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return The include and exclude rules
+     */
+    public ReplicationFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return The delta encoder, NULL when no deltas are sent.
+     */
+    public DeltaEncoder getDeltaEncoder() {
+        return deltaEncoder;
+    }
+
+    /**
+     * @return Cache of published content hashes, NULL when unchanged
+     * documents are sent.
+     */
+    public ContentHashCache getContentHashCache() {
+        return contentHashCache;
+    }
+
+    /**
+     * Create message for created or updated document, with the serialized
+     * content as payload.
+     *
+     * @param broker The broker
+     * @param transaction The database transaction, NULL when not available
+     * @param document The document
+     * @param operation CREATE or UPDATE
+     * @return The message, NULL when the content is not changed and the
+     * update must not be sent.
+     */
+    public eXistMessage createDocumentMessage(DBBroker broker, Txn transaction, DocumentImpl document,
+                                              eXistMessage.ResourceOperation operation) {
+
+        // Create Message
+        eXistMessage msg = new eXistMessage();
+        msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        msg.setResourceOperation(operation);
+        msg.setResourcePath(document.getURI().toString());
+
+        // Retrieve Metadata
+        Map<String, Object> md = msg.getMetadata();
+        MessageHelper.retrieveDocMetadata(md, document.getMetadata());
+        MessageHelper.retrieveFromDocument(md, document);
+        MessageHelper.retrievePermission(md, document.getPermissions());
+
+        String hash = null;
+
+        // Serialize document, large documents are written to a temporary file
+        try {
+            PayloadCodec codec = parameters.getCompression();
+            int level = parameters.getCompressionLevel();
+            int threshold = parameters.getSpillThreshold();
+
+            // The receiver selects the codec by the content encoding
+            md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, codec.getName());
+
+            if (blobStore != null && document.getResourceType() == DocumentImpl.BINARY_FILE
+                    && document.getContentLength() >= parameters.getBlobStoreThreshold()) {
+                // Only the reference is sent
+                hash = blobStore.store((os) -> broker.readBinaryResource((BinaryDocument) document, os));
+                md.remove(MessageHelper.EXIST_MESSAGE_CONTENTENCODING);
+                md.put(MessageHelper.EXIST_BLOB_HASH, hash);
+                md.put(MessageHelper.EXIST_BLOB_SIZE, blobStore.size(hash));
+
+            } else if (deltaEncoder != null && document.getResourceType() == DocumentImpl.XML_FILE) {
+                deltaEncoder.encode(broker, transaction, document, msg, codec, level, threshold);
+                hash = (String) md.get(MessageHelper.EXIST_DELTA_HASH);
+
+            } else {
+                // The hash is calculated while the payload is written
+                MessageDigest digest = (contentHashCache == null) ? null : DeltaCache.createDigest();
+                msg.setPayload(MessageHelper.serialize(broker, document, codec, level, threshold, digest));
+                if (digest != null) {
+                    hash = DeltaCache.toHash(digest);
+                }
+            }
+
+        } catch (Throwable ex) {
+            LOG.error(String.format("Problem while serializing document (contentLength=%s) to compressed message:%s",
+                    document.getContentLength(), ex.getMessage()), ex);
+        }
+
+        // Updates that do not change the content
+        if (contentHashCache != null && hash != null && isUnchanged(transaction, document, msg, hash)) {
+            return null;
+        }
+
+        return msg;
+    }
+
+    /**
+     * Register hash of published content; for updates that do not change
+     * the content the payload is removed and the message is either dropped or
+     * turned into a METADATA message.
+     *
+     * @return TRUE when the message must not be sent.
+     */
+    private boolean isUnchanged(Txn transaction, DocumentImpl document, eXistMessage msg, String hash) {
+
+        final int docId = document.getDocId();
+        boolean unchanged = contentHashCache.isUnchanged(docId, hash);
+
+        // Subscribers never see an aborted version
+        if (transaction != null) {
+            transaction.registerListener(new TxnListener() {
+                @Override
+                public void commit() {
+                    // Nothing to do
+                }
+
+                @Override
+                public void abort() {
+                    contentHashCache.remove(docId);
+                }
+            });
+        }
+
+        if (!unchanged || msg.getResourceOperation() == eXistMessage.ResourceOperation.CREATE) {
+            return false;
+        }
+
+        msg.releasePayload();
+
+        if (parameters.getUnchangedPolicy() == PublisherParameters.UnchangedPolicy.SUPPRESS) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Content of %s is not changed, update is not sent.", document.getURI()));
+            }
+            return true;
+        }
+
+        // Only the metadata and permissions
+        msg.setResourceOperation(eXistMessage.ResourceOperation.METADATA);
+        Map<String, Object> md = msg.getMetadata();
+        md.remove(MessageHelper.EXIST_MESSAGE_CONTENTENCODING);
+        md.remove(MessageHelper.EXIST_DELTA_HASH);
+        md.remove(MessageHelper.EXIST_DELTA_BASE_HASH);
+        md.remove(MessageHelper.EXIST_DELTA_PREFIX);
+        md.remove(MessageHelper.EXIST_DELTA_SUFFIX);
+        md.remove(MessageHelper.EXIST_BLOB_HASH);
+        md.remove(MessageHelper.EXIST_BLOB_SIZE);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Content of %s is not changed, sending metadata only.", document.getURI()));
+        }
+        return false;
+    }
+
+    /**
+     * Publish created or updated document. With a debounce window only the
+     * change is registered, the document is serialized when the window
+     * expires.
+     *
+     * @param broker The broker
+     * @param transaction The database transaction, NULL to send immediately
+     * @param document The document
+     * @param operation CREATE or UPDATE
+     * @throws TransportException Thrown when something bad happens.
+     */
+    public void publishDocument(DBBroker broker, Txn transaction, DocumentImpl document,
+                                eXistMessage.ResourceOperation operation) throws TransportException {
+
+        eXistMessage em;
+        if (coalescer != null) {
+            em = new eXistMessage();
+            em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+            em.setResourceOperation(operation);
+            em.setResourcePath(document.getURI().toString());
+
+        } else {
+            em = createDocumentMessage(broker, transaction, document, operation);
+            if (em == null) {
+                return;
+            }
+        }
+
+        sendMessage(transaction, em);
+    }
+
+    /**
+     * Forget what was published for the document, e.g. when it is changed
+     * by replication; the next update is sent completely.
+     *
+     * @param document The document
+     */
+    public void forget(DocumentImpl document) {
+
+        if (contentHashCache != null) {
+            contentHashCache.remove(document.getDocId());
+        }
+
+        if (deltaEncoder != null) {
+            deltaEncoder.remove(document.getURI().toString());
+        }
+    }
+
+    /**
+     * Send {@link eXistMessage} to message broker.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException Thrown when something bad happens.
+     */
+    @Override
+    public void sendMessage(eXistMessage em) throws TransportException {
+        try {
+            if (coalescer != null) {
+                coalescer.submit(Collections.singletonList(em));
+                return;
+            }
+
+            stamp(Collections.singletonList(em));
+            admit(Collections.singletonList(em));
+            sender.sendMessage(em);
+
+        } catch (TransportException ex) {
+            forgetUnsent(Collections.singletonList(em));
+            em.releasePayload();
+            throw ex;
+        }
+    }
+
+    /**
+     * Forget what was published for the documents of messages that could
+     * not be sent, so the next update is sent completely and not as a delta
+     * against a version the subscribers do not have, nor suppressed as
+     * unchanged.
+     *
+     * @param messages The messages that are not sent
+     */
+    void forgetUnsent(List<eXistMessage> messages) {
+
+        for (eXistMessage em : messages) {
+            if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT || em.getResourcePath() == null) {
+                continue;
+            }
+
+            Object docId = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_DOCUMENTID);
+            if (contentHashCache != null && docId instanceof Number) {
+                contentHashCache.remove(((Number) docId).intValue());
+            }
+
+            if (deltaEncoder != null) {
+                deltaEncoder.remove(em.getResourcePath());
+            }
+        }
+    }
+
+    /**
+     * Stamp messages that are handed over for sending with a timestamp of
+     * the hybrid logical clock. The changes are registered as local changes
+     * of the resources, so older changes of other instances are not applied.
+     *
+     * @param messages The messages
+     */
+    void stamp(List<eXistMessage> messages) {
+
+        String origin = Identity.getInstance().getIdentity();
+
+        // Loading the stored timestamps seeds the clock
+        ResourceClocks clocks = ResourceClocks.getInstance();
+
+        for (eXistMessage em : messages) {
+            long timestamp = HybridLogicalClock.getInstance().now();
+            em.getMetadata().put(Constants.EXIST_HLC, timestamp);
+
+            clocks.update(ResourceClocks.getChangedPaths(em.getResourceOperation(),
+                    em.getResourcePath(), em.getDestinationPath()), timestamp, origin);
+        }
+    }
+
+    /**
+     * Reserve in-flight budget for messages that are handed over for
+     * sending; the budget is returned when the payload of a message is
+     * released. Depending on the policy the caller waits for the budget, the
+     * payloads are written to disk or the messages are rejected.
+     *
+     * @param messages The messages
+     * @throws TransportException The budget is not available.
+     */
+    void admit(List<eXistMessage> messages) throws TransportException {
+
+        if (budget == null || messages.isEmpty()) {
+            return;
+        }
+
+        PublisherParameters.BudgetPolicy policy = parameters.getBudgetPolicy();
+
+        long bytes = 0;
+        for (eXistMessage em : messages) {
+            if (em.isPayloadInMemory()) {
+                bytes += em.getPayloadLength();
+            }
+        }
+
+        try {
+            boolean admitted = budget.acquire(bytes, messages.size(),
+                    policy == PublisherParameters.BudgetPolicy.BLOCK ? parameters.getBudgetTimeout() : 0);
+
+            // Payloads on disk do not count, only the number of messages
+            if (!admitted && policy == PublisherParameters.BudgetPolicy.SPILL) {
+                spill(messages);
+                admitted = budget.acquire(0, messages.size(), parameters.getBudgetTimeout());
+            }
+
+            if (!admitted) {
+                if (policy == PublisherParameters.BudgetPolicy.REJECT) {
+                    budget.incRejected();
+                }
+                throw new TransportException(String.format("In-flight budget is exceeded, %s message(s) not sent.", messages.size()));
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TransportException(String.format("Interrupted while waiting for in-flight budget: %s", ex.getMessage()), ex);
+        }
+
+        for (eXistMessage em : messages) {
+            long size = em.isPayloadInMemory() ? em.getPayloadLength() : 0;
+            em.setReleaseListener(() -> budget.release(size, 1));
+        }
+    }
+
+    /**
+     * Move payloads that are kept in memory to temporary files.
+     */
+    private void spill(List<eXistMessage> messages) throws TransportException {
+
+        int count = 0;
+        for (eXistMessage em : messages) {
+            if (!em.isPayloadInMemory() || em.getPayloadLength() == 0) {
+                continue;
+            }
+
+            PayloadBuffer buffer = new PayloadBuffer(0);
+            try (InputStream is = em.getPayloadInputStream()) {
+                byte[] data = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(data)) != -1) {
+                    buffer.write(data, 0, read);
+                }
+                buffer.close();
+
+            } catch (IOException ex) {
+                buffer.release();
+                throw new TransportException(String.format("Unable to write payload of %s to disk: %s", em.getResourcePath(), ex.getMessage()), ex);
+            }
+
+            em.setPayload(buffer);
+            count++;
+        }
+
+        budget.incSpilled(count);
+    }
+
+    /**
+     * Send {@link eXistMessage} when the database transaction is committed.
+     * All messages of a transaction are sent as one batch (one JMS
+     * transaction); the messages are discarded when the transaction is
+     * aborted.
+     *
+     * @param transaction The database transaction, NULL to send immediately
+     * @param em The message that needs to be sent
+     * @throws TransportException Thrown when something bad happens.
+     */
+    public void sendMessage(Txn transaction, eXistMessage em) throws TransportException {
+
+        if (transaction == null || !parameters.isTransactional()) {
+            sendMessage(em);
+            return;
+        }
+
+        List<eXistMessage> messages = transactions.computeIfAbsent(transaction.getId(), (txnId) -> {
+            transaction.registerListener(new TxnListener() {
+                @Override
+                public void commit() {
+                    flush(txnId);
+                }
+
+                @Override
+                public void abort() {
+                    List<eXistMessage> discarded = transactions.remove(txnId);
+                    if (discarded != null) {
+                        discarded.forEach(eXistMessage::releasePayload);
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(String.format("Transaction %s aborted, %s message(s) discarded.", txnId, discarded.size()));
+                        }
+                    }
+                }
+            });
+            return Collections.synchronizedList(new ArrayList<>());
+        });
+
+        messages.add(em);
+    }
+
+    /**
+     * Send all messages of committed transaction.
+     */
+    private void flush(long txnId) {
+
+        List<eXistMessage> messages = transactions.remove(txnId);
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+
+        try {
+            synchronized (messages) {
+                if (coalescer != null) {
+                    coalescer.submit(messages);
+                } else {
+                    stamp(messages);
+                    admit(messages);
+                    sender.sendMessages(messages);
+                }
+            }
+
+        } catch (TransportException ex) {
+            LOG.error(String.format("Unable to send %s message(s) of transaction %s: %s", messages.size(), txnId, ex.getMessage()), ex);
+            forgetUnsent(messages);
+            messages.forEach(eXistMessage::releasePayload);
+
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            forgetUnsent(messages);
+            messages.forEach(eXistMessage::releasePayload);
+        }
+    }
+
+    /**
+     * Close the publisher, all JMS resources are released.
+     */
+    @Override
+    public void close() {
+        LOG.info(String.format("Closing publisher. %s", parameters.getReport()));
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        sender.close();
+    }
+
+    /**
+     * Write report about configuration and statistics.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(MemTreeBuilder builder) {
+
+        builder.startElement("", "Publisher", "Publisher", null);
+        builder.addAttribute(new QName("id", null, null), "" + id);
+
+        builder.startElement("", Context.PROVIDER_URL, Context.PROVIDER_URL, null);
+        builder.characters(parameters.getProviderUrl());
+        builder.endElement();
+
+        builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+        builder.characters(parameters.getDestination());
+        builder.endElement();
+
+        builder.startElement("", "openTransactions", "openTransactions", null);
+        builder.characters("" + transactions.size());
+        builder.endElement();
+
+        if (budget != null) {
+            budget.write(builder);
+        }
+
+        if (laneRouter != null) {
+            laneRouter.write(builder);
+
+        } else {
+            if (asyncSender != null) {
+                asyncSender.write(builder);
+            }
+
+            if (journalSender != null) {
+                journalSender.write(builder);
+            }
+        }
+
+        if (coalescer != null) {
+            coalescer.write(builder);
+        }
+
+        if (contentHashCache != null) {
+            contentHashCache.write(builder);
+        }
+
+        if (deltaEncoder != null) {
+            deltaEncoder.write(builder);
+        }
+
+        builder.endElement();
+    }
+}
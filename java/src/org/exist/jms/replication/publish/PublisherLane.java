@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.Set;
+
+import org.exist.jms.shared.eXistMessage;
+
+/**
+ * Lane of replication traffic: a destination with its own priority and
+ * time-to-live, served by its own sender. Messages are routed by resource
+ * type, operation and payload size.
+ *
+ * @author Dannes Wessels
+ */
+public class PublisherLane {
+
+    /**
+     * Name of the lane for messages that do not match any configured lane.
+     */
+    public static final String DEFAULT = "default";
+
+    private final String name;
+    private final String destination;
+    private final Integer priority;
+    private final Long timeToLive;
+
+    private final Set<eXistMessage.ResourceType> resourceTypes;
+    private final Set<eXistMessage.ResourceOperation> operations;
+    private final long minSize;
+    private final long maxSize;
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the lane
+     * @param destination JNDI name of the destination
+     * @param priority Priority of the messages, NULL for the JMS default
+     * @param timeToLive Time to live of the messages, NULL for the JMS default
+     * @param resourceTypes Matching resource types, empty for all
+     * @param operations Matching operations, empty for all
+     * @param minSize Minimum size of the payload
+     * @param maxSize Maximum size of the payload, -1 for no limit
+     */
+    public PublisherLane(String name, String destination, Integer priority, Long timeToLive,
+                         Set<eXistMessage.ResourceType> resourceTypes, Set<eXistMessage.ResourceOperation> operations,
+                         long minSize, long maxSize) {
+        this.name = name;
+        this.destination = destination;
+        this.priority = priority;
+        this.timeToLive = timeToLive;
+        this.resourceTypes = resourceTypes;
+        this.operations = operations;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public Integer getPriority() {
+        return priority;
+    }
+
+    public Long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Check if the message belongs to this lane.
+     *
+     * @param em The message, with payload
+     * @return TRUE when resource type, operation and payload size match.
+     */
+    public boolean matches(eXistMessage em) {
+
+        if (!resourceTypes.isEmpty() && !resourceTypes.contains(em.getResourceType())) {
+            return false;
+        }
+
+        if (!operations.isEmpty() && !operations.contains(em.getResourceOperation())) {
+            return false;
+        }
+
+        long size = em.getPayloadLength();
+        return size >= minSize && (maxSize < 0 || size <= maxSize);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s='%s'", name, destination);
+    }
+}
@@ -21,10 +21,23 @@
  */
 package org.exist.jms.replication.publish;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
 import javax.naming.Context;
 
 import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.eXistMessage;
 import org.exist.jms.replication.shared.ClientParameters;
+import org.exist.jms.replication.shared.PayloadCodec;
+import org.exist.jms.replication.shared.PayloadCodecs;
 import org.exist.jms.replication.shared.TransportException;
 
 
@@ -37,10 +50,125 @@ public class PublisherParameters extends ClientParameters {
 
     public static final String TIME_TO_LIVE = Constants.PRODUCER_TTL; //"time-to-live";
     public static final String PRIORITY = Constants.PRODUCER_PRIORITY; //"priority";
+
+    public static final String ASYNC = "publisher.async";
+    public static final String ASYNC_QUEUE_SIZE = "publisher.async.queue-size";
+    public static final String ASYNC_OVERFLOW = "publisher.async.overflow";
+
+    public static final String TRANSACTIONAL = "publisher.transactional";
+
+    public static final String SPILL_THRESHOLD = "publisher.spill-threshold";
+    public static final String CHUNK_SIZE = "publisher.chunk-size";
+
+    public static final String COMPRESSION = "publisher.compression";
+    public static final String COMPRESSION_LEVEL = "publisher.compression.level";
+
+    public static final String INCLUDE = "publisher.include";
+    public static final String EXCLUDE = "publisher.exclude";
+    public static final String INCLUDE_MIME_TYPES = "publisher.include-mime-types";
+    public static final String EXCLUDE_MIME_TYPES = "publisher.exclude-mime-types";
+    public static final String MAX_SIZE = "publisher.max-size";
+
+    public static final String DEBOUNCE = "publisher.debounce";
+
+    public static final String BUDGET_BYTES = "publisher.budget.bytes";
+    public static final String BUDGET_MESSAGES = "publisher.budget.messages";
+    public static final String BUDGET_POLICY = "publisher.budget.policy";
+    public static final String BUDGET_TIMEOUT = "publisher.budget.timeout";
+
+    public static final String BLOB_STORE = "publisher.blob-store";
+    public static final String BLOB_STORE_THRESHOLD = "publisher.blob-store.threshold";
+
+    public static final String UNCHANGED = "publisher.unchanged";
+    public static final String UNCHANGED_CACHE_SIZE = "publisher.unchanged.cache-size";
+
+    public static final String DELTA = "publisher.delta";
+    public static final String DELTA_DIR = "publisher.delta.dir";
+    public static final String DELTA_CACHE_SIZE = "publisher.delta.cache-size";
+    public static final String DELTA_FULL_INTERVAL = "publisher.delta.full-interval";
+
+    public static final String JOURNAL = "publisher.journal";
+    public static final String JOURNAL_DIR = "publisher.journal.dir";
+    public static final String JOURNAL_SEGMENT_SIZE = "publisher.journal.segment-size";
+    public static final String JOURNAL_SYNC = "publisher.journal.sync";
+
+    public static final String LANES = "publisher.lanes";
+    public static final String LANE_PREFIX = "lane.";
+    public static final String LANE_DESTINATION = "destination";
+    public static final String LANE_PRIORITY = "priority";
+    public static final String LANE_TIME_TO_LIVE = "time-to-live";
+    public static final String LANE_RESOURCE_TYPES = "resource-types";
+    public static final String LANE_OPERATIONS = "operations";
+    public static final String LANE_MIN_SIZE = "min-size";
+    public static final String LANE_MAX_SIZE = "max-size";
+
+    /**
+     * What to do when the asynchronous queue is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP
+    }
+
+    /**
+     * What to do when the in-flight budget is exceeded
+     */
+    public enum BudgetPolicy {
+        BLOCK, SPILL, REJECT
+    }
+
+    /**
+     * What to do with updates that do not change the content of a document
+     */
+    public enum UnchangedPolicy {
+        SEND, SUPPRESS, METADATA
+    }
     
     private Long timeToLive;
     private Integer priority;
 
+    private boolean async = false;
+    private int asyncQueueSize = 1000;
+    private OverflowPolicy asyncOverflowPolicy = OverflowPolicy.BLOCK;
+
+    private boolean transactional = false;
+
+    private int spillThreshold = PayloadBuffer.DEFAULT_THRESHOLD;
+    private int chunkSize = 0;
+
+    private PayloadCodec compression;
+    private int compressionLevel = PayloadCodec.DEFAULT_LEVEL;
+
+    private List<String> include = Collections.emptyList();
+    private List<String> exclude = Collections.emptyList();
+    private List<String> includeMimeTypes = Collections.emptyList();
+    private List<String> excludeMimeTypes = Collections.emptyList();
+    private long maxSize = -1;
+
+    private long debounce = 0;
+
+    private long budgetBytes = 0;
+    private long budgetMessages = 0;
+    private BudgetPolicy budgetPolicy = BudgetPolicy.BLOCK;
+    private long budgetTimeout = 30000;
+
+    private String blobStore;
+    private long blobStoreThreshold = 1024 * 1024;
+
+    private UnchangedPolicy unchangedPolicy = UnchangedPolicy.SEND;
+    private int unchangedCacheSize = 10000;
+
+    private boolean delta = false;
+    private String deltaDir;
+    private int deltaCacheSize = 100;
+    private int deltaFullInterval = 10;
+
+    private boolean journal = false;
+    private String journalDir;
+    private int journalSegmentSize = 64 * 1024 * 1024;
+    private boolean journalSync = true;
+
+    private final List<PublisherLane> lanes = new ArrayList<>();
+
     public Long getTimeToLive() {
         return timeToLive;
     }
@@ -49,6 +177,141 @@ public class PublisherParameters extends ClientParameters {
         return priority;
     }
 
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public OverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public PayloadCodec getCompression() {
+        return compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public List<String> getInclude() {
+        return include;
+    }
+
+    public List<String> getExclude() {
+        return exclude;
+    }
+
+    public List<String> getIncludeMimeTypes() {
+        return includeMimeTypes;
+    }
+
+    public List<String> getExcludeMimeTypes() {
+        return excludeMimeTypes;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getDebounce() {
+        return debounce;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getBudgetMessages() {
+        return budgetMessages;
+    }
+
+    public BudgetPolicy getBudgetPolicy() {
+        return budgetPolicy;
+    }
+
+    public long getBudgetTimeout() {
+        return budgetTimeout;
+    }
+
+    public String getBlobStore() {
+        return blobStore;
+    }
+
+    public long getBlobStoreThreshold() {
+        return blobStoreThreshold;
+    }
+
+    public UnchangedPolicy getUnchangedPolicy() {
+        return unchangedPolicy;
+    }
+
+    public int getUnchangedCacheSize() {
+        return unchangedCacheSize;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public String getDeltaDir() {
+        return deltaDir;
+    }
+
+    public int getDeltaCacheSize() {
+        return deltaCacheSize;
+    }
+
+    public int getDeltaFullInterval() {
+        return deltaFullInterval;
+    }
+
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    public boolean isJournalSync() {
+        return journalSync;
+    }
+
+    /**
+     * @return The configured lanes, in order of evaluation
+     */
+    public List<PublisherLane> getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return Lane for messages that do not match any configured lane.
+     */
+    public PublisherLane getDefaultLane() {
+        return new PublisherLane(PublisherLane.DEFAULT, topic, priority, timeToLive,
+                Collections.emptySet(), Collections.emptySet(), 0, -1);
+    }
+
     @Override
     public void processParameters() throws TransportException {
         
@@ -118,6 +381,317 @@ public class PublisherParameters extends ClientParameters {
         // Get connection authentication
         connectionUsername = props.getProperty(Constants.JMS_CONNECTION_USERNAME);
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
+
+        // Asynchronous publishing
+        async = getBooleanValue(ASYNC, async);
+        asyncQueueSize = getIntValue(ASYNC_QUEUE_SIZE, asyncQueueSize);
+        if (asyncQueueSize < 1) {
+            String errorText = "'" + ASYNC_QUEUE_SIZE + "' must be larger than 0.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        value = props.getProperty(ASYNC_OVERFLOW);
+        if (value != null && !value.equals("")) {
+            try {
+                asyncOverflowPolicy = OverflowPolicy.valueOf(value.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex) {
+                String errorText = "'" + ASYNC_OVERFLOW + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Send messages at commit of transaction
+        transactional = getBooleanValue(TRANSACTIONAL, transactional);
+
+        // Size of serialized documents kept in memory
+        spillThreshold = getIntValue(SPILL_THRESHOLD, spillThreshold);
+        if (spillThreshold < 0) {
+            String errorText = "'" + SPILL_THRESHOLD + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Split large payloads into chunks, 0 is disabled
+        chunkSize = getIntValue(CHUNK_SIZE, chunkSize);
+        if (chunkSize < 0) {
+            String errorText = "'" + CHUNK_SIZE + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Compression of the payload
+        try {
+            compression = PayloadCodecs.getCodec(props.getProperty(COMPRESSION));
+        } catch (IOException ex) {
+            String errorText = "'" + COMPRESSION + "': " + ex.getMessage();
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        compressionLevel = getIntValue(COMPRESSION_LEVEL, compressionLevel);
+        if (compressionLevel < PayloadCodec.DEFAULT_LEVEL) {
+            String errorText = "'" + COMPRESSION_LEVEL + "' must not be smaller than " + PayloadCodec.DEFAULT_LEVEL + ".";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Filter rules, evaluated before serialization
+        include = getListValue(INCLUDE);
+        exclude = getListValue(EXCLUDE);
+        includeMimeTypes = getListValue(INCLUDE_MIME_TYPES);
+        excludeMimeTypes = getListValue(EXCLUDE_MIME_TYPES);
+        maxSize = getLongValue(MAX_SIZE, maxSize);
+
+        // Collapse changes of a document within this period (ms), 0 is disabled
+        debounce = getLongValue(DEBOUNCE, debounce);
+        if (debounce < 0) {
+            String errorText = "'" + DEBOUNCE + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // In-flight budget, 0 is no limit
+        budgetBytes = getLongValue(BUDGET_BYTES, budgetBytes);
+        budgetMessages = getLongValue(BUDGET_MESSAGES, budgetMessages);
+        if (budgetBytes < 0 || budgetMessages < 0) {
+            String errorText = "'" + BUDGET_BYTES + "' and '" + BUDGET_MESSAGES + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        value = props.getProperty(BUDGET_POLICY);
+        if (value != null && !value.equals("")) {
+            try {
+                budgetPolicy = BudgetPolicy.valueOf(value.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex) {
+                String errorText = "'" + BUDGET_POLICY + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        budgetTimeout = getLongValue(BUDGET_TIMEOUT, budgetTimeout);
+        if (budgetTimeout < 0) {
+            String errorText = "'" + BUDGET_TIMEOUT + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Binary documents by reference
+        value = props.getProperty(BLOB_STORE);
+        if (value != null && !value.equals("")) {
+            blobStore = value;
+        }
+
+        blobStoreThreshold = getLongValue(BLOB_STORE_THRESHOLD, blobStoreThreshold);
+        if (blobStoreThreshold < 0) {
+            String errorText = "'" + BLOB_STORE_THRESHOLD + "' must not be negative.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Updates without content change
+        value = props.getProperty(UNCHANGED);
+        if (value != null && !value.equals("")) {
+            try {
+                unchangedPolicy = UnchangedPolicy.valueOf(value.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException ex) {
+                String errorText = "'" + UNCHANGED + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        unchangedCacheSize = getIntValue(UNCHANGED_CACHE_SIZE, unchangedCacheSize);
+        if (unchangedCacheSize < 1) {
+            String errorText = "'" + UNCHANGED_CACHE_SIZE + "' must be larger than 0.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Delta updates of XML documents
+        delta = getBooleanValue(DELTA, delta);
+        deltaCacheSize = getIntValue(DELTA_CACHE_SIZE, deltaCacheSize);
+        if (deltaCacheSize < 1) {
+            String errorText = "'" + DELTA_CACHE_SIZE + "' must be larger than 0.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        deltaFullInterval = getIntValue(DELTA_FULL_INTERVAL, deltaFullInterval);
+        if (deltaFullInterval < 1) {
+            String errorText = "'" + DELTA_FULL_INTERVAL + "' must be larger than 0.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        value = props.getProperty(DELTA_DIR);
+        if (value != null && !value.equals("")) {
+            deltaDir = value;
+        }
+
+        // Journal of outgoing messages
+        journal = getBooleanValue(JOURNAL, journal);
+        journalSync = getBooleanValue(JOURNAL_SYNC, journalSync);
+        journalSegmentSize = getIntValue(JOURNAL_SEGMENT_SIZE, journalSegmentSize);
+        if (journalSegmentSize < 4096) {
+            String errorText = "'" + JOURNAL_SEGMENT_SIZE + "' must be at least 4096.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        value = props.getProperty(JOURNAL_DIR);
+        if (value != null && !value.equals("")) {
+            journalDir = value;
+        }
+
+        // Priority lanes, the first matching lane is used
+        lanes.clear();
+        for (String name : getListValue(LANES)) {
+            lanes.add(createLane(name));
+        }
+    }
+
+    /**
+     * Create lane from the 'lane.[name].*' parameters.
+     *
+     * @param name Name of the lane
+     * @return The lane
+     * @throws TransportException A parameter is missing or has a wrong value.
+     */
+    private PublisherLane createLane(String name) throws TransportException {
+
+        // The name is used for the journal directory and the client id
+        if (!name.matches("[A-Za-z0-9_-]+") || PublisherLane.DEFAULT.equals(name)) {
+            String errorText = "'" + LANES + "' contains wrong lane name '" + name + "'";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        String prefix = LANE_PREFIX + name + ".";
+
+        String destination = props.getProperty(prefix + LANE_DESTINATION);
+        if (destination == null || destination.equals("")) {
+            String errorText = "'" + prefix + LANE_DESTINATION + "' is not set.";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        // Not set: same as the default lane
+        Integer lanePriority = props.getProperty(prefix + LANE_PRIORITY) == null
+                ? priority : Integer.valueOf(getIntValue(prefix + LANE_PRIORITY, 4));
+        Long laneTimeToLive = props.getProperty(prefix + LANE_TIME_TO_LIVE) == null
+                ? timeToLive : Long.valueOf(getLongValue(prefix + LANE_TIME_TO_LIVE, 0));
+
+        Set<eXistMessage.ResourceType> resourceTypes = EnumSet.noneOf(eXistMessage.ResourceType.class);
+        Set<eXistMessage.ResourceOperation> operations = EnumSet.noneOf(eXistMessage.ResourceOperation.class);
+        try {
+            for (String type : getListValue(prefix + LANE_RESOURCE_TYPES)) {
+                resourceTypes.add(eXistMessage.ResourceType.valueOf(type.toUpperCase(Locale.ENGLISH)));
+            }
+            for (String operation : getListValue(prefix + LANE_OPERATIONS)) {
+                operations.add(eXistMessage.ResourceOperation.valueOf(operation.toUpperCase(Locale.ENGLISH)));
+            }
+        } catch (IllegalArgumentException ex) {
+            String errorText = "Lane '" + name + "' contains wrong resource type or operation. " + ex.getMessage();
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        long minSize = getLongValue(prefix + LANE_MIN_SIZE, 0);
+        long maxSize = getLongValue(prefix + LANE_MAX_SIZE, -1);
+
+        return new PublisherLane(name, destination, lanePriority, laneTimeToLive,
+                resourceTypes, operations, minSize, maxSize);
+    }
+
+    /**
+     * Get yes/no value of parameter.
+     *
+     * @param name Name of parameter
+     * @param defaultValue Value used when parameter is not set
+     * @return The value
+     * @throws TransportException The value cannot be parsed.
+     */
+    protected boolean getBooleanValue(String name, boolean defaultValue) throws TransportException {
+        String value = props.getProperty(name);
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+
+        if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+            return false;
+
+        } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+            return true;
+
+        } else {
+            String errorText = "'" + name + "' contains wrong value '" + value + "'";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+    }
+
+    /**
+     * Get list of comma or whitespace separated values of parameter.
+     *
+     * @param name Name of parameter
+     * @return The values, empty when parameter is not set
+     */
+    protected List<String> getListValue(String name) {
+        String value = props.getProperty(name);
+        if (value == null || value.trim().equals("")) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(value.trim().split("[,\\s]+"));
+    }
+
+    /**
+     * Get integer value of parameter.
+     *
+     * @param name Name of parameter
+     * @param defaultValue Value used when parameter is not set
+     * @return The value
+     * @throws TransportException The value cannot be parsed.
+     */
+    protected int getIntValue(String name, int defaultValue) throws TransportException {
+        String value = props.getProperty(name);
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            String errorText = "Unable to set " + name + "; got '" + value + "'. " + ex.getMessage();
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+    }
+
+    /**
+     * Get long value of parameter.
+     *
+     * @param name Name of parameter
+     * @param defaultValue Value used when parameter is not set
+     * @return The value
+     * @throws TransportException The value cannot be parsed.
+     */
+    protected long getLongValue(String name, long defaultValue) throws TransportException {
+        String value = props.getProperty(name);
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            String errorText = "Unable to set " + name + "; got '" + value + "'. " + ex.getMessage();
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
     }
 
     @Override
@@ -142,6 +716,105 @@ public class PublisherParameters extends ClientParameters {
         sb.append(" ");
         
         sb.append(PRIORITY).append("='").append(priority).append("'");
+        sb.append(" ");
+
+        sb.append(TRANSACTIONAL).append("='").append(transactional).append("'");
+        sb.append(" ");
+
+        sb.append(COMPRESSION).append("='").append(compression == null ? null : compression.getName()).append("'");
+
+        if (compressionLevel != PayloadCodec.DEFAULT_LEVEL) {
+            sb.append(" ");
+            sb.append(COMPRESSION_LEVEL).append("='").append(compressionLevel).append("'");
+        }
+
+        if (chunkSize > 0) {
+            sb.append(" ");
+            sb.append(CHUNK_SIZE).append("='").append(chunkSize).append("'");
+        }
+
+        if (async) {
+            sb.append(" ");
+            sb.append(ASYNC_QUEUE_SIZE).append("='").append(asyncQueueSize).append("'");
+            sb.append(" ");
+            sb.append(ASYNC_OVERFLOW).append("='").append(asyncOverflowPolicy).append("'");
+        }
+
+        if (!include.isEmpty()) {
+            sb.append(" ");
+            sb.append(INCLUDE).append("='").append(String.join(",", include)).append("'");
+        }
+
+        if (!exclude.isEmpty()) {
+            sb.append(" ");
+            sb.append(EXCLUDE).append("='").append(String.join(",", exclude)).append("'");
+        }
+
+        if (!includeMimeTypes.isEmpty()) {
+            sb.append(" ");
+            sb.append(INCLUDE_MIME_TYPES).append("='").append(String.join(",", includeMimeTypes)).append("'");
+        }
+
+        if (!excludeMimeTypes.isEmpty()) {
+            sb.append(" ");
+            sb.append(EXCLUDE_MIME_TYPES).append("='").append(String.join(",", excludeMimeTypes)).append("'");
+        }
+
+        if (maxSize >= 0) {
+            sb.append(" ");
+            sb.append(MAX_SIZE).append("='").append(maxSize).append("'");
+        }
+
+        if (debounce > 0) {
+            sb.append(" ");
+            sb.append(DEBOUNCE).append("='").append(debounce).append("'");
+        }
+
+        if (budgetBytes > 0 || budgetMessages > 0) {
+            sb.append(" ");
+            sb.append(BUDGET_BYTES).append("='").append(budgetBytes).append("'");
+            sb.append(" ");
+            sb.append(BUDGET_MESSAGES).append("='").append(budgetMessages).append("'");
+            sb.append(" ");
+            sb.append(BUDGET_POLICY).append("='").append(budgetPolicy).append("'");
+            sb.append(" ");
+            sb.append(BUDGET_TIMEOUT).append("='").append(budgetTimeout).append("'");
+        }
+
+        if (blobStore != null) {
+            sb.append(" ");
+            sb.append(BLOB_STORE).append("='").append(blobStore).append("'");
+            sb.append(" ");
+            sb.append(BLOB_STORE_THRESHOLD).append("='").append(blobStoreThreshold).append("'");
+        }
+
+        if (unchangedPolicy != UnchangedPolicy.SEND) {
+            sb.append(" ");
+            sb.append(UNCHANGED).append("='").append(unchangedPolicy).append("'");
+            sb.append(" ");
+            sb.append(UNCHANGED_CACHE_SIZE).append("='").append(unchangedCacheSize).append("'");
+        }
+
+        if (delta) {
+            sb.append(" ");
+            sb.append(DELTA_CACHE_SIZE).append("='").append(deltaCacheSize).append("'");
+            sb.append(" ");
+            sb.append(DELTA_FULL_INTERVAL).append("='").append(deltaFullInterval).append("'");
+        }
+
+        if (!lanes.isEmpty()) {
+            sb.append(" ");
+            sb.append(LANES).append("='").append(lanes).append("'");
+        }
+
+        if (journal) {
+            sb.append(" ");
+            sb.append(JOURNAL_DIR).append("='").append(journalDir).append("'");
+            sb.append(" ");
+            sb.append(JOURNAL_SEGMENT_SIZE).append("='").append(journalSegmentSize).append("'");
+            sb.append(" ");
+            sb.append(JOURNAL_SYNC).append("='").append(journalSync).append("'");
+        }
         
         return sb.toString();
     }
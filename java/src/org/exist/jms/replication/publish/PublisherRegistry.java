@@ -0,0 +1,184 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.DatabaseShutdown;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+
+/**
+ * Registry of long-lived publishers, keyed by trigger configuration.
+ *
+ * eXist-db creates and configures a new trigger instance for each event; the
+ * registry makes sure the (expensive) JMS resources are created only once for
+ * each distinct configuration. All publishers are closed when the database
+ * shuts down.
+ *
+ * @author Dannes Wessels
+ */
+public class PublisherRegistry {
+
+    private final static Logger LOG = LogManager.getLogger(PublisherRegistry.class);
+
+    private final Map<String, Publisher> publishers = new ConcurrentHashMap<>();
+    private static PublisherRegistry instance;
+
+    private PublisherRegistry() {
+        DatabaseShutdown.register("jms-publisher-shutdown", PublisherRegistry::shutdownInstance);
+    }
+
+    /**
+     * Close all publishers and drop the registry, a restarted database gets
+     * a new one.
+     */
+    private static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    public synchronized static PublisherRegistry getInstance() {
+
+        if (null == instance) {
+            LOG.debug("Initializing JMS publisher registry");
+            instance = new PublisherRegistry();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Get publisher for trigger configuration, create one if not existent.
+     *
+     * @param broker The broker, used to find the data directory
+     * @param params Multi value trigger parameters
+     * @return The publisher
+     * @throws TransportException The configuration is not valid.
+     */
+    public Publisher getPublisher(DBBroker broker, Map<String, List<?>> params) throws TransportException {
+
+        PublisherParameters parameters = new PublisherParameters();
+        parameters.setMultiValueParameters(params);
+
+        String key = createKey(parameters.getProps());
+
+        Publisher publisher = publishers.get(key);
+        if (publisher == null) {
+            synchronized (publishers) {
+                publisher = publishers.get(key);
+                if (publisher == null) {
+
+                    // Get from .xconf file, fill defaults when needed
+                    parameters.processParameters();
+
+                    LOG.info(String.format("Creating new publisher. %s", parameters.getReport()));
+                    Path journalDir = parameters.isJournal()
+                            ? getDirectory(broker, parameters, parameters.getJournalDir(), PublisherParameters.JOURNAL_DIR, "jms-journal")
+                            : null;
+                    Path deltaDir = parameters.isDelta()
+                            ? getDirectory(broker, parameters, parameters.getDeltaDir(), PublisherParameters.DELTA_DIR, "jms-delta")
+                            : null;
+                    publisher = new Publisher(key, parameters, journalDir, deltaDir, broker.getBrokerPool());
+                    publishers.put(key, publisher);
+                }
+            }
+        }
+
+        return publisher;
+    }
+
+    /**
+     * Get all registered publishers.
+     *
+     * @return The publishers
+     */
+    public Collection<Publisher> getPublishers() {
+        return new ArrayList<>(publishers.values());
+    }
+
+    /**
+     * Close all publishers.
+     */
+    public void shutdown() {
+        synchronized (publishers) {
+            LOG.info(String.format("Closing %s publisher(s)", publishers.size()));
+            publishers.values().stream().forEach((publisher) -> {
+                try {
+                    publisher.close();
+                } catch (Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            });
+            publishers.clear();
+        }
+    }
+
+    /**
+     * Get directory of the journal or delta cache; by default a sub directory
+     * of the database data directory, derived from provider URL and
+     * destination.
+     */
+    private static Path getDirectory(DBBroker broker, PublisherParameters parameters, String configured,
+                                     String parameterName, String baseName) throws TransportException {
+
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+
+        Object dataDir = broker.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        if (dataDir == null) {
+            String errorText = "Unable to determine data directory, please set '" + parameterName + "'";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+
+        Path root = (dataDir instanceof Path) ? (Path) dataDir : Paths.get(dataDir.toString());
+        String name = String.format("%08x", (parameters.getProviderUrl() + "|" + parameters.getDestination()).hashCode());
+        return root.resolve(baseName).resolve(name);
+    }
+
+    /**
+     * Create key from the (sorted) configuration values.
+     */
+    private static String createKey(Properties props) {
+        Map<String, String> sorted = new TreeMap<>();
+        props.stringPropertyNames().stream().forEach((name) -> {
+            sorted.put(name, props.getProperty(name));
+        });
+        return sorted.toString();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.exist.dom.persistent.DocumentImpl;
+
+/**
+ * Include and exclude rules of the replication trigger, evaluated before any
+ * serialization work.
+ *
+ * Paths are matched against globs: '*' matches within one path segment, '?'
+ * one character and '**' any number of segments, e.g. '/db/tmp/**' or
+ * '/db/**&#47;*.log'. The globs are compiled into a trie of path segments,
+ * so the number of rules hardly affects the cost of a lookup. MIME types are
+ * matched exactly or by prefix ('text/*').
+ *
+ * @author Dannes Wessels
+ */
+public class ReplicationFilter {
+
+    private static final String ANY_SEGMENTS = "**";
+
+    /**
+     * Node of the trie, one per path segment.
+     */
+    private static class Node {
+
+        private final Map<String, Node> literals = new HashMap<>();
+        private final List<Pattern> wildcardPatterns = new ArrayList<>();
+        private final List<Node> wildcards = new ArrayList<>();
+        private Node anySegments = null;
+        private boolean terminal = false;
+
+        Node child(String segment) {
+
+            if (ANY_SEGMENTS.equals(segment)) {
+                if (anySegments == null) {
+                    anySegments = new Node();
+                }
+                return anySegments;
+            }
+
+            if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0) {
+                return literals.computeIfAbsent(segment, (key) -> new Node());
+            }
+
+            String regex = toRegex(segment);
+            for (int i = 0; i < wildcardPatterns.size(); i++) {
+                if (wildcardPatterns.get(i).pattern().equals(regex)) {
+                    return wildcards.get(i);
+                }
+            }
+
+            Node node = new Node();
+            wildcardPatterns.add(Pattern.compile(regex));
+            wildcards.add(node);
+            return node;
+        }
+
+        boolean matches(String[] segments, int index) {
+
+            if (index == segments.length) {
+                return terminal || (anySegments != null && anySegments.matches(segments, index));
+            }
+
+            // '**' matches zero or more segments
+            if (anySegments != null) {
+                for (int i = index; i <= segments.length; i++) {
+                    if (anySegments.matches(segments, i)) {
+                        return true;
+                    }
+                }
+            }
+
+            Node literal = literals.get(segments[index]);
+            if (literal != null && literal.matches(segments, index + 1)) {
+                return true;
+            }
+
+            for (int i = 0; i < wildcards.size(); i++) {
+                if (wildcardPatterns.get(i).matcher(segments[index]).matches()
+                        && wildcards.get(i).matches(segments, index + 1)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private final Node includes;
+    private final Node excludes;
+    private final boolean hasIncludes;
+
+    private final Set<String> includeMimeTypes = new HashSet<>();
+    private final List<String> includeMimePrefixes = new ArrayList<>();
+    private final Set<String> excludeMimeTypes = new HashSet<>();
+    private final List<String> excludeMimePrefixes = new ArrayList<>();
+
+    private final long maxSize;
+
+    private final boolean empty;
+
+    /**
+     * Constructor
+     *
+     * @param includePaths Globs of replicated paths, empty for all
+     * @param excludePaths Globs of paths that are not replicated
+     * @param includeMimeTypes Replicated MIME types of documents, empty for all
+     * @param excludeMimeTypes MIME types of documents that are not replicated
+     * @param maxSize Maximum size of replicated documents in bytes, -1 for
+     * no limit
+     */
+    public ReplicationFilter(List<String> includePaths, List<String> excludePaths,
+                             List<String> includeMimeTypes, List<String> excludeMimeTypes, long maxSize) {
+
+        this.includes = compile(includePaths);
+        this.excludes = compile(excludePaths);
+        this.hasIncludes = !includePaths.isEmpty();
+
+        addMimeTypes(includeMimeTypes, this.includeMimeTypes, this.includeMimePrefixes);
+        addMimeTypes(excludeMimeTypes, this.excludeMimeTypes, this.excludeMimePrefixes);
+
+        this.maxSize = maxSize;
+
+        this.empty = includePaths.isEmpty() && excludePaths.isEmpty()
+                && includeMimeTypes.isEmpty() && excludeMimeTypes.isEmpty() && maxSize < 0;
+    }
+
+    /**
+     * @return TRUE when no rules are configured.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Check if changes of the path are replicated.
+     *
+     * @param path Path of document or collection
+     * @return TRUE when the path is included and not excluded.
+     */
+    public boolean accepts(String path) {
+        String[] segments = split(path);
+        return (!hasIncludes || includes.matches(segments, 0)) && !excludes.matches(segments, 0);
+    }
+
+    /**
+     * Check if changes of the document are replicated, based on path, MIME
+     * type and size.
+     *
+     * @param document The document
+     * @return TRUE when the document is included and not excluded.
+     */
+    public boolean accepts(DocumentImpl document) {
+        return acceptsContent(document) && accepts(document.getURI().toString());
+    }
+
+    /**
+     * Check if changes of the document are replicated, based on MIME type
+     * and size only.
+     *
+     * @param document The document
+     * @return TRUE when the MIME type and size are accepted.
+     */
+    public boolean acceptsContent(DocumentImpl document) {
+
+        if (maxSize >= 0 && document.getContentLength() > maxSize) {
+            return false;
+        }
+
+        String mimeType = document.getMetadata().getMimeType();
+        if (mimeType != null) {
+            mimeType = mimeType.toLowerCase(Locale.ENGLISH);
+
+            if (matches(mimeType, excludeMimeTypes, excludeMimePrefixes)) {
+                return false;
+            }
+
+            if ((!includeMimeTypes.isEmpty() || !includeMimePrefixes.isEmpty())
+                    && !matches(mimeType, includeMimeTypes, includeMimePrefixes)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean matches(String mimeType, Set<String> types, List<String> prefixes) {
+        if (types.contains(mimeType)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (mimeType.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node compile(List<String> globs) {
+        Node root = new Node();
+        for (String glob : globs) {
+            Node node = root;
+            for (String segment : split(glob)) {
+                node = node.child(segment);
+            }
+            node.terminal = true;
+        }
+        return root;
+    }
+
+    private static void addMimeTypes(List<String> values, Set<String> types, List<String> prefixes) {
+        for (String value : values) {
+            String mimeType = value.toLowerCase(Locale.ENGLISH);
+            if (mimeType.endsWith("/*")) {
+                prefixes.add(mimeType.substring(0, mimeType.length() - 1));
+            } else {
+                types.add(mimeType);
+            }
+        }
+    }
+
+    private static String[] split(String path) {
+        return StringUtils.split(path, '/');
+    }
+
+    /**
+     * Convert glob of one segment to regular expression.
+     */
+    private static String toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    sb.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                sb.append(c == '*' ? "[^/]*" : "[^/]");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            sb.append(Pattern.quote(literal.toString()));
+        }
+        return sb.toString();
+    }
+}
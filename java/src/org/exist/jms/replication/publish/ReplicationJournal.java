@@ -0,0 +1,680 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.eXistMessage;
+
+/**
+ * Append-only, memory-mapped journal of outgoing replication messages.
+ *
+ * The journal consists of segment files. Each record is written as
+ * [length][crc32][message] ; a length of 0 marks the end of the data in a
+ * segment. Payloads are streamed into and out of the journal, read back
+ * payloads are kept in a {@link PayloadBuffer}. Appended records are made durable by a flusher thread that forces
+ * all pending changes in one go (group commit), appending threads wait for
+ * the flush that covers their record.
+ *
+ * Records are read back in order by one consumer; the position of the first
+ * unacknowledged record is stored in a checkpoint file. Segments that are
+ * completely acknowledged are deleted.
+ *
+ * @author Dannes Wessels
+ */
+public class ReplicationJournal {
+
+    private final static Logger LOG = LogManager.getLogger(ReplicationJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * Size of [length][crc32]
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Flush interval when appending threads do not wait for durability.
+     */
+    private static final long LAZY_FLUSH_INTERVAL = 1000;
+
+    /**
+     * One memory mapped segment file.
+     */
+    private static class Segment {
+
+        private final long number;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        Segment(long number, Path path, int size, boolean readOnly) throws IOException {
+            this.number = number;
+            this.path = path;
+            if (readOnly) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } else {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            }
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.error(ex.getMessage());
+            }
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final int payloadThreshold;
+
+    private final Object lock = new Object();
+
+    /*
+     * Write side, guarded by lock
+     */
+    private Segment writeSegment;
+    private final List<Segment> unforcedSegments = new ArrayList<>();
+    private long writePosition;
+    private long durablePosition;
+
+    /*
+     * Read side, only used by the consumer thread
+     */
+    private Segment readSegment;
+    private long readPosition;
+    private long nextReadPosition;
+
+    private volatile boolean closed = false;
+    private final Thread flusherThread;
+
+    /**
+     * Open or create journal.
+     *
+     * @param directory Directory containing the segment files
+     * @param segmentSize Size of a segment file in bytes
+     * @param sync Appending threads wait until the record is forced to disk
+     * @param payloadThreshold Maximum size of a read back payload kept in memory
+     * @param name Name of the flusher thread
+     * @throws IOException The journal could not be opened.
+     */
+    public ReplicationJournal(Path directory, int segmentSize, boolean sync, int payloadThreshold, String name) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.payloadThreshold = payloadThreshold;
+
+        Files.createDirectories(directory);
+        recover();
+
+        flusherThread = new Thread(this::flush, name);
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+    }
+
+    /*
+     * Positions are encoded as [segment number][offset in segment]
+     */
+    private static long position(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Find segments, read checkpoint and determine end of written data.
+     */
+    private void recover() throws IOException {
+
+        List<Long> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Long.valueOf(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        long firstSegment = segments.isEmpty() ? 0 : segments.get(0);
+        long lastSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+
+        // Read checkpoint
+        readPosition = position(firstSegment, 0);
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream dis = new DataInputStream(Files.newInputStream(checkpoint))) {
+                readPosition = Math.max(readPosition, dis.readLong());
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to read checkpoint, replaying all segments. %s", ex.getMessage()));
+            }
+        }
+
+        // Remove segments that are acknowledged completely
+        for (Long number : segments) {
+            if (number < segmentOf(readPosition)) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+
+        // Find end of valid data in last segment
+        writeSegment = new Segment(lastSegment, segmentPath(lastSegment), segmentSize, false);
+        ByteBuffer buffer = writeSegment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+
+            if (crc(buffer, offset + HEADER_SIZE, length) != buffer.getInt(offset + 4)) {
+                LOG.error(String.format("Journal %s is corrupt at offset %s, truncating.", writeSegment.path, offset));
+                break;
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        // Clear torn or corrupt data
+        for (int i = offset; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+
+        buffer.position(offset);
+        writePosition = position(lastSegment, offset);
+        durablePosition = writePosition;
+
+        if (readPosition > writePosition) {
+            readPosition = writePosition;
+        }
+        nextReadPosition = readPosition;
+
+        LOG.info(String.format("Opened journal %s, %s segment(s)", directory, Math.max(1, segments.size())));
+    }
+
+    /**
+     * Append message to the journal. When the journal is synchronous, this
+     * method returns when the record is on disk.
+     *
+     * @param em The message
+     * @throws IOException The message could not be written.
+     */
+    public void append(eXistMessage em) throws IOException {
+        append(Collections.singletonList(em));
+    }
+
+    /**
+     * Append messages to the journal, the records are written consecutively.
+     * When the journal is synchronous, this method returns when all records
+     * are on disk.
+     *
+     * @param messages The messages
+     * @throws IOException The messages could not be written.
+     */
+    public void append(List<eXistMessage> messages) throws IOException {
+
+        List<byte[]> headers = new ArrayList<>(messages.size());
+        for (eXistMessage em : messages) {
+            headers.add(encodeHeader(em));
+        }
+
+        long position;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Journal is closed.");
+            }
+
+            for (int i = 0; i < messages.size(); i++) {
+                write(headers.get(i), messages.get(i));
+                writePosition = position(writeSegment.number, writeSegment.buffer.position());
+            }
+            position = writePosition;
+
+            lock.notifyAll();
+        }
+
+        if (sync) {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Write one record, the payload is streamed into the segment. Caller must
+     * hold lock.
+     */
+    private void write(byte[] header, eXistMessage em) throws IOException {
+
+        int payloadLength = -1;
+        if (em.hasPayload()) {
+            if (em.getPayloadLength() > Integer.MAX_VALUE - header.length - 2 * HEADER_SIZE) {
+                throw new IOException(String.format("Message is too large for journal. %s", em.getReport()));
+            }
+            payloadLength = (int) em.getPayloadLength();
+        }
+
+        int length = header.length + 4 + Math.max(0, payloadLength);
+
+        // Always keep space for the end-of-data marker
+        if (writeSegment.buffer.remaining() < HEADER_SIZE + length + 4) {
+            roll(HEADER_SIZE + length + 4);
+        }
+
+        ByteBuffer buffer = writeSegment.buffer;
+        int start = buffer.position();
+
+        try {
+            buffer.position(start + HEADER_SIZE);
+            buffer.put(header);
+            buffer.putInt(payloadLength);
+
+            if (payloadLength > 0) {
+                byte[] chunk = new byte[64 * 1024];
+                int remaining = payloadLength;
+                try (InputStream is = em.getPayloadInputStream()) {
+                    while (remaining > 0) {
+                        int read = is.read(chunk, 0, Math.min(chunk.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Unexpected end of payload.");
+                        }
+                        buffer.put(chunk, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+
+            // Header is written last, an incomplete record is never visible
+            buffer.putInt(start + 4, crc(buffer, start + HEADER_SIZE, length));
+            buffer.putInt(start, length);
+
+        } catch (IOException | RuntimeException ex) {
+            buffer.position(start);
+            throw ex;
+        }
+    }
+
+    /**
+     * Start new segment. Caller must hold lock.
+     */
+    private void roll(int minimumSize) throws IOException {
+        unforcedSegments.add(writeSegment);
+        long number = writeSegment.number + 1;
+        writeSegment = new Segment(number, segmentPath(number), Math.max(segmentSize, minimumSize), false);
+        writePosition = position(number, 0);
+    }
+
+    private void awaitDurable(long position) throws IOException {
+        synchronized (lock) {
+            while (durablePosition < position) {
+                if (closed) {
+                    throw new IOException("Journal is closed.");
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal.", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flusher thread: force all written data to disk in one go.
+     */
+    private void flush() {
+
+        while (true) {
+            long target;
+            List<Segment> segments;
+            Segment current;
+
+            // Without sync, collect changes for a while
+            if (!sync && !closed) {
+                try {
+                    Thread.sleep(LAZY_FLUSH_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+
+            synchronized (lock) {
+                while (!closed && writePosition == durablePosition) {
+                    try {
+                        lock.wait(LAZY_FLUSH_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+
+                if (closed && writePosition == durablePosition) {
+                    return;
+                }
+
+                target = writePosition;
+                current = writeSegment;
+                segments = new ArrayList<>(unforcedSegments);
+                segments.add(current);
+                unforcedSegments.clear();
+            }
+
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+
+            synchronized (lock) {
+                durablePosition = Math.max(durablePosition, target);
+                lock.notifyAll();
+            }
+
+            // Sealed segments are not written anymore
+            segments.stream().filter(s -> s != current).forEach(Segment::close);
+        }
+    }
+
+    /**
+     * Get the next message after the messages that have been read, wait when
+     * not available. Messages are not acknowledged by reading.
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @return The message, or NULL when there is none.
+     * @throws IOException The journal could not be read.
+     */
+    public eXistMessage next(long timeout) throws IOException {
+
+        long limit;
+        synchronized (lock) {
+            if (nextReadPosition >= writePosition && !closed && timeout > 0) {
+                try {
+                    lock.wait(timeout);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            limit = writePosition;
+        }
+
+        while (nextReadPosition < limit) {
+
+            long number = segmentOf(nextReadPosition);
+            int offset = offsetOf(nextReadPosition);
+            ByteBuffer buffer = getReadBuffer(number);
+
+            int length = (offset + HEADER_SIZE <= buffer.capacity()) ? buffer.getInt(offset) : 0;
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                // End of segment, continue with next one
+                nextReadPosition = position(number + 1, 0);
+                continue;
+            }
+
+            if (crc(buffer, offset + HEADER_SIZE, length) != buffer.getInt(offset + 4)) {
+                LOG.error(String.format("Corrupt record in segment %s at offset %s, skipping segment.", number, offset));
+                nextReadPosition = position(number + 1, 0);
+                continue;
+            }
+
+            nextReadPosition = position(number, offset + HEADER_SIZE + length);
+
+            ByteBuffer record = buffer.duplicate();
+            record.limit(offset + HEADER_SIZE + length);
+            record.position(offset + HEADER_SIZE);
+            return decode(record, payloadThreshold);
+        }
+
+        return null;
+    }
+
+    private ByteBuffer getReadBuffer(long number) throws IOException {
+
+        synchronized (lock) {
+            if (number == writeSegment.number) {
+                return writeSegment.buffer;
+            }
+        }
+
+        if (readSegment == null || readSegment.number != number) {
+            if (readSegment != null) {
+                readSegment.close();
+            }
+            readSegment = new Segment(number, segmentPath(number), 0, true);
+        }
+        return readSegment.buffer;
+    }
+
+    /**
+     * Acknowledge all messages returned by {@link #next(long)}.
+     */
+    public void acknowledge() {
+        readPosition = nextReadPosition;
+    }
+
+    /**
+     * Read the unacknowledged messages again.
+     */
+    public void rewind() {
+        nextReadPosition = readPosition;
+    }
+
+    /**
+     * Store read position and remove segments that are completely
+     * acknowledged.
+     *
+     * @throws IOException The checkpoint could not be written.
+     */
+    public void checkpoint() throws IOException {
+
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(tmp))) {
+            dos.writeLong(readPosition);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long readNumber = segmentOf(readPosition);
+        if (readSegment != null && readSegment.number < readNumber) {
+            readSegment.close();
+            readSegment = null;
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.collect(Collectors.toList())) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    if (number < readNumber) {
+                        LOG.debug(String.format("Removing acknowledged segment %s", path));
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return TRUE when all records have been acknowledged.
+     */
+    public boolean isEmpty() {
+        synchronized (lock) {
+            return readPosition >= writePosition;
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Close journal, pending data is forced to disk.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            flusherThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            checkpoint();
+        } catch (IOException ex) {
+            LOG.error(String.format("Unable to write checkpoint: %s", ex.getMessage()));
+        }
+
+        synchronized (lock) {
+            writeSegment.buffer.force();
+            writeSegment.close();
+            unforcedSegments.forEach(Segment::close);
+        }
+        if (readSegment != null) {
+            readSegment.close();
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit(offset + length);
+        dup.position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(dup);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Serialize message details and metadata; the payload is written
+     * separately.
+     */
+    static byte[] encodeHeader(eXistMessage em) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            MessageHelper.writeHeader(dos, em);
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Deserialize record, the payload is copied into a {@link PayloadBuffer}.
+     */
+    static eXistMessage decode(ByteBuffer record, int payloadThreshold) throws IOException {
+
+        eXistMessage em;
+        try (DataInputStream dis = new DataInputStream(new ByteBufferInputStream(record))) {
+
+            em = MessageHelper.readHeader(dis);
+
+            int length = dis.readInt();
+            if (length >= 0) {
+                PayloadBuffer buffer = new PayloadBuffer(payloadThreshold);
+                byte[] chunk = new byte[64 * 1024];
+                while (length > 0) {
+                    int read = dis.read(chunk, 0, Math.min(chunk.length, length));
+                    if (read < 0) {
+                        buffer.release();
+                        throw new IOException("Unexpected end of record.");
+                    }
+                    buffer.write(chunk, 0, read);
+                    length -= read;
+                }
+                buffer.close();
+                em.setPayload(buffer);
+            }
+        }
+
+        return em;
+    }
+
+    /**
+     * Stream to read the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+}
@@ -53,6 +53,10 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
     
     private Map<String, List<?>> parameters;
 
+    private Publisher publisher;
+
+    private ReplicationFilter filter;
+
     private boolean isOriginIdAvailable = false;
 
     /**
@@ -108,48 +112,54 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         /** TODO: make optional? (for lJO) */
         if (isJMSOrigin(transaction)) {
             LOGGER.info(String.format(BLOCKED_MESSAGE, document.getURI().toString()));
+            forgetPublished(document);
             return;
         }
 
-        // Create Message
-        eXistMessage msg = new eXistMessage();
-        msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
-        msg.setResourceOperation(operation);
-        msg.setResourcePath(document.getURI().toString());
-
-        // Retrieve Metadata
-        Map<String, Object> md = msg.getMetadata();
-        MessageHelper.retrieveDocMetadata(md, document.getMetadata());
-        MessageHelper.retrieveFromDocument(md, document);
-        MessageHelper.retrievePermission(md, document.getPermissions());
-
-        
-        // The content is always gzip-ped
-        md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, "gzip");
+        if (publisher == null) {
+            LOGGER.error(String.format("No publisher available, message not sent for %s", document.getURI()));
+            return;
+        }
 
-        // Serialize document
+        // Serialize and send, or wait for more changes of the document
         try {
-            msg.setPayload(MessageHelper.gzipSerialize(broker, document));
+            publisher.publishDocument(broker, transaction, document, operation);
+
+        } catch (TransportException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            //throw new TriggerException(ex.getMessage(), ex);
 
         } catch (Throwable ex) {
-            LOGGER.error(String.format("Problem while serializing document (contentLength=%s) to compressed message:%s",                                    
-                    document.getContentLength(), ex.getMessage()), ex);
-            //throw new TriggerException("Unable to retrieve message payload: " + ex.getMessage());
+            LOGGER.error(ex.getMessage(), ex);
+            //throw new TriggerException(ex.getMessage(), ex);
         }
+    }
 
-        // Send Message   
-        sendMessage(msg);
+    /**
+     * The document is changed by replication, forget what was published
+     * before: the next update is sent completely.
+     */
+    private void forgetPublished(DocumentImpl document) {
+        if (publisher != null) {
+            publisher.forget(document);
+        }
     }
     
     @Override
     public void afterCreateDocument(DBBroker broker, Txn transaction,  DocumentImpl document) throws TriggerException {
 
+        // Cheap rules first, before any serialization
+        if (isExcluded(document)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(document.getURI().toString());
         }
         
         if (isJMSOrigin(transaction)) {
             LOGGER.info(String.format(BLOCKED_MESSAGE, document.getURI().toString()));
+            forgetPublished(document);
             return;
         }
 
@@ -159,12 +169,18 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
     @Override
     public void afterUpdateDocument(DBBroker broker, Txn transaction, DocumentImpl document) throws TriggerException {
 
+        // Cheap rules first, before any serialization
+        if (isExcluded(document)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(document.getURI().toString());
         }
         
         if (isJMSOrigin(transaction)) {
             LOGGER.info(String.format(BLOCKED_MESSAGE, document.getURI().toString()));
+            forgetPublished(document);
             return;
         }
 
@@ -174,6 +190,11 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
     @Override
     public void afterCopyDocument(DBBroker broker, Txn transaction, DocumentImpl document, XmldbURI oldUri) throws TriggerException {
 
+        // Cheap rules first, before any serialization
+        if (isExcluded(document)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("%s %s", document.getURI().toString(), oldUri.toString()));
         }
@@ -183,6 +204,12 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
             return;
         }
 
+        // The source is not replicated, the copy is new for the subscribers
+        if (isExcluded(document, oldUri)) {
+            this.afterUpdateCreateDocument(broker, transaction, document, eXistMessage.ResourceOperation.CREATE);
+            return;
+        }
+
         // Create Message
         eXistMessage msg = new eXistMessage();
         msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
@@ -191,12 +218,19 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         msg.setDestinationPath(document.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
     public void afterMoveDocument(DBBroker broker, Txn transaction, DocumentImpl document, XmldbURI oldUri) throws TriggerException {
 
+        // Cheap rules first, before any serialization
+        boolean sourceExcluded = isExcluded(document, oldUri);
+        boolean destinationExcluded = isExcluded(document);
+        if (sourceExcluded && destinationExcluded) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("%s %s", document.getURI().toString(), oldUri.toString()));
         }
@@ -206,20 +240,40 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
             return;
         }
 
+        // Moved into the replicated paths, new for the subscribers
+        if (sourceExcluded) {
+            this.afterUpdateCreateDocument(broker, transaction, document, eXistMessage.ResourceOperation.CREATE);
+            return;
+        }
+
+        forgetDelta(oldUri, false);
+
         // Create Message
         eXistMessage msg = new eXistMessage();
         msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
-        msg.setResourceOperation(eXistMessage.ResourceOperation.MOVE);
         msg.setResourcePath(oldUri.toString());
-        msg.setDestinationPath(document.getURI().toString());
+
+        if (destinationExcluded) {
+            // Moved out of the replicated paths, gone for the subscribers
+            msg.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
+
+        } else {
+            msg.setResourceOperation(eXistMessage.ResourceOperation.MOVE);
+            msg.setDestinationPath(document.getURI().toString());
+        }
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
     public void afterDeleteDocument(DBBroker broker, Txn transaction, XmldbURI uri) throws TriggerException {
 
+        // Cheap rules first, before any serialization
+        if (isExcluded(uri)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(uri.toString());
         }
@@ -235,8 +289,10 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         msg.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
         msg.setResourcePath(uri.toString());
 
+        forgetDelta(uri, false);
+
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //
@@ -244,7 +300,12 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
     //
     @Override
     public void afterCreateCollection(DBBroker broker, Txn transaction, Collection collection) throws TriggerException {
-        
+
+        // Cheap rules first, before any serialization
+        if (isExcluded(collection.getURI())) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(collection.getURI().toString());
         }
@@ -263,12 +324,17 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         MessageHelper.retrievePermission(md, collection.getPermissions());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
     public void afterCopyCollection(DBBroker broker, Txn transaction, Collection collection, XmldbURI oldUri) throws TriggerException {
-        
+
+        // Cheap rules first, before any serialization
+        if (isExcluded(collection.getURI())) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("%s %s", collection.getURI().toString(), oldUri.toString()));
         }
@@ -285,12 +351,17 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         msg.setDestinationPath(collection.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
     public void afterMoveCollection(DBBroker broker, Txn transaction, Collection collection, XmldbURI oldUri) throws TriggerException {
-        
+
+        // Cheap rules first, before any serialization
+        if (isExcluded(collection.getURI()) && isExcluded(oldUri)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(String.format("%s %s", collection.getURI().toString(), oldUri.toString()));
         }
@@ -307,12 +378,20 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         msg.setResourcePath(oldUri.toString());
         msg.setDestinationPath(collection.getURI().toString());
 
+        forgetDelta(oldUri, true);
+
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
     public void afterDeleteCollection(DBBroker broker, Txn transaction, XmldbURI uri) throws TriggerException {
+
+        // Cheap rules first, before any serialization
+        if (isExcluded(uri)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(uri.toString());
         }
@@ -328,8 +407,10 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         msg.setResourceOperation(eXistMessage.ResourceOperation.DELETE);
         msg.setResourcePath(uri.toString());
 
+        forgetDelta(uri, true);
+
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
     
     // 
@@ -338,7 +419,12 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
 
     @Override
     public void afterUpdateDocumentMetadata(DBBroker broker, Txn transaction, DocumentImpl document) throws TriggerException {
-        
+
+        // Cheap rules first, before any serialization
+        if (isExcluded(document)) {
+            return;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(document.getURI().toString());
         }
@@ -364,7 +450,7 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         MessageHelper.retrievePermission(md, document.getPermissions());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
     
     //
@@ -375,17 +461,76 @@ public class ReplicationTrigger extends FilteringTrigger implements CollectionTr
         super.configure(broker, parentCollection, parameters);
         this.parameters = parameters;
 
+        // Get the long-lived publisher, created once per configuration
+        try {
+            publisher = PublisherRegistry.getInstance().getPublisher(broker, parameters);
+            filter = publisher.getFilter().isEmpty() ? null : publisher.getFilter();
+
+        } catch (TransportException ex) {
+            LOGGER.error(String.format("Unable to setup publisher: %s", ex.getMessage()), ex);
+            //throw new TriggerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Check the include and exclude rules.
+     *
+     * @return TRUE when changes of the document are not replicated.
+     */
+    private boolean isExcluded(DocumentImpl document) {
+        return filter != null && !filter.accepts(document);
+    }
+
+    /**
+     * Check the include and exclude rules for the document at another path,
+     * e.g. the source of a copy or move.
+     *
+     * @return TRUE when changes of the document at the path are not
+     * replicated.
+     */
+    private boolean isExcluded(DocumentImpl document, XmldbURI uri) {
+        return filter != null && !(filter.acceptsContent(document) && filter.accepts(uri.toString()));
+    }
+
+    /**
+     * Check the include and exclude path rules.
+     *
+     * @return TRUE when changes of the resource are not replicated.
+     */
+    private boolean isExcluded(XmldbURI uri) {
+        return filter != null && !filter.accepts(uri.toString());
+    }
+
+    /**
+     * Remove document or collection from the delta cache, the next update is
+     * sent as full document.
+     */
+    private void forgetDelta(XmldbURI uri, boolean isCollection) {
+        DeltaEncoder deltaEncoder = (publisher == null) ? null : publisher.getDeltaEncoder();
+        if (deltaEncoder != null) {
+            if (isCollection) {
+                deltaEncoder.removeCollection(uri.toString());
+            } else {
+                deltaEncoder.remove(uri.toString());
+            }
+        }
     }
 
     /**
      * Send 'trigger' message with parameters set using
      * {@link #configure(org.exist.storage.DBBroker, org.exist.collections.Collection, java.util.Map)}
+     * ; the message is sent when the transaction is committed.
      */
-    private void sendMessage(eXistMessage msg) /* throws TriggerException  */ {
+    private void sendMessage(Txn transaction, eXistMessage msg) /* throws TriggerException  */ {
+
+        if (publisher == null) {
+            LOGGER.error(String.format("No publisher available, message not sent. %s", msg.getReport()));
+            return;
+        }
+
         // Send Message   
-        JMSMessageSender sender = new JMSMessageSender(parameters);
         try {
-            sender.sendMessage(msg);
+            publisher.sendMessage(transaction, msg);
 
         } catch (TransportException ex) {
             LOGGER.error(ex.getMessage(), ex);
@@ -0,0 +1,167 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Content-addressed store for binary documents, in a directory that is
+ * shared by publisher and subscribers. Each blob is stored once, under its
+ * SHA-256 content hash.
+ *
+ * @author Dannes Wessels
+ */
+public class BlobStore {
+
+    private final static Logger LOG = LogManager.getLogger(BlobStore.class);
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes data into the store, the hash is known after closing.
+     */
+    public interface BlobWriter {
+        void write(OutputStream os) throws IOException;
+    }
+
+    private final Path directory;
+
+    /**
+     * Constructor
+     *
+     * @param directory Root directory of the store
+     * @throws IOException The directory could not be created.
+     */
+    public BlobStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return Root directory of the store
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Store blob; when a blob with the same content exists the new data is
+     * discarded.
+     *
+     * @param writer Writes the data of the blob
+     * @return Content hash of the blob
+     * @throws IOException The blob could not be written.
+     */
+    public String store(BlobWriter writer) throws IOException {
+
+        Path tmp = Files.createTempFile(directory, "blob", ".tmp");
+        try {
+            DigestOutputStream dos = DeltaCache.createDigestStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE));
+            try (OutputStream os = dos) {
+                writer.write(os);
+            }
+            String hash = DeltaCache.toHash(dos.getMessageDigest());
+
+            Path target = getPath(hash);
+            if (Files.exists(target)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("Blob %s exists already", hash));
+                }
+                return hash;
+            }
+
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ex) {
+                // Stored concurrently
+                LOG.debug(ex.getMessage());
+            }
+            return hash;
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Check if blob is available.
+     *
+     * @param hash Content hash
+     * @return TRUE when the blob is stored.
+     */
+    public boolean contains(String hash) {
+        return isValid(hash) && Files.exists(getPath(hash));
+    }
+
+    /**
+     * Open blob for reading.
+     *
+     * @param hash Content hash
+     * @return Stream to read the blob
+     * @throws IOException The blob is not available.
+     */
+    public InputStream open(String hash) throws IOException {
+        if (!contains(hash)) {
+            throw new IOException(String.format("Blob %s is not available in %s", hash, directory));
+        }
+        return Files.newInputStream(getPath(hash));
+    }
+
+    /**
+     * Get size of blob.
+     *
+     * @param hash Content hash
+     * @return Size in bytes
+     * @throws IOException The blob is not available.
+     */
+    public long size(String hash) throws IOException {
+        if (!contains(hash)) {
+            throw new IOException(String.format("Blob %s is not available in %s", hash, directory));
+        }
+        return Files.size(getPath(hash));
+    }
+
+    private Path getPath(String hash) {
+        if (!isValid(hash)) {
+            throw new IllegalArgumentException(String.format("Invalid blob hash '%s'", hash));
+        }
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static boolean isValid(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+}
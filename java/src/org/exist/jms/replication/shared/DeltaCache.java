@@ -0,0 +1,460 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache of the last replicated serialization of XML documents, used to
+ * compute and apply deltas for updates. A delta replaces the bytes between
+ * the common prefix and the common suffix of the previous and the new
+ * serialization; the content hash of the previous version identifies the
+ * base the delta must be applied to.
+ *
+ * The cache is bounded, the least recently used entries are removed. The
+ * content is kept on disk; the cache is cleared when opened.
+ *
+ * @author Dannes Wessels
+ */
+public class DeltaCache {
+
+    private final static Logger LOG = LogManager.getLogger(DeltaCache.class);
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Cached version of a document.
+     */
+    public static class Entry {
+
+        private final Path file;
+        private final String hash;
+        private final int nrDeltas;
+
+        Entry(Path file, String hash, int nrDeltas) {
+            this.file = file;
+            this.hash = hash;
+            this.nrDeltas = nrDeltas;
+        }
+
+        /**
+         * @return File with the serialized document
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return Content hash of the serialized document
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return Number of deltas sent since the last full version
+         */
+        public int getNrDeltas() {
+            return nrDeltas;
+        }
+    }
+
+    /**
+     * Common prefix and suffix of two versions.
+     */
+    public static class Delta {
+
+        private final long prefix;
+        private final long suffix;
+        private final long length;
+
+        Delta(long prefix, long suffix, long length) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.length = length;
+        }
+
+        public long getPrefix() {
+            return prefix;
+        }
+
+        public long getSuffix() {
+            return suffix;
+        }
+
+        /**
+         * @return Number of bytes that replace the changed part
+         */
+        public long getReplacementLength() {
+            return length - prefix - suffix;
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory to store the documents
+     * @param maxEntries Maximum number of cached documents
+     * @throws IOException The directory could not be created.
+     */
+    public DeltaCache(Path directory, final int maxEntries) throws IOException {
+        this.directory = directory;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    // Documents with the same content share the file
+                    Path file = eldest.getValue().getFile();
+                    if (values().stream().filter((entry) -> entry.getFile().equals(file)).count() == 1) {
+                        delete(file);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        Files.createDirectories(directory);
+        clear();
+    }
+
+    /**
+     * Remove files of a previous run, the hashes are not known anymore.
+     */
+    private void clear() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        files.forEach(DeltaCache::delete);
+    }
+
+    /**
+     * @return Directory of the cache
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Create temporary file in the cache directory, to be passed to
+     * {@link #put(String, Path, String, int)}.
+     *
+     * @return The file
+     * @throws IOException The file could not be created.
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(directory, "delta", ".tmp");
+    }
+
+    /**
+     * Get cached version of document.
+     *
+     * @param path Path of the document
+     * @return The entry, NULL when not cached.
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Store version of document, the file is moved into the cache.
+     *
+     * @param path Path of the document
+     * @param file File with the serialized document
+     * @param hash Content hash of the document
+     * @param nrDeltas Number of deltas since the last full version
+     * @throws IOException The file could not be moved.
+     */
+    public synchronized void put(String path, Path file, String hash, int nrDeltas) throws IOException {
+        Path target = directory.resolve(String.format("%s.xml", hash));
+        if (!file.equals(target)) {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Entry previous = entries.put(path, new Entry(target, hash, nrDeltas));
+        if (previous != null && !previous.getFile().equals(target) && !isReferenced(previous.getFile())) {
+            delete(previous.getFile());
+        }
+    }
+
+    /**
+     * Remove document from the cache.
+     *
+     * @param path Path of the document
+     */
+    public synchronized void remove(String path) {
+        Entry previous = entries.remove(path);
+        if (previous != null && !isReferenced(previous.getFile())) {
+            delete(previous.getFile());
+        }
+    }
+
+    /**
+     * Remove documents in collection from the cache.
+     *
+     * @param collectionPath Path of the collection
+     */
+    public synchronized void removeCollection(String collectionPath) {
+        String prefix = collectionPath.endsWith("/") ? collectionPath : collectionPath + "/";
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                if (!isReferenced(entry.getValue().getFile())) {
+                    delete(entry.getValue().getFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Documents with the same content share the file.
+     */
+    private boolean isReferenced(Path file) {
+        return entries.values().stream().anyMatch((entry) -> entry.getFile().equals(file));
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOG.error(String.format("Unable to delete %s: %s", file, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Create digest for the content hash.
+     *
+     * @return The digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Create stream that calculates the content hash of the written data.
+     *
+     * @param os The stream to write to
+     * @return The stream
+     */
+    public static DigestOutputStream createDigestStream(OutputStream os) {
+        return new DigestOutputStream(os, createDigest());
+    }
+
+    /**
+     * Get content hash as hexadecimal string.
+     *
+     * @param digest The digest of the data
+     * @return The hash
+     */
+    public static String toHash(MessageDigest digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Calculate content hash of file.
+     *
+     * @param file The file
+     * @return The hash
+     * @throws IOException The file could not be read.
+     */
+    public static String hash(Path file) throws IOException {
+        DigestOutputStream dos = createDigestStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        Files.copy(file, dos);
+        return toHash(dos.getMessageDigest());
+    }
+
+    /**
+     * Determine common prefix and suffix of two versions.
+     *
+     * @param base The previous version
+     * @param target The new version
+     * @return The delta
+     * @throws IOException The files could not be read.
+     */
+    public static Delta compare(Path base, Path target) throws IOException {
+
+        try (FileChannel baseChannel = FileChannel.open(base, StandardOpenOption.READ);
+                FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.READ)) {
+
+            long baseLength = baseChannel.size();
+            long targetLength = targetChannel.size();
+            long max = Math.min(baseLength, targetLength);
+
+            ByteBuffer baseBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            ByteBuffer targetBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            // Common prefix
+            long prefix = 0;
+            while (prefix < max) {
+                int size = (int) Math.min(BUFFER_SIZE, max - prefix);
+                read(baseChannel, baseBuffer, prefix, size);
+                read(targetChannel, targetBuffer, prefix, size);
+                int matching = mismatch(baseBuffer, targetBuffer, size, false);
+                prefix += matching;
+                if (matching < size) {
+                    break;
+                }
+            }
+
+            // Common suffix, not overlapping with the prefix
+            long suffix = 0;
+            long maxSuffix = max - prefix;
+            while (suffix < maxSuffix) {
+                int size = (int) Math.min(BUFFER_SIZE, maxSuffix - suffix);
+                read(baseChannel, baseBuffer, baseLength - suffix - size, size);
+                read(targetChannel, targetBuffer, targetLength - suffix - size, size);
+                int matching = mismatch(baseBuffer, targetBuffer, size, true);
+                suffix += matching;
+                if (matching < size) {
+                    break;
+                }
+            }
+
+            return new Delta(prefix, suffix, targetLength);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position, int size) throws IOException {
+        buffer.clear();
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+    }
+
+    /**
+     * Number of equal bytes, from the start or from the end of the buffers.
+     */
+    private static int mismatch(ByteBuffer a, ByteBuffer b, int size, boolean reverse) {
+        for (int i = 0; i < size; i++) {
+            int index = reverse ? size - 1 - i : i;
+            if (a.get(index) != b.get(index)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write the changed part of the new version.
+     *
+     * @param target The new version
+     * @param delta The delta
+     * @param os Stream to write the replacement to
+     * @throws IOException The file could not be read.
+     */
+    public static void writeReplacement(Path target, Delta delta, OutputStream os) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+            transfer(channel, delta.getPrefix(), delta.getReplacementLength(), os);
+        }
+    }
+
+    /**
+     * Reconstruct the new version from the previous version and the
+     * replacement.
+     *
+     * @param base The previous version
+     * @param prefix Length of the common prefix
+     * @param suffix Length of the common suffix
+     * @param replacement Stream providing the replacement
+     * @param os Stream to write the new version to
+     * @throws IOException The delta does not fit the previous version, or the
+     * data could not be read or written.
+     */
+    public static void apply(Path base, long prefix, long suffix, InputStream replacement, OutputStream os) throws IOException {
+        try (FileChannel channel = FileChannel.open(base, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (prefix < 0 || suffix < 0 || prefix + suffix > length) {
+                throw new IOException(String.format("Delta (prefix=%s suffix=%s) does not fit base of %s bytes", prefix, suffix, length));
+            }
+
+            transfer(channel, 0, prefix, os);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = replacement.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+
+            transfer(channel, length - suffix, suffix, os);
+        }
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+        WritableByteChannel target = Channels.newChannel(os);
+        long done = 0;
+        while (done < count) {
+            long transferred = channel.transferTo(position + done, count - done, target);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            done += transferred;
+        }
+    }
+}
@@ -21,19 +21,24 @@
  */
 package org.exist.jms.replication.shared;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.zip.GZIPOutputStream;
 import javax.xml.transform.OutputKeys;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.DocumentMetadata;
+import org.exist.jms.shared.PayloadBuffer;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.security.Permission;
 import org.exist.storage.DBBroker;
@@ -57,6 +62,39 @@ public class MessageHelper {
     public static final String EXIST_RESOURCE_MODE = "exist.resource.permission.mode";
     public static final String EXIST_MESSAGE_CONTENTENCODING = "exist.message.content-encoding";
 
+    /*
+     * Chunked transfer of large payloads: a header message, the chunk
+     * messages and a completion marker, all with the same transfer id.
+     */
+    public static final String EXIST_CHUNK_TYPE = "exist.chunk.type";
+    public static final String EXIST_CHUNK_TRANSFER_ID = "exist.chunk.transfer-id";
+    public static final String EXIST_CHUNK_COUNT = "exist.chunk.count";
+    public static final String EXIST_CHUNK_SIZE = "exist.chunk.size";
+    public static final String EXIST_CHUNK_LENGTH = "exist.chunk.length";
+    public static final String EXIST_CHUNK_SEQUENCE = "exist.chunk.sequence";
+    public static final String EXIST_CHUNK_CHECKSUM = "exist.chunk.checksum";
+
+    public static final String CHUNK_TYPE_HEADER = "header";
+    public static final String CHUNK_TYPE_CHUNK = "chunk";
+    public static final String CHUNK_TYPE_COMPLETE = "complete";
+
+    /*
+     * Delta updates of XML documents: content hash of the new version, and
+     * for DELTA messages the hash of the version the delta applies to and
+     * the lengths of the unchanged prefix and suffix.
+     */
+    public static final String EXIST_DELTA_HASH = "exist.delta.hash";
+    public static final String EXIST_DELTA_BASE_HASH = "exist.delta.base-hash";
+    public static final String EXIST_DELTA_PREFIX = "exist.delta.prefix";
+    public static final String EXIST_DELTA_SUFFIX = "exist.delta.suffix";
+
+    /*
+     * Binary documents replicated by reference: content hash and size of
+     * the blob in the shared blob store.
+     */
+    public static final String EXIST_BLOB_HASH = "exist.blob.hash";
+    public static final String EXIST_BLOB_SIZE = "exist.blob.size";
+
     private final static Logger LOG = LogManager.getLogger(MessageHelper.class);
     
     //	Copied from webdav interface ; there is a better one
@@ -72,18 +110,60 @@ public class MessageHelper {
     
 
     /**
-     *  Serialize document to byte array as gzipped document.
+     *  Serialize document into buffer, compressed with the codec. Data
+     *  exceeding the threshold is written to a temporary file.
      * 
      * @param broker
      * @param document
-     * @return document as bytes
+     * @param codec Codec to compress the document
+     * @param level Compression level
+     * @param threshold Maximum number of bytes kept in memory
+     * @return Closed buffer containing the document
      * @throws IOException 
      */
-    public static byte[] gzipSerialize(DBBroker broker, DocumentImpl document) throws IOException {
-        
-        // This is the weak spot, the data is serialized into
-        // a byte array. Better to have an overloap to a file,
-        byte[] payload;
+    public static PayloadBuffer serialize(DBBroker broker, DocumentImpl document, PayloadCodec codec, int level, int threshold) throws IOException {
+        return serialize(broker, document, codec, level, threshold, null);
+    }
+
+    /**
+     *  Serialize document into buffer, compressed with the codec, and update
+     *  the digest with the compressed data.
+     * 
+     * @param broker
+     * @param document
+     * @param codec Codec to compress the document
+     * @param level Compression level
+     * @param threshold Maximum number of bytes kept in memory
+     * @param digest Digest of the payload, NULL when not needed
+     * @return Closed buffer containing the document
+     * @throws IOException 
+     */
+    public static PayloadBuffer serialize(DBBroker broker, DocumentImpl document, PayloadCodec codec, int level, int threshold,
+                                          MessageDigest digest) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(threshold);
+        try {
+            serialize(broker, document, codec, level, (digest == null) ? buffer : new DigestOutputStream(buffer, digest));
+            buffer.close();
+
+        } catch (IOException ex) {
+            buffer.release();
+            throw ex;
+        }
+        return buffer;
+    }
+
+    /**
+     *  Serialize document to stream, compressed with the codec. The stream is
+     *  closed afterwards.
+     * 
+     * @param broker
+     * @param document
+     * @param codec Codec to compress the document
+     * @param level Compression level
+     * @param os Stream to write the compressed document to
+     * @throws IOException 
+     */
+    public static void serialize(DBBroker broker, DocumentImpl document, PayloadCodec codec, int level, OutputStream os) throws IOException {
 
         if (document.getResourceType() == DocumentImpl.XML_FILE) {
             
@@ -91,27 +171,19 @@ public class MessageHelper {
             Serializer serializer = broker.getSerializer();
             serializer.reset();
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
                 serializer.setProperties(OUTPUT_PROPERTIES);
 
-                try (GZIPOutputStream gos = new GZIPOutputStream(baos);
-                        Writer w = new OutputStreamWriter(gos, "UTF-8")) {
+                try (OutputStream cos = codec.compress(os, level);
+                        Writer w = new OutputStreamWriter(cos, "UTF-8")) {
                     serializer.serialize(document, w);
                     w.flush();
                 }
 
-                payload = baos.toByteArray();
-
-
             } catch (SAXException | IOException e) {
-                payload = new byte[0];
                 LOG.error(e);
                 throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
 
             } catch (Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
                 LOG.error(e);
                 throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
             }
@@ -119,33 +191,104 @@ public class MessageHelper {
         } else {
             // Stream NON-XML document
 
-            try {          
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
- 
-                try (GZIPOutputStream gos = new GZIPOutputStream(baos)) {
-                    // DW: check classtype before using
-                    broker.readBinaryResource((BinaryDocument) document, gos);
-                    gos.flush();
-                }
-
-                payload = baos.toByteArray();
+            try (OutputStream cos = codec.compress(os, level)) {
+                // DW: check classtype before using
+                broker.readBinaryResource((BinaryDocument) document, cos);
+                cos.flush();
 
             } catch (IOException e) {
-                payload = new byte[0];
                 LOG.error(e);
                 throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
 
             } catch (Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
                 LOG.error(e);
                 throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
             }
         }
+    }
+
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_INTEGER = 'I';
+    private static final byte TYPE_LONG = 'L';
+
+    /**
+     *  Serialize message details and metadata, without payload.
+     * 
+     * @param dos Stream to write to
+     * @param em The message
+     * @throws IOException 
+     */
+    public static void writeHeader(DataOutputStream dos, eXistMessage em) throws IOException {
+
+        dos.writeUTF(em.getResourceType().name());
+        dos.writeUTF(em.getResourceOperation().name());
+        writeNullableString(dos, em.getResourcePath());
+        writeNullableString(dos, em.getDestinationPath());
+
+        Map<String, Object> metadata = em.getMetadata();
+        dos.writeInt(metadata.size());
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            dos.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                dos.writeByte(TYPE_INTEGER);
+                dos.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                dos.writeByte(TYPE_LONG);
+                dos.writeLong((Long) value);
+            } else {
+                dos.writeByte(TYPE_STRING);
+                dos.writeUTF("" + value);
+            }
+        }
+    }
+
+    /**
+     *  Read message details and metadata written by 
+     *  {@link #writeHeader(java.io.DataOutputStream, org.exist.jms.shared.eXistMessage)}.
+     * 
+     * @param dis Stream to read from
+     * @return Message without payload
+     * @throws IOException 
+     */
+    public static eXistMessage readHeader(DataInputStream dis) throws IOException {
+
+        eXistMessage em = new eXistMessage();
+        em.setResourceType(dis.readUTF());
+        em.setResourceOperation(dis.readUTF());
+        em.setResourcePath(readNullableString(dis));
+        em.setDestinationPath(readNullableString(dis));
+
+        int size = dis.readInt();
+        Map<String, Object> metadata = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = dis.readUTF();
+            byte type = dis.readByte();
+            switch (type) {
+                case TYPE_INTEGER:
+                    metadata.put(key, dis.readInt());
+                    break;
+                case TYPE_LONG:
+                    metadata.put(key, dis.readLong());
+                    break;
+                default:
+                    metadata.put(key, dis.readUTF());
+            }
+        }
+        em.setMetadata(metadata);
 
+        return em;
+    }
 
-        return payload;
+    private static void writeNullableString(DataOutputStream dos, String value) throws IOException {
+        dos.writeBoolean(value != null);
+        if (value != null) {
+            dos.writeUTF(value);
+        }
+    }
 
+    private static String readNullableString(DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
     }
 
     public static void retrieveDocMetadata(Map<String, Object> props, DocumentMetadata docMetadata) {
@@ -21,6 +21,8 @@
  */
 package org.exist.jms.replication.shared;
 
+import java.util.List;
+
 import org.exist.jms.shared.eXistMessage;
 
 /**
@@ -37,5 +39,25 @@ public interface MessageSender {
      * @throws TransportException when something bad happens.
      */
     void sendMessage(eXistMessage em) throws TransportException;
+
+    /**
+     *  Send a batch of {@link eXistMessage}s to message broker; when supported
+     *  all messages are sent in one transaction.
+     * 
+     * @param messages the messages that need to be sent
+     * @throws TransportException when something bad happens.
+     */
+    default void sendMessages(List<eXistMessage> messages) throws TransportException {
+        for (eXistMessage em : messages) {
+            sendMessage(em);
+        }
+    }
+
+    /**
+     *  Release all resources held by the sender.
+     */
+    default void close() {
+        // Nothing to release
+    }
     
 }
@@ -0,0 +1,68 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec for replication payloads. The name of the codec is sent
+ * in the {@link MessageHelper#EXIST_MESSAGE_CONTENTENCODING} property, the
+ * receiver uses it to find the codec for decompression.
+ *
+ * Additional codecs can be registered via
+ * META-INF/services/org.exist.jms.replication.shared.PayloadCodec
+ *
+ * @author Dannes Wessels
+ */
+public interface PayloadCodec {
+
+    /**
+     * Value used when no compression level is configured.
+     */
+    int DEFAULT_LEVEL = -1;
+
+    /**
+     * @return Name of the codec, used as content encoding.
+     */
+    String getName();
+
+    /**
+     * Wrap stream to compress the written data.
+     *
+     * @param os Stream receiving the compressed data
+     * @param level Compression level, {@link #DEFAULT_LEVEL} for the codec default
+     * @return Stream to write uncompressed data to
+     * @throws IOException The stream could not be created.
+     */
+    OutputStream compress(OutputStream os, int level) throws IOException;
+
+    /**
+     * Wrap stream to decompress the data.
+     *
+     * @param is Stream providing the compressed data
+     * @return Stream providing the uncompressed data
+     * @throws IOException The stream could not be created.
+     */
+    InputStream decompress(InputStream is) throws IOException;
+}
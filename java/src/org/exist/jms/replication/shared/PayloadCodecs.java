@@ -0,0 +1,288 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Registry of the available {@link PayloadCodec}s.
+ *
+ * Built in are 'gzip' (default), 'deflate' and 'none'. The codecs 'lz4' and
+ * 'zstd' are available when the lz4-java resp. zstd-jni library is on the
+ * classpath.
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadCodecs {
+
+    private final static Logger LOG = LogManager.getLogger(PayloadCodecs.class);
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+    public static final String LZ4 = "lz4";
+    public static final String ZSTD = "zstd";
+
+    /**
+     * Codec used when no content encoding is specified.
+     */
+    public static final String DEFAULT = GZIP;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, PayloadCodec> CODECS = new TreeMap<>();
+
+    static {
+        register(new GzipCodec());
+        register(new DeflateCodec());
+        register(new NoneCodec());
+        register(new ReflectiveCodec(LZ4, "net.jpountz.lz4.LZ4FrameOutputStream", "net.jpountz.lz4.LZ4FrameInputStream", false));
+        register(new ReflectiveCodec(ZSTD, "com.github.luben.zstd.ZstdOutputStream", "com.github.luben.zstd.ZstdInputStream", true));
+
+        // Codecs provided by extensions, may replace the built in ones
+        try {
+            for (PayloadCodec codec : ServiceLoader.load(PayloadCodec.class, PayloadCodecs.class.getClassLoader())) {
+                LOG.info(String.format("Registering compression codec '%s' (%s)", codec.getName(), codec.getClass().getName()));
+                register(codec);
+            }
+        } catch (Throwable t) {
+            LOG.error(String.format("Unable to load compression codecs: %s", t.getMessage()), t);
+        }
+    }
+
+    private PayloadCodecs() {
+        // Utility class
+    }
+
+    private static void register(PayloadCodec codec) {
+        CODECS.put(codec.getName().toLowerCase(), codec);
+    }
+
+    /**
+     * Get codec for content encoding.
+     *
+     * @param name Name of the codec, when empty the default codec is returned.
+     * @return The codec
+     * @throws IOException The codec is unknown or not available.
+     */
+    public static PayloadCodec getCodec(String name) throws IOException {
+
+        if (StringUtils.isBlank(name)) {
+            name = DEFAULT;
+        }
+
+        PayloadCodec codec = CODECS.get(name.trim().toLowerCase());
+        if (codec == null) {
+            throw new IOException(String.format("Unknown compression codec '%s', available are %s", name, CODECS.keySet()));
+        }
+
+        if (codec instanceof ReflectiveCodec && !((ReflectiveCodec) codec).isAvailable()) {
+            throw new IOException(String.format("Compression codec '%s' is not available, library is missing.", name));
+        }
+
+        return codec;
+    }
+
+    /**
+     * GZIP, compatible with previous versions.
+     */
+    private static class GzipCodec implements PayloadCodec {
+
+        @Override
+        public String getName() {
+            return GZIP;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os, final int level) throws IOException {
+            return new GZIPOutputStream(os, BUFFER_SIZE) {
+                {
+                    if (level != DEFAULT_LEVEL) {
+                        def.setLevel(level);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            return new GZIPInputStream(is, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * ZLIB deflate, less overhead than gzip.
+     */
+    private static class DeflateCodec implements PayloadCodec {
+
+        @Override
+        public String getName() {
+            return DEFLATE;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os, int level) throws IOException {
+            final Deflater deflater = new Deflater(level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level);
+            return new DeflaterOutputStream(os, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(is, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * No compression, for content that is compressed already.
+     */
+    private static class NoneCodec implements PayloadCodec {
+
+        @Override
+        public String getName() {
+            return NONE;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os, int level) {
+            return os;
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) {
+            return is;
+        }
+    }
+
+    /**
+     * Codec for an optional library, the stream classes are looked up via
+     * reflection so the library is not required at compile time.
+     */
+    private static class ReflectiveCodec implements PayloadCodec {
+
+        private final String name;
+        private final Constructor<?> outputConstructor;
+        private final Constructor<?> outputLevelConstructor;
+        private final Constructor<?> inputConstructor;
+
+        ReflectiveCodec(String name, String outputClass, String inputClass, boolean supportsLevel) {
+            this.name = name;
+
+            Constructor<?> output = null;
+            Constructor<?> outputLevel = null;
+            Constructor<?> input = null;
+            try {
+                ClassLoader loader = PayloadCodecs.class.getClassLoader();
+                Class<?> out = Class.forName(outputClass, false, loader);
+                Class<?> in = Class.forName(inputClass, false, loader);
+                output = out.getConstructor(OutputStream.class);
+                if (supportsLevel) {
+                    outputLevel = out.getConstructor(OutputStream.class, int.class);
+                }
+                input = in.getConstructor(InputStream.class);
+
+            } catch (ClassNotFoundException | NoSuchMethodException | LinkageError ex) {
+                LOG.debug(String.format("Compression codec '%s' not available: %s", name, ex.getMessage()));
+            }
+
+            outputConstructor = output;
+            outputLevelConstructor = outputLevel;
+            inputConstructor = input;
+        }
+
+        boolean isAvailable() {
+            return outputConstructor != null && inputConstructor != null;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os, int level) throws IOException {
+            if (level != DEFAULT_LEVEL && outputLevelConstructor != null) {
+                return (OutputStream) newInstance(outputLevelConstructor, os, level);
+            }
+            return (OutputStream) newInstance(outputConstructor, os);
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) throws IOException {
+            return (InputStream) newInstance(inputConstructor, is);
+        }
+
+        private Object newInstance(Constructor<?> constructor, Object... args) throws IOException {
+            if (constructor == null) {
+                throw new IOException(String.format("Compression codec '%s' is not available, library is missing.", name));
+            }
+            try {
+                return constructor.newInstance(args);
+
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause == null ? ex.getMessage() : cause.getMessage(), cause);
+
+            } catch (InstantiationException | IllegalAccessException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.jms.shared.eXistMessage;
+
+/**
+ * Reassembles chunked transfers into a spool directory.
+ *
+ * For each transfer three files are kept: the header (message without
+ * payload), the data and a marker file with one byte per received chunk.
+ * Chunks that were received before, e.g. when a transfer is sent again after
+ * a restart, are not written again.
+ *
+ * @author Dannes Wessels
+ */
+public class ChunkAssembler {
+
+    private final static Logger LOG = LogManager.getLogger(ChunkAssembler.class);
+
+    private static final String HEADER_SUFFIX = ".header";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    /**
+     * Incomplete transfers are removed after this period.
+     */
+    private static final long STALE_TIMEOUT = 24 * 60 * 60 * 1000L;
+
+    private static final Pattern TRANSFER_ID = Pattern.compile("[0-9a-fA-F-]{1,64}");
+
+    private final Path spoolDirectory;
+
+    /**
+     * Constructor
+     *
+     * @param spoolDirectory Directory to store the chunks
+     * @throws IOException The directory could not be created.
+     */
+    public ChunkAssembler(Path spoolDirectory) throws IOException {
+        this.spoolDirectory = spoolDirectory;
+        Files.createDirectories(spoolDirectory);
+        removeStaleTransfers();
+    }
+
+    /**
+     * Process header, chunk or completion message.
+     *
+     * @param em The received message, the payload contains the chunk data.
+     * @return The reassembled message when the transfer is complete, NULL
+     * otherwise.
+     * @throws MessageReceiveException The message is not valid.
+     */
+    public synchronized eXistMessage process(eXistMessage em) {
+
+        Map<String, Object> metadata = em.getMetadata();
+        String type = (String) metadata.get(MessageHelper.EXIST_CHUNK_TYPE);
+        String transferId = (String) metadata.get(MessageHelper.EXIST_CHUNK_TRANSFER_ID);
+
+        if (transferId == null || !TRANSFER_ID.matcher(transferId).matches()) {
+            throw new MessageReceiveException(String.format("Invalid transfer id '%s'", transferId));
+        }
+
+        try {
+            if (MessageHelper.CHUNK_TYPE_HEADER.equals(type)) {
+                startTransfer(transferId, em);
+                return null;
+
+            } else if (MessageHelper.CHUNK_TYPE_CHUNK.equals(type)) {
+                writeChunk(transferId, em);
+                return null;
+
+            } else if (MessageHelper.CHUNK_TYPE_COMPLETE.equals(type)) {
+                return completeTransfer(transferId);
+
+            } else {
+                throw new MessageReceiveException(String.format("Unknown chunk type '%s'", type));
+            }
+
+        } catch (IOException ex) {
+            String errorMessage = String.format("Unable to process chunk of transfer %s: %s", transferId, ex.getMessage());
+            LOG.error(errorMessage, ex);
+            throw new MessageReceiveException(errorMessage, ex);
+        }
+    }
+
+    /**
+     * Store header; when the transfer is known already the received chunks are
+     * kept.
+     */
+    private void startTransfer(String transferId, eXistMessage em) throws IOException {
+
+        Path header = spoolDirectory.resolve(transferId + HEADER_SUFFIX);
+        if (Files.exists(header)) {
+            LOG.info(String.format("Resuming transfer %s of %s", transferId, em.getResourcePath()));
+            return;
+        }
+
+        int count = getInt(em.getMetadata(), MessageHelper.EXIST_CHUNK_COUNT);
+
+        // Marker per chunk, all zero
+        try (FileChannel channel = FileChannel.open(spoolDirectory.resolve(transferId + CHUNKS_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(count));
+        }
+
+        Files.deleteIfExists(spoolDirectory.resolve(transferId + DATA_SUFFIX));
+
+        // Header is written last, it marks the transfer as started
+        em.releasePayload();
+        Path tmp = spoolDirectory.resolve(transferId + HEADER_SUFFIX + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(tmp))) {
+            MessageHelper.writeHeader(dos, em);
+        }
+        Files.move(tmp, header);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Started transfer %s of %s, %s chunks", transferId, em.getResourcePath(), count));
+        }
+    }
+
+    /**
+     * Verify chunk and write it at its position in the data file.
+     */
+    private void writeChunk(String transferId, eXistMessage em) throws IOException {
+
+        eXistMessage header = readHeader(transferId);
+        if (header == null) {
+            LOG.error(String.format("No header for transfer %s, chunk ignored.", transferId));
+            return;
+        }
+
+        int count = getInt(header.getMetadata(), MessageHelper.EXIST_CHUNK_COUNT);
+        int chunkSize = getInt(header.getMetadata(), MessageHelper.EXIST_CHUNK_SIZE);
+        int sequence = getInt(em.getMetadata(), MessageHelper.EXIST_CHUNK_SEQUENCE);
+        long checksum = getLong(em.getMetadata(), MessageHelper.EXIST_CHUNK_CHECKSUM);
+
+        if (sequence < 0 || sequence >= count) {
+            throw new MessageReceiveException(String.format("Chunk %s of transfer %s out of range (%s chunks)", sequence, transferId, count));
+        }
+
+        Path chunks = spoolDirectory.resolve(transferId + CHUNKS_SUFFIX);
+        try (FileChannel markers = FileChannel.open(chunks, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            ByteBuffer marker = ByteBuffer.allocate(1);
+            markers.read(marker, sequence);
+            if (marker.get(0) != 0) {
+                LOG.debug(String.format("Chunk %s of transfer %s was received before.", sequence, transferId));
+                return;
+            }
+
+            byte[] data = em.getPayload();
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            if (crc.getValue() != checksum) {
+                throw new MessageReceiveException(String.format("Checksum error in chunk %s of transfer %s", sequence, transferId));
+            }
+
+            try (FileChannel channel = FileChannel.open(spoolDirectory.resolve(transferId + DATA_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = (long) sequence * chunkSize;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+
+            markers.write(ByteBuffer.wrap(new byte[]{1}), sequence);
+        }
+    }
+
+    /**
+     * Verify that all chunks are received and the checksum matches.
+     */
+    private eXistMessage completeTransfer(String transferId) throws IOException {
+
+        eXistMessage em = readHeader(transferId);
+        if (em == null) {
+            LOG.error(String.format("No header for transfer %s, completion ignored.", transferId));
+            return null;
+        }
+
+        Path chunks = spoolDirectory.resolve(transferId + CHUNKS_SUFFIX);
+        byte[] markers = Files.readAllBytes(chunks);
+        int missing = 0;
+        for (byte marker : markers) {
+            if (marker == 0) {
+                missing++;
+            }
+        }
+
+        if (missing > 0) {
+            // Keep what we have, a resent transfer can complete it
+            LOG.error(String.format("Transfer %s of %s is incomplete, %s of %s chunks missing.",
+                    transferId, em.getResourcePath(), missing, markers.length));
+            return null;
+        }
+
+        Path data = spoolDirectory.resolve(transferId + DATA_SUFFIX);
+        long length = getLong(em.getMetadata(), MessageHelper.EXIST_CHUNK_LENGTH);
+        long checksum = getLong(em.getMetadata(), MessageHelper.EXIST_CHUNK_CHECKSUM);
+
+        CRC32 crc = new CRC32();
+        try (InputStream is = Files.newInputStream(data)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+
+        if (crc.getValue() != checksum || Files.size(data) != length) {
+            removeTransfer(transferId);
+            throw new MessageReceiveException(String.format("Checksum error in transfer %s of %s", transferId, em.getResourcePath()));
+        }
+
+        // The data file is deleted when the payload is released
+        Files.deleteIfExists(spoolDirectory.resolve(transferId + HEADER_SUFFIX));
+        Files.deleteIfExists(chunks);
+        em.setPayload(PayloadBuffer.wrap(data));
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Completed transfer %s of %s (%s bytes)", transferId, em.getResourcePath(), length));
+        }
+
+        return em;
+    }
+
+    private eXistMessage readHeader(String transferId) throws IOException {
+        Path header = spoolDirectory.resolve(transferId + HEADER_SUFFIX);
+        if (!Files.exists(header)) {
+            return null;
+        }
+        try (DataInputStream dis = new DataInputStream(Files.newInputStream(header))) {
+            return MessageHelper.readHeader(dis);
+        }
+    }
+
+    private void removeTransfer(String transferId) throws IOException {
+        Files.deleteIfExists(spoolDirectory.resolve(transferId + HEADER_SUFFIX));
+        Files.deleteIfExists(spoolDirectory.resolve(transferId + CHUNKS_SUFFIX));
+        Files.deleteIfExists(spoolDirectory.resolve(transferId + DATA_SUFFIX));
+    }
+
+    /**
+     * Remove files of transfers that have not been completed in time.
+     */
+    private void removeStaleTransfers() throws IOException {
+        long limit = System.currentTimeMillis() - STALE_TIMEOUT;
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(spoolDirectory)) {
+            files = stream.collect(Collectors.toList());
+        }
+
+        for (Path file : files) {
+            if (Files.getLastModifiedTime(file).toMillis() < limit) {
+                LOG.info(String.format("Removing stale transfer file %s", file));
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int getInt(Map<String, Object> metadata, String key) {
+        Object value = metadata.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        throw new MessageReceiveException(String.format("Missing or invalid '%s'", key));
+    }
+
+    private static long getLong(Map<String, Object> metadata, String key) {
+        Object value = metadata.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        throw new MessageReceiveException(String.format("Missing or invalid '%s'", key));
+    }
+}
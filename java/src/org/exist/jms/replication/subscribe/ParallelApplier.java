@@ -0,0 +1,154 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.exist.jms.shared.eXistMessage;
+
+/**
+ * Applies replicated changes on a number of worker threads. The changes of
+ * a document are always applied by the same worker, in order of arrival.
+ * Changes that touch more than one path or a complete subtree (move, copy
+ * and all collection operations) are barriers: they are applied when all
+ * earlier changes are applied, later changes are not started before the
+ * barrier is applied. The receiving thread uses the returned futures to
+ * acknowledge changes only after they are applied.
+ *
+ * @author Dannes Wessels
+ */
+class ParallelApplier {
+
+    /**
+     * Number of changes that can be queued per worker, the receiving thread
+     * waits when all queues are full.
+     */
+    private static final int QUEUE_SIZE = 16;
+
+    private final ExecutorService[] workers;
+    private final Semaphore capacity;
+    private final int size;
+
+    private int inFlight = 0;
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the receiver, used for the names of the threads
+     * @param nrThreads Number of worker threads
+     */
+    ParallelApplier(String name, int nrThreads) {
+        workers = new ExecutorService[nrThreads];
+        for (int i = 0; i < nrThreads; i++) {
+            String threadName = String.format("jms-apply-%s-%s", name, i);
+            workers[i] = Executors.newSingleThreadExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        size = nrThreads * QUEUE_SIZE;
+        capacity = new Semaphore(size);
+    }
+
+    /**
+     * @return Number of changes that can be submitted without waiting.
+     */
+    int getCapacity() {
+        return size;
+    }
+
+    /**
+     * Check if a change must be applied when no other changes are applied.
+     *
+     * @param em The change
+     * @return TRUE for move, copy and collection operations.
+     */
+    static boolean isBarrier(eXistMessage em) {
+        return em.getResourceType() != eXistMessage.ResourceType.DOCUMENT
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.COPY;
+    }
+
+    /**
+     * Apply change of document on the worker of the path.
+     *
+     * @param path Path of the document
+     * @param task Applies the change
+     * @return Completes when the change is applied, or with the problem of
+     * the task.
+     * @throws InterruptedException Interrupted while waiting for a free slot.
+     */
+    Future<?> submit(String path, Runnable task) throws InterruptedException {
+
+        capacity.acquire();
+        synchronized (this) {
+            inFlight++;
+        }
+
+        try {
+            return workers[Math.floorMod(path.hashCode(), workers.length)].submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    done();
+                }
+            });
+
+        } catch (RejectedExecutionException ex) {
+            done();
+            throw ex;
+        }
+    }
+
+    private void done() {
+        capacity.release();
+        synchronized (this) {
+            inFlight--;
+            if (inFlight == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return TRUE when all submitted changes are applied.
+     */
+    synchronized boolean isIdle() {
+        return inFlight == 0;
+    }
+
+    /**
+     * Wait until all submitted changes are applied.
+     *
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+}
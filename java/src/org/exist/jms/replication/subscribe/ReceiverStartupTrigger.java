@@ -27,6 +27,7 @@ import org.exist.jms.shared.JmsConfiguration;
 import org.exist.jms.shared.Receiver;
 import org.exist.jms.shared.ReceiversManager;
 import org.exist.storage.DBBroker;
+import org.exist.xquery.XPathException;
 
 /**
  * Startup Trigger to fire-up a message receiver. Typically this trigger is started by
@@ -58,14 +59,19 @@ public class ReceiverStartupTrigger implements org.exist.storage.StartupTrigger
             JmsConfiguration jmsConfig = new JmsConfiguration();
             jmsConfig.loadSubscriberParameters(parameters);
 
-            // Setup listeners
-            ReplicationJmsListener jmsListener = new ReplicationJmsListener(broker.getBrokerPool());
+            // Setup listeners, all lanes share spool, delta cache and blob store
+            SubscriberResources resources = new SubscriberResources(broker.getBrokerPool(), parameters);
 
-            Receiver receiver = new Receiver(jmsConfig, jmsListener);
-            manager.register(receiver);
+            startReceiver(manager, jmsConfig, new ReplicationJmsListener(broker.getBrokerPool(), resources));
 
-            receiver.initialize();
-            receiver.start();
+            // One receiver per lane, small changes are not delayed by bulk transfers
+            for (Map.Entry<String, String> lane : parameters.getLanes().entrySet()) {
+                JmsConfiguration laneConfig = new JmsConfiguration();
+                laneConfig.loadSubscriberLane(parameters, lane.getKey(), lane.getValue());
+
+                startReceiver(manager, laneConfig, new ReplicationJmsListener(broker.getBrokerPool(), resources));
+                LOG.info(String.format("Subscription of lane %s was successful.", lane.getKey()));
+            }
 
             LOG.info("Subscription was successful.");
 
@@ -74,4 +80,13 @@ public class ReceiverStartupTrigger implements org.exist.storage.StartupTrigger
         }
     }
 
+    private static void startReceiver(ReceiversManager manager, JmsConfiguration jmsConfig,
+                                      ReplicationJmsListener jmsListener) throws XPathException {
+        Receiver receiver = new Receiver(jmsConfig, jmsListener);
+        manager.register(receiver);
+
+        receiver.initialize();
+        receiver.start();
+    }
+
 }
@@ -24,10 +24,15 @@ package org.exist.jms.replication.subscribe;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
 import org.exist.collections.Collection;
 import org.exist.collections.IndexInfo;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.BlobStore;
+import org.exist.jms.replication.shared.DeltaCache;
 import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.PayloadCodec;
+import org.exist.jms.replication.shared.PayloadCodecs;
 import org.exist.jms.shared.*;
 import org.exist.security.Account;
 import org.exist.security.Group;
@@ -37,23 +42,33 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
 import org.exist.util.MimeTable;
 import org.exist.util.MimeType;
-import org.exist.util.VirtualTempFile;
-import org.exist.util.VirtualTempFileInputSource;
 import org.exist.xmldb.XmldbURI;
 import org.xml.sax.InputSource;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.Session;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * JMS listener for receiving JMS replication messages
@@ -63,6 +78,27 @@ import java.util.zip.GZIPInputStream;
 public class ReplicationJmsListener extends eXistMessagingListener {
 
     private final static Logger LOG = LogManager.getLogger(ReplicationJmsListener.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Block for copying message bodies, one per receiving thread.
+     */
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    /**
+     * Changes applied by the workers are acknowledged at the latest this
+     * number of ms after the last message was received.
+     */
+    private static final long ACKNOWLEDGE_INTERVAL = 1000;
+
+    /**
+     * A change of a failed batch is applied at most this number of times
+     * when it fails with a temporary problem.
+     */
+    private static final int MAX_APPLY_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 500;
+
     private final BrokerPool brokerPool;
     private final org.exist.security.SecurityManager securityManager;
     private final TransactionManager txnManager;
@@ -70,17 +106,91 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     private String localID = null;
     private Report report = null;
 
+    private final SubscriberResources resources;
+
+    /**
+     * Workers that apply changes of documents, NULL when changes are
+     * applied by the receiving thread.
+     */
+    private ParallelApplier applier = null;
+
+    /**
+     * Changes that are submitted to the workers and not acknowledged yet,
+     * in order of arrival.
+     */
+    private final List<Submitted> submitted = new ArrayList<>();
+
+    /**
+     * Received changes that are not applied yet, and their messages. Only
+     * used by the receiving thread.
+     */
+    private final List<Message> batchMessages = new ArrayList<>();
+    private final List<eXistMessage> batchChanges = new ArrayList<>();
+    private long batchDeadline = 0;
+
+    /**
+     * Change that is applied by a worker.
+     */
+    private static class Submitted {
+
+        private final Message msg;
+        private final eXistMessage em;
+        private final Future<?> result;
+
+        Submitted(Message msg, eXistMessage em, Future<?> result) {
+            this.msg = msg;
+            this.em = em;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Provides the (uncompressed) content of a document.
+     */
+    @FunctionalInterface
+    private interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
     /**
      * Constructor
      *
      * @param brokerpool Reference to database broker pool
      */
     public ReplicationJmsListener(BrokerPool brokerpool) {
+        this(brokerpool, (SubscriberParameters) null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param brokerpool Reference to database broker pool
+     * @param parameters Subscriber parameters, NULL for defaults
+     */
+    public ReplicationJmsListener(BrokerPool brokerpool, SubscriberParameters parameters) {
+        this(brokerpool, new SubscriberResources(brokerpool, parameters));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param brokerpool Reference to database broker pool
+     * @param resources On-disk state, shared by the listeners of all lanes
+     */
+    public ReplicationJmsListener(BrokerPool brokerpool, SubscriberResources resources) {
         brokerPool = brokerpool;
         securityManager = brokerpool.getSecurityManager();
         txnManager = brokerpool.getTransactionManager();
         localID = Identity.getInstance().getIdentity();
         report = getReport();
+        this.resources = resources;
+    }
+
+    /**
+     * Remove document or collection from the delta cache, when in use.
+     */
+    private void forgetDelta(String path, boolean isCollection) {
+        resources.forgetDelta(path, isCollection);
     }
 
     /**
@@ -104,6 +214,64 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
+    /**
+     * A new session replaces a failed one (reconnect); the messages that are
+     * not acknowledged yet are received again by the new session.
+     */
+    @Override
+    public void setSession(Session session) {
+        if (!batchChanges.isEmpty() || !submitted.isEmpty()) {
+            LOG.info(String.format("Session is replaced, %s unacknowledged messages are received again.",
+                    batchChanges.size() + submitted.size()));
+            try {
+                if (applier != null) {
+                    applier.awaitIdle();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            submitted.clear();
+            clearBatch();
+        }
+        super.setSession(session);
+    }
+
+    /**
+     * Batches are collected by a receiving thread, which flushes the batch
+     * when its time has passed. Changes applied by workers are acknowledged
+     * by the receiving thread when no message arrives.
+     */
+    @Override
+    public long getReceiveTimeout() {
+
+        if (resources.getBatchSize() > 1) {
+            return batchChanges.isEmpty()
+                    ? resources.getBatchTime()
+                    : Math.max(1, batchDeadline - System.currentTimeMillis());
+        }
+
+        return resources.getApplyThreads() > 1 ? ACKNOWLEDGE_INTERVAL : 0;
+    }
+
+    @Override
+    public void onIdle() {
+
+        try {
+            if (!batchChanges.isEmpty() && System.currentTimeMillis() >= batchDeadline) {
+                flushBatch();
+            }
+
+            if (!submitted.isEmpty()) {
+                completeSubmitted();
+            }
+
+        } catch (Throwable t) {
+            report.addListenerError(t);
+            LOG.error(String.format("Could not apply changes: %s", t.getMessage()), t);
+            redeliver();
+        }
+    }
+
     @Override
     public void onMessage(Message msg) {
 
@@ -116,12 +284,28 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 String remoteID = msg.getStringProperty(Constants.EXIST_INSTANCE_ID);
                 if (localID.equals(remoteID)) {
                     LOG.info("Incoming JMS messsage was sent by this instance. Processing stopped.");
+                    trackSequence(msg);
                     return; // TODO: throw exception? probably not because message does not need to be re-received
                 }
             }
 
             if (msg instanceof BytesMessage) {
 
+                // Outdated changes are discarded before the content is read,
+                // chunked transfers are checked when all chunks are received
+                if (!msg.propertyExists(MessageHelper.EXIST_CHUNK_TYPE)) {
+                    String operation = msg.getStringProperty(eXistMessage.EXIST_RESOURCE_OPERATION);
+                    if (operation != null && isOutdated(msg.getObjectProperty(Constants.EXIST_HLC),
+                            msg.getStringProperty(Constants.EXIST_INSTANCE_ID),
+                            eXistMessage.ResourceOperation.valueOf(operation.toUpperCase(Locale.ENGLISH)),
+                            msg.getStringProperty(eXistMessage.EXIST_SOURCE_PATH),
+                            msg.getStringProperty(eXistMessage.EXIST_DESTINATION_PATH))) {
+                        trackSequence(msg);
+                        report.incMessageCounterOK();
+                        return;
+                    }
+                }
+
                 // Prepare received message
                 eXistMessage em = convertMessage((BytesMessage) msg);
 
@@ -133,42 +317,67 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                     }
                 }
 
+                // Chunked transfer: process when all chunks are received
+                if (em.getMetadata().containsKey(MessageHelper.EXIST_CHUNK_TYPE)) {
+                    em = resources.getChunkAssembler().process(em);
+                    if (em == null) {
+                        report.incMessageCounterOK();
+                        return;
+                    }
+
+                    Map<String, Object> metadata = em.getMetadata();
+                    if (isOutdated(metadata.get(Constants.EXIST_HLC), metadata.get(Constants.EXIST_INSTANCE_ID),
+                            em.getResourceOperation(), em.getResourcePath(), em.getDestinationPath())) {
+                        em.releasePayload();
+                        trackSequence(msg, em);
+                        report.incMessageCounterOK();
+                        return;
+                    }
+                }
+
                 // Report some details into logging
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(em.getReport());
                 }
 
-                // First step: distinct between update for documents and messsages
-                switch (em.getResourceType()) {
-                    case DOCUMENT:
-                        handleDocument(em);
-                        break;
-                    case COLLECTION:
-                        handleCollection(em);
-                        break;
-                    default:
-                        String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
-                        LOG.error(errorMessage);
-                        throw new MessageReceiveException(errorMessage);
+                if (resources.getBatchSize() > 1) {
+                    // Applied with other changes in one transaction
+                    addToBatch(msg, em);
+
+                } else if (resources.getApplyThreads() > 1 && !ParallelApplier.isBarrier(em)) {
+                    // Applied on a worker, in order per document
+                    submit(msg, em);
+
+                } else {
+                    // Barrier: all earlier changes are applied first
+                    completeSubmitted();
+
+                    apply(em);
+                    trackSequence(msg, em);
+                    msg.acknowledge();
+                    report.incMessageCounterOK();
                 }
-                report.incMessageCounterOK();
 
             } else {
                 // Only ByteMessage objects supported. 
                 throw new MessageReceiveException(String.format("Could not handle message type %s", msg.getClass().getSimpleName()));
             }
 
-        } catch (MessageReceiveException ex) {
-            // Thrown by local code. Just make it pass\
-            report.addListenerError(ex);
-            LOG.error(String.format("Could not handle received message: %s", ex.getMessage()), ex);
-            throw ex;
-
         } catch (Throwable t) {
-            // Something really unexpected happened. Report
             report.addListenerError(t);
-            LOG.error(t.getMessage(), t);
-            throw new MessageReceiveException(String.format("Could not handle received message: %s", t.getMessage()), t);
+
+            if (isRetryable(t)) {
+                // Temporary problem, e.g. lock or database not available
+                LOG.error(String.format("Could not handle received message, it is received again: %s", t.getMessage()), t);
+                redeliver();
+                throw (t instanceof MessageReceiveException) ? (MessageReceiveException) t
+                        : new MessageReceiveException(String.format("Could not handle received message: %s", t.getMessage()), t);
+            }
+
+            // Receiving the message again gives the same result
+            LOG.error(String.format("Could not handle received message %s, it is discarded: %s",
+                    getMessageId(msg), t.getMessage()), t);
+            discard(msg);
 
         } finally {
             // update statistics
@@ -178,6 +387,424 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
+    /**
+     * Apply change to the database, in its own transaction.
+     *
+     * @param em The change
+     */
+    private void apply(eXistMessage em) {
+
+        try {
+            applyInTransaction(Collections.singletonList(em));
+
+        } finally {
+            // Temporary files are removed
+            em.releasePayload();
+        }
+
+        registerChange(em);
+    }
+
+    /**
+     * Apply changes in one transaction, in order. When one of the changes
+     * fails none of them is committed.
+     *
+     * @param changes The changes
+     */
+    private void applyInTransaction(List<eXistMessage> changes) {
+
+        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
+             Txn txn = txnManager.beginTransaction()) {
+
+            setOrigin(txn);
+
+            for (eXistMessage em : changes) {
+                applyChange(broker, txn, em);
+            }
+
+            // Commit changes
+            txn.commit();
+
+        } catch (MessageReceiveException ex) {
+            throw ex;
+
+        } catch (Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new MessageReceiveException(String.format("Unable to apply changes: %s", t.getMessage()), t);
+        }
+    }
+
+    /**
+     * Apply change within transaction.
+     */
+    private void applyChange(DBBroker broker, Txn txn, eXistMessage em) {
+
+        // First step: distinct between update for documents and messsages
+        switch (em.getResourceType()) {
+            case DOCUMENT:
+                handleDocument(broker, txn, em);
+                break;
+            case COLLECTION:
+                handleCollection(broker, txn, em);
+                break;
+            default:
+                String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
+                LOG.error(errorMessage);
+                throw new MessageReceiveException(errorMessage);
+        }
+    }
+
+    /**
+     * Add change to the current batch, the batch is applied when it is full
+     * or when the batch time of its first change has passed.
+     */
+    private void addToBatch(Message msg, eXistMessage em) throws JMSException {
+
+        batchMessages.add(msg);
+        batchChanges.add(em);
+
+        if (batchChanges.size() == 1) {
+            batchDeadline = System.currentTimeMillis() + resources.getBatchTime();
+        }
+
+        if (batchChanges.size() >= resources.getBatchSize() || System.currentTimeMillis() >= batchDeadline) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Apply the changes of the current batch in one transaction and
+     * acknowledge the messages. When the transaction fails the changes are
+     * applied one by one; a change that fails again is reported and
+     * discarded, the batch is acknowledged.
+     *
+     * @throws MessageReceiveException The transaction of the batch failed
+     * with a temporary problem, nothing is committed.
+     */
+    private void flushBatch() throws JMSException {
+
+        if (batchChanges.isEmpty()) {
+            return;
+        }
+
+        try {
+            try {
+                applyInTransaction(batchChanges);
+                for (int i = 0; i < batchChanges.size(); i++) {
+                    applied(batchMessages.get(i), batchChanges.get(i));
+                }
+
+            } catch (MessageReceiveException ex) {
+                if (isRetryable(ex)) {
+                    throw ex;
+                }
+
+                LOG.warn(String.format("Batch of %s changes failed, changes are applied one by one: %s",
+                        batchChanges.size(), ex.getMessage()));
+
+                for (int i = 0; i < batchChanges.size(); i++) {
+                    Message msg = batchMessages.get(i);
+                    eXistMessage em = batchChanges.get(i);
+                    try {
+                        applySingle(em);
+                        applied(msg, em);
+
+                    } catch (MessageReceiveException e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw e;
+                        }
+                        // Receiving the batch again would apply the committed changes again
+                        report.addListenerError(e);
+                        LOG.error(String.format("Could not apply change of %s, message %s is discarded: %s",
+                                em.getResourcePath(), getMessageId(msg), e.getMessage()), e);
+                        trackSequence(msg, em);
+                    }
+                }
+            }
+
+            // Acknowledges all messages received by the session so far
+            batchMessages.get(batchMessages.size() - 1).acknowledge();
+
+        } finally {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Apply change of a failed batch in its own transaction; a temporary
+     * problem is retried a few times.
+     */
+    private void applySingle(eXistMessage em) {
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                applyInTransaction(Collections.singletonList(em));
+                return;
+
+            } catch (MessageReceiveException ex) {
+                if (attempt >= MAX_APPLY_ATTEMPTS || !isRetryable(ex)) {
+                    throw ex;
+                }
+                LOG.warn(String.format("Could not apply change of %s, attempt %s: %s", em.getResourcePath(), attempt, ex.getMessage()));
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MessageReceiveException(String.format("Interrupted while applying change of %s", em.getResourcePath()), ex);
+            }
+        }
+    }
+
+    /**
+     * Register committed change of batch.
+     */
+    private void applied(Message msg, eXistMessage em) throws JMSException {
+        trackSequence(msg, em);
+        registerChange(em);
+        report.incMessageCounterOK();
+    }
+
+    /**
+     * Forget the changes of the current batch, temporary files are removed.
+     */
+    private void clearBatch() {
+        for (eXistMessage em : batchChanges) {
+            em.releasePayload();
+        }
+        batchMessages.clear();
+        batchChanges.clear();
+    }
+
+    /**
+     * Apply change of document on a worker thread. The message is
+     * acknowledged when it and all earlier messages are applied.
+     */
+    private void submit(Message msg, eXistMessage em) throws InterruptedException, JMSException {
+
+        if (applier == null) {
+            applier = new ParallelApplier(getIdentification(), resources.getApplyThreads());
+        }
+
+        // Acknowledge applied changes, at the latest when the queues of the
+        // workers are full
+        if (!submitted.isEmpty() && (applier.isIdle() || submitted.size() >= applier.getCapacity())) {
+            completeSubmitted();
+        }
+
+        submitted.add(new Submitted(msg, em, applier.submit(em.getResourcePath(), () -> apply(em))));
+    }
+
+    /**
+     * Wait until the changes on the workers are applied, register them in
+     * order of arrival and acknowledge them. A change that fails again when
+     * it is received again is reported and acknowledged; otherwise nothing
+     * is acknowledged, the messages are received again.
+     *
+     * @throws MessageReceiveException A change failed with a temporary
+     * problem.
+     */
+    private void completeSubmitted() throws InterruptedException, JMSException {
+
+        if (submitted.isEmpty()) {
+            return;
+        }
+
+        Throwable failure = null;
+        for (Submitted change : submitted) {
+            try {
+                change.result.get();
+                if (failure == null) {
+                    trackSequence(change.msg, change.em);
+                    report.incMessageCounterOK();
+                }
+
+            } catch (ExecutionException ex) {
+                if (failure != null) {
+                    continue;
+                }
+
+                Throwable cause = ex.getCause();
+                if (isRetryable(cause)) {
+                    failure = cause;
+                    LOG.error(String.format("Could not apply change of %s: %s", change.em.getResourcePath(), cause.getMessage()), cause);
+
+                } else {
+                    report.addListenerError(cause);
+                    LOG.error(String.format("Could not apply change of %s, message %s is discarded: %s",
+                            change.em.getResourcePath(), getMessageId(change.msg), cause.getMessage()), cause);
+                    trackSequence(change.msg, change.em);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw new MessageReceiveException(String.format("Could not apply change: %s", failure.getMessage()), failure);
+        }
+
+        // Acknowledges all messages received by the session so far
+        submitted.get(submitted.size() - 1).msg.acknowledge();
+        submitted.clear();
+    }
+
+    /**
+     * Acknowledge message that could not be applied, after the changes
+     * received before it are completed.
+     */
+    private void discard(Message msg) {
+
+        try {
+            flushBatch();
+            completeSubmitted();
+
+            trackSequence(msg);
+            msg.acknowledge();
+
+        } catch (Throwable t) {
+            report.addListenerError(t);
+            LOG.error(String.format("Could not acknowledge discarded message: %s", t.getMessage()), t);
+            redeliver();
+            throw new MessageReceiveException(String.format("Could not handle received message: %s", t.getMessage()), t);
+        }
+    }
+
+    /**
+     * Check if a failed change can succeed when it is applied again: the
+     * database or a lock was not available, or the session failed.
+     */
+    private static boolean isRetryable(Throwable t) {
+
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LockException || cause instanceof EXistException
+                    || cause instanceof InterruptedException || cause instanceof JMSException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getMessageId(Message msg) {
+        try {
+            return msg.getJMSMessageID();
+        } catch (JMSException ex) {
+            return "?";
+        }
+    }
+
+    /**
+     * Let the session receive all messages that are not acknowledged again,
+     * after the workers have finished their changes.
+     */
+    private void redeliver() {
+
+        try {
+            if (applier != null) {
+                applier.awaitIdle();
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error(String.format("Interrupted while waiting for workers: %s", ex.getMessage()));
+        }
+        submitted.clear();
+        clearBatch();
+
+        Session session = getSession();
+        if (session == null) {
+            return;
+        }
+
+        try {
+            session.recover();
+
+        } catch (JMSException ex) {
+            report.addListenerError(ex);
+            LOG.error(String.format("Could not receive messages again: %s", ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Register sequence number of applied message, when available.
+     */
+    private void trackSequence(Message msg, eXistMessage em) throws JMSException {
+        Map<String, Object> metadata = em.getMetadata();
+        trackSequence(msg, metadata.get(Constants.EXIST_SEQUENCE), metadata.get(Constants.EXIST_INSTANCE_ID));
+    }
+
+    /**
+     * Register sequence number of message that is consumed without being
+     * applied (e.g. discarded), when available; otherwise it is reported
+     * as missing. All messages of a chunked transfer carry the number of
+     * the transfer, only its completion message is registered.
+     */
+    private void trackSequence(Message msg) throws JMSException {
+        String chunkType = msg.getStringProperty(MessageHelper.EXIST_CHUNK_TYPE);
+        if (chunkType != null && !MessageHelper.CHUNK_TYPE_COMPLETE.equals(chunkType)) {
+            return;
+        }
+        trackSequence(msg, msg.getObjectProperty(Constants.EXIST_SEQUENCE), msg.getStringProperty(Constants.EXIST_INSTANCE_ID));
+    }
+
+    private void trackSequence(Message msg, Object sequence, Object origin) throws JMSException {
+
+        if (!(sequence instanceof Number) || origin == null) {
+            return;
+        }
+
+        SequenceTracker.getInstance().applied(origin.toString(), String.valueOf(msg.getJMSDestination()),
+                ((Number) sequence).longValue());
+    }
+
+    /**
+     * Check if a change is older than the last change of the resources it
+     * changes (last writer wins). The timestamp is merged into the clock of
+     * this instance.
+     *
+     * @return TRUE when the change must be discarded.
+     */
+    private boolean isOutdated(Object timestamp, Object origin, eXistMessage.ResourceOperation operation,
+                               String path, String destinationPath) {
+
+        if (!(timestamp instanceof Number) || origin == null || path == null) {
+            return false;
+        }
+
+        long hlc = ((Number) timestamp).longValue();
+        HybridLogicalClock.getInstance().update(hlc);
+
+        if (!resources.isLastWriterWins()) {
+            return false;
+        }
+
+        List<String> paths = ResourceClocks.getChangedPaths(operation, path, destinationPath);
+        if (ResourceClocks.getInstance().isNewer(paths, hlc, origin.toString())) {
+            return false;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Discarded %s of %s (%s from %s), a newer change is applied already.",
+                    operation, path, HybridLogicalClock.toString(hlc), origin));
+        }
+        return true;
+    }
+
+    /**
+     * Register timestamp of applied change, when available.
+     */
+    private void registerChange(eXistMessage em) {
+
+        Map<String, Object> metadata = em.getMetadata();
+        Object timestamp = metadata.get(Constants.EXIST_HLC);
+        Object origin = metadata.get(Constants.EXIST_INSTANCE_ID);
+        if (!(timestamp instanceof Number) || origin == null || em.getResourcePath() == null) {
+            return;
+        }
+
+        ResourceClocks.getInstance().update(ResourceClocks.getChangedPaths(em.getResourceOperation(),
+                em.getResourcePath(), em.getDestinationPath()), ((Number) timestamp).longValue(), origin.toString());
+    }
+
     //
     // The code below handles the incoming message ; DW: should be moved to seperate class
     //
@@ -203,12 +830,27 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             value = bm.getStringProperty(eXistMessage.EXIST_DESTINATION_PATH);
             em.setDestinationPath(value);
 
-            // This is potentially memory intensive
-            long size = bm.getBodyLength();
-            byte[] payload = new byte[(int) size];
-            bm.readBytes(payload);
+            // Body is copied in blocks, large payloads to a temporary file
+            PayloadBuffer payload = new PayloadBuffer(resources.getSpillThreshold());
+            try {
+                byte[] block = READ_BUFFER.get();
+                int read;
+                while ((read = bm.readBytes(block)) > 0) {
+                    payload.write(block, 0, read);
+                }
+                payload.close();
+
+            } catch (IOException | JMSException | RuntimeException ex) {
+                payload.release();
+                throw ex;
+            }
             em.setPayload(payload);
 
+        } catch (IOException ex) {
+            String errorMessage = String.format("Unable to buffer incoming message. %s", ex.getMessage());
+            LOG.error(errorMessage, ex);
+            throw new MessageReceiveException(errorMessage, ex);
+
         } catch (JMSException ex) {
             String errorMessage = String.format("Unable to convert incoming message. (%s):  %s", ex.getErrorCode(), ex.getMessage());
             LOG.error(errorMessage, ex);
@@ -228,28 +870,34 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      *
      * @param em Message containing information about documents
      */
-    private void handleDocument(eXistMessage em) {
+    private void handleDocument(DBBroker broker, Txn txn, eXistMessage em) {
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createUpdateDocument(em);
+                createUpdateDocument(broker, txn, em);
+                break;
+
+            case DELTA:
+                applyDocumentDelta(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataDocument(em);
+                updateMetadataDocument(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteDocument(em);
+                forgetDelta(em.getResourcePath(), false);
+                deleteDocument(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateDocument(em, false);
+                forgetDelta(em.getResourcePath(), false);
+                relocateDocument(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateDocument(em, true);
+                relocateDocument(broker, txn, em, true);
                 break;
 
             default:
@@ -264,28 +912,30 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      *
      * @param em Message containing information about collections
      */
-    private void handleCollection(eXistMessage em) {
+    private void handleCollection(DBBroker broker, Txn txn, eXistMessage em) {
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createCollection(em);
+                createCollection(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataCollection(em);
+                updateMetadataCollection(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteCollection(em);
+                forgetDelta(em.getResourcePath(), true);
+                deleteCollection(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateCollection(em, false);
+                forgetDelta(em.getResourcePath(), true);
+                relocateCollection(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateCollection(em, true);
+                relocateCollection(broker, txn, em, true);
                 break;
 
             default:
@@ -298,7 +948,281 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created document in database
      */
-    private void createUpdateDocument(eXistMessage em) {
+    private void createUpdateDocument(DBBroker broker, Txn txn, eXistMessage em) {
+
+        // Binary document sent by reference, read from the blob store
+        Object blobHash = em.getMetadata().get(MessageHelper.EXIST_BLOB_HASH);
+        if (blobHash instanceof String) {
+            createDocumentFromBlob(broker, txn, em, (String) blobHash);
+            return;
+        }
+
+        // Get codec for the payload, gzip when not specified
+        final PayloadCodec codec = getCodec(em.getMetadata());
+
+        // Keep version when the publisher sends deltas
+        Object hash = em.getMetadata().get(MessageHelper.EXIST_DELTA_HASH);
+
+        // XML is read twice (validate and store) and a cached version is read
+        // once more: the payload is decompressed only once
+        PayloadBuffer content = null;
+        try {
+            ContentSource source;
+            long length;
+            if (!PayloadCodecs.NONE.equals(codec.getName())
+                    && (isXMLType(XmldbURI.create(em.getResourcePath()).lastSegment()) || hash instanceof String)) {
+                content = decompress(em, codec);
+                source = content::getInputStream;
+                length = content.length();
+
+            } else {
+                source = () -> codec.decompress(em.getPayloadInputStream());
+                length = em.getPayloadLength();
+            }
+
+            storeDocument(broker, txn, em, source, length);
+            resources.markInSync(em.getResourcePath());
+
+            if (hash instanceof String) {
+                cacheVersion(em, source, (String) hash);
+            }
+
+        } finally {
+            if (content != null) {
+                content.release();
+            }
+        }
+    }
+
+    /**
+     * Decompress payload, in memory or to a temporary file depending on its
+     * size.
+     */
+    private PayloadBuffer decompress(eXistMessage em, PayloadCodec codec) {
+
+        PayloadBuffer content = new PayloadBuffer(resources.getSpillThreshold());
+        try (InputStream is = codec.decompress(em.getPayloadInputStream())) {
+            byte[] block = READ_BUFFER.get();
+            int read;
+            while ((read = is.read(block)) > 0) {
+                content.write(block, 0, read);
+            }
+            content.close();
+            return content;
+
+        } catch (IOException ex) {
+            content.release();
+            String errorMessage = String.format("Unable to decompress content of %s: %s", em.getResourcePath(), ex.getMessage());
+            LOG.error(errorMessage);
+            throw new MessageReceiveException(errorMessage, ex);
+        }
+    }
+
+    /**
+     * @return TRUE when the document is stored as XML, based on its name.
+     */
+    private static boolean isXMLType(XmldbURI docURI) {
+        MimeType mime = MimeTable.getInstance().getContentTypeFor(docURI.toString());
+        return mime != null && mime.isXMLType();
+    }
+
+    /**
+     * Store binary document from the blob store.
+     */
+    private void createDocumentFromBlob(DBBroker broker, Txn txn, eXistMessage em, final String hash) {
+
+        final BlobStore store;
+        long size;
+        try {
+            store = resources.getBlobStore();
+            size = store.size(hash);
+
+        } catch (IOException ex) {
+            LOG.error(ex.getMessage());
+            throw new MessageReceiveException(String.format("Unable to read blob of %s: %s", em.getResourcePath(), ex.getMessage()), ex);
+        }
+
+        Object expected = em.getMetadata().get(MessageHelper.EXIST_BLOB_SIZE);
+        if (expected instanceof Number && ((Number) expected).longValue() != size) {
+            String errorMessage = String.format("Size of blob %s is %s, expected %s", hash, size, expected);
+            LOG.error(errorMessage);
+            throw new MessageReceiveException(errorMessage);
+        }
+
+        storeDocument(broker, txn, em, () -> store.open(hash), size);
+    }
+
+    /**
+     * Keep the received version of the document as base for deltas.
+     */
+    private void cacheVersion(eXistMessage em, ContentSource source, String hash) {
+
+        String path = em.getResourcePath();
+        Path file = null;
+        try {
+            DeltaCache cache = resources.getDeltaCache();
+            file = cache.createTempFile();
+            try (InputStream is = source.open()) {
+                Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (hash.equals(DeltaCache.hash(file))) {
+                cache.put(path, file, hash, 0);
+                file = null;
+            } else {
+                LOG.error(String.format("Content hash of %s does not match, version is not cached.", path));
+                cache.remove(path);
+            }
+
+        } catch (IOException ex) {
+            // Not fatal, the next delta is rejected and a full update follows
+            LOG.error(String.format("Unable to cache version of %s: %s", path, ex.getMessage()));
+            forgetDelta(path, false);
+
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Apply delta to the previous version of the document and store the
+     * result. The previous version is taken from the cache, or serialized
+     * from the database when the cache does not have it; when it does not
+     * match the base of the delta the delta is skipped, as are later deltas,
+     * until the next full update of the publisher brings the document in
+     * sync.
+     */
+    private void applyDocumentDelta(DBBroker broker, Txn txn, eXistMessage em) {
+
+        Map<String, Object> metaData = em.getMetadata();
+        String path = em.getResourcePath();
+
+        String baseHash = getString(metaData, MessageHelper.EXIST_DELTA_BASE_HASH);
+        String hash = getString(metaData, MessageHelper.EXIST_DELTA_HASH);
+        long prefix = getLong(metaData, MessageHelper.EXIST_DELTA_PREFIX);
+        long suffix = getLong(metaData, MessageHelper.EXIST_DELTA_SUFFIX);
+        PayloadCodec codec = getCodec(metaData);
+
+        if (resources.isOutOfSync(path)) {
+            LOG.warn(String.format("Delta of %s is skipped, waiting for the next full update.", path));
+            return;
+        }
+
+        Path serialized = null;
+        Path target = null;
+        try {
+            DeltaCache cache = resources.getDeltaCache();
+
+            // Find the version the delta applies to
+            Path base = null;
+            DeltaCache.Entry entry = cache.get(path);
+            if (entry != null && entry.getHash().equals(baseHash)) {
+                base = entry.getFile();
+
+            } else {
+                serialized = serializeDocument(cache, path);
+                if (serialized != null && baseHash.equals(DeltaCache.hash(serialized))) {
+                    base = serialized;
+                }
+            }
+
+            if (base == null) {
+                skipDelta(cache, path, String.format("Base version %s of %s is not available", baseHash, path));
+                return;
+            }
+
+            // Reconstruct the new version
+            target = cache.createTempFile();
+            String actualHash;
+            try (InputStream is = codec.decompress(em.getPayloadInputStream());
+                    DigestOutputStream dos = DeltaCache.createDigestStream(new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE))) {
+                DeltaCache.apply(base, prefix, suffix, is, dos);
+                dos.flush();
+                actualHash = DeltaCache.toHash(dos.getMessageDigest());
+            }
+
+            if (!hash.equals(actualHash)) {
+                skipDelta(cache, path, String.format("Content hash of %s does not match after applying delta", path));
+                return;
+            }
+
+            final Path content = target;
+            storeDocument(broker, txn, em, () -> Files.newInputStream(content), Files.size(content));
+
+            cache.put(path, target, hash, 0);
+            target = null;
+
+        } catch (IOException ex) {
+            String errorMessage = String.format("Unable to apply delta to %s: %s", path, ex.getMessage());
+            LOG.error(errorMessage, ex);
+            throw new MessageReceiveException(errorMessage, ex);
+
+        } finally {
+            deleteQuietly(serialized);
+            deleteQuietly(target);
+        }
+    }
+
+    /**
+     * Skip delta that cannot be applied, the document needs a full update.
+     */
+    private void skipDelta(DeltaCache cache, String path, String reason) {
+        cache.remove(path);
+        resources.markOutOfSync(path);
+        LOG.error(String.format("%s, delta is skipped until the next full update.", reason));
+    }
+
+    /**
+     * Serialize stored XML document uncompressed to file in the cache
+     * directory.
+     *
+     * @return The file, NULL when there is no such XML document.
+     */
+    private Path serializeDocument(DeltaCache cache, String path) throws IOException {
+
+        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()))) {
+
+            DocumentImpl doc = broker.getXMLResource(XmldbURI.create(path), Lock.READ_LOCK);
+            if (doc == null) {
+                return null;
+            }
+
+            try {
+                if (doc.getResourceType() != DocumentImpl.XML_FILE) {
+                    return null;
+                }
+
+                Path file = cache.createTempFile();
+                MessageHelper.serialize(broker, doc, PayloadCodecs.getCodec(PayloadCodecs.NONE), PayloadCodec.DEFAULT_LEVEL,
+                        new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+                return file;
+
+            } finally {
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+            }
+
+        } catch (IOException ex) {
+            throw ex;
+
+        } catch (Throwable t) {
+            throw new IOException(t.getMessage(), t);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to delete %s: %s", file, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Store document in database
+     */
+    private void storeDocument(DBBroker broker, Txn txn, eXistMessage em, ContentSource source, long length) {
 
         Map<String, Object> metaData = em.getMetadata();
 
@@ -307,7 +1231,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         XmldbURI docURI = sourcePath.lastSegment();
 
         // Reference to the collection
-        Collection collection;
+        Collection collection = null;
 
         // Get mime, or NULL when not available
         MimeType mime = MimeTable.getInstance().getContentTypeFor(docURI.toString());
@@ -325,64 +1249,39 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Get MODE
         Integer mode = getMode(metaData);
 
-        // Check for collection, create if not existent
         try {
-            collection = getOrCreateCollection(colURI, userName, groupName, Permission.DEFAULT_COLLECTION_PERM);
-
-        } catch (MessageReceiveException e) {
-            LOG.error(e.getMessage());
-            throw e;
-        }
-
-        catch (Throwable t) {
-            if (LOG.isDebugEnabled()) {
-                LOG.error(t.getMessage(), t);
-            } else {
-                LOG.error(t.getMessage());
+            // Check for collection, create if not existent
+            collection = broker.openCollection(colURI, Lock.WRITE_LOCK);
+            if (collection == null) {
+                createCollection(broker, txn, colURI, userName, groupName, Permission.DEFAULT_COLLECTION_PERM);
+                collection = broker.openCollection(colURI, Lock.WRITE_LOCK);
             }
-            throw new MessageReceiveException(String.format("Unable to create collection in database: %s", t.getMessage()));
-        }
-
-
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-            setOrigin(txn);
 
             DocumentImpl doc;
             if (mime.isXMLType()) {
 
-                // Stream into database
-                VirtualTempFile vtf = new VirtualTempFile(em.getPayload());
-                VirtualTempFileInputSource vt = new VirtualTempFileInputSource(vtf);
-                InputStream byteInputStream = vt.getByteStream();
-
-                // DW: future improvement: determine compression based on property.
-                GZIPInputStream gis = new GZIPInputStream(byteInputStream);
-                InputSource inputsource = new InputSource(gis);
-
-                // DW: collection can be null?
-                IndexInfo info = collection.validateXMLResource(txn, broker, docURI, inputsource);
+                // Stream into database, the payload is read twice
+                IndexInfo info;
+                try (InputStream is = source.open()) {
+                    // DW: collection can be null?
+                    info = collection.validateXMLResource(txn, broker, docURI, new InputSource(is));
+                }
                 doc = info.getDocument();
                 doc.getMetadata().setMimeType(mimeType);
 
-                // reconstruct gzip input stream
-                byteInputStream.reset();
-                gis = new GZIPInputStream(byteInputStream);
-                inputsource = new InputSource(gis);
-
-                collection.store(txn, broker, info, inputsource, false);
-                inputsource.getByteStream().close();
+                // reconstruct input stream
+                try (InputStream is = source.open()) {
+                    collection.store(txn, broker, info, new InputSource(is), false);
+                }
 
             } else {
 
                 // Stream into database
-                byte[] payload = em.getPayload();
-                ByteArrayInputStream bais = new ByteArrayInputStream(payload);
-                GZIPInputStream gis = new GZIPInputStream(bais);
+                InputStream is = source.open();
 
-                try (BufferedInputStream bis = new BufferedInputStream(gis)) {
+                try (BufferedInputStream bis = new BufferedInputStream(is, BUFFER_SIZE)) {
                     // DW: collection can be null
-                    doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, payload.length);
+                    doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, length);
                 }
             }
 
@@ -398,10 +1297,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 permission.setMode(mode);
             }
 
-            // Commit change
-            txn.commit();
-
-
         } catch (Throwable ex) {
 
             if (LOG.isDebugEnabled()) {
@@ -410,7 +1305,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 LOG.error(ex.getMessage());
             }
 
-            throw new MessageReceiveException(String.format("Unable to write document into database: %s", ex.getMessage()));
+            throw new MessageReceiveException(String.format("Unable to write document into database: %s", ex.getMessage()), ex);
 
 
         } finally {
@@ -425,7 +1320,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      *
      * TODO not usable yet
      */
-    private void updateMetadataDocument(eXistMessage em) {
+    private void updateMetadataDocument(DBBroker broker, Txn txn, eXistMessage em) {
         // Permissions
         // Mimetype
         // owner/groupname
@@ -438,16 +1333,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         Collection collection = null;
         DocumentImpl resource;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(colURI, Lock.WRITE_LOCK);
             if (collection == null) {
                 LOG.error(String.format("Collection does not exist %s", colURI));
-                txn.abort();
                 return; // be silent
             }
 
@@ -455,7 +1346,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error(String.format("No resource found for path: %s", sourcePath));
-                txn.abort();
                 return; // be silent
             }
 
@@ -484,9 +1374,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 resource.getMetadata().setMimeType(mimeType);
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable e) {
             LOG.error(e);
             throw new MessageReceiveException(e.getMessage(), e);
@@ -500,7 +1387,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Remove document from database. If a document or collection does not exist, this is logged.
      */
-    private void deleteDocument(eXistMessage em) {
+    private void deleteDocument(DBBroker broker, Txn txn, eXistMessage em) {
 
         XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         XmldbURI colURI = sourcePath.removeLastSegment();
@@ -509,17 +1396,13 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Reference to the collection
         Collection collection = null;
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-            Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(colURI, Lock.WRITE_LOCK);
             if (collection == null) {
                 String errorText = String.format("Collection does not exist %s", colURI);
                 LOG.error(errorText);
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -527,7 +1410,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             DocumentImpl resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error(String.format("No resource found for path: %s", sourcePath));
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -539,9 +1421,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 collection.removeXMLResource(txn, broker, resource.getFileURI());
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -560,31 +1439,24 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Remove collection from database
      */
-    private void deleteCollection(eXistMessage em) {
+    private void deleteCollection(DBBroker broker, Txn txn, eXistMessage em) {
 
         XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
         Collection collection = null;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(sourcePath, Lock.WRITE_LOCK);
             if (collection == null) {
                 LOG.error(String.format("Collection does not exist: %s", sourcePath));
-                txn.abort();
                 return;  // be silent
             }
 
             // Remove collection
             broker.removeCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -593,7 +1465,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 LOG.error(t.getMessage());
             }
 
-            throw new MessageReceiveException(t.getMessage());
+            throw new MessageReceiveException(t.getMessage(), t);
 
         } finally {
             releaseLock(collection, Lock.WRITE_LOCK);
@@ -603,7 +1475,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created collection in database
      */
-    private void createCollection(eXistMessage em) {
+    private void createCollection(DBBroker broker, Txn txn, eXistMessage em) {
 
         XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -614,18 +1486,13 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         String groupName = getGroupName(metaData);
         Integer mode = getMode(metaData);
 
-        getOrCreateCollection(sourcePath, userName, groupName, mode);
-    }
-
-    private Collection getOrCreateCollection(XmldbURI sourcePath, String userName, String groupName, Integer mode) throws MessageReceiveException {
-
         // Check if collection is already there ; do not modify
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()))) {
+        try {
             Collection collection = broker.openCollection(sourcePath, Lock.READ_LOCK);
             if (collection != null) {
                 LOG.error(String.format("Collection %s already exists", sourcePath));
                 releaseLock(collection, Lock.READ_LOCK);
-                return collection; // Just return the already existent collection
+                return;
             }
 
         } catch (Throwable e) {
@@ -638,15 +1505,15 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             throw new MessageReceiveException(e.getMessage(), e);
         }
 
-        // Reference to newly created collection
-        Collection newCollection = null;
+        createCollection(broker, txn, sourcePath, userName, groupName, mode);
+    }
 
-        // New collection to be created
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
+    private void createCollection(DBBroker broker, Txn txn, XmldbURI sourcePath, String userName, String groupName, Integer mode) throws MessageReceiveException {
 
-            setOrigin(txn);
+        // Reference to newly created collection
+        Collection newCollection = null;
 
+        try {
             // Create collection
             newCollection = broker.getOrCreateCollection(txn, sourcePath);
 
@@ -664,9 +1531,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
             broker.saveCollection(txn, newCollection);
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -680,10 +1544,9 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         } finally {
             releaseLock(newCollection, Lock.WRITE_LOCK);
         }
-        return newCollection;
     }
 
-    private void relocateDocument(eXistMessage em, boolean keepDocument) {
+    private void relocateDocument(DBBroker broker, Txn txn, eXistMessage em, boolean keepDocument) {
 
         XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         XmldbURI sourceColURI = sourcePath.removeLastSegment();
@@ -701,16 +1564,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Use the correct lock
         int lockTypeOriginal = keepDocument ? Lock.READ_LOCK : Lock.WRITE_LOCK;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             srcCollection = broker.openCollection(sourceColURI, lockTypeOriginal);
             if (srcCollection == null) {
                 LOG.error(String.format("Collection not found: %s", sourceColURI));
-                txn.abort();
                 return; // be silent
             }
 
@@ -718,7 +1577,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             srcDocument = srcCollection.getDocument(broker, sourceDocURI);
             if (srcDocument == null) {
                 LOG.error(String.format("No resource found for path: %s", sourcePath));
-                txn.abort();
                 return; // be silent
             }
 
@@ -726,7 +1584,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             destCollection = broker.openCollection(destColURI, Lock.WRITE_LOCK);
             if (destCollection == null) {
                 LOG.error(String.format("Destination collection %s does not exist.", destColURI));
-                txn.abort();
                 return; // be silent
             }
 
@@ -737,9 +1594,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 broker.moveResource(txn, srcDocument, destCollection, destDocURI);
             }
 
-            // Commit change
-            txnManager.commit(txn);
-
         } catch (Throwable e) {
             LOG.error(e);
             throw new MessageReceiveException(e.getMessage(), e);
@@ -750,7 +1604,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
-    private void relocateCollection(eXistMessage em, boolean keepCollection) {
+    private void relocateCollection(DBBroker broker, Txn txn, eXistMessage em, boolean keepCollection) {
 
         XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -761,16 +1615,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         Collection srcCollection = null;
         Collection destCollection = null;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             srcCollection = broker.openCollection(sourcePath, Lock.WRITE_LOCK);
             if (srcCollection == null) {
                 LOG.error(String.format("Collection %s does not exist.", sourcePath));
-                txn.abort();
                 return; // be silent
             }
 
@@ -778,7 +1628,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             destCollection = broker.openCollection(destColURI, Lock.WRITE_LOCK);
             if (destCollection == null) {
                 LOG.error(String.format("Destination collection %s does not exist.", destColURI));
-                txn.abort();
                 return; // be silent
             }
 
@@ -789,12 +1638,9 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 broker.moveCollection(txn, srcCollection, destCollection, destDocURI);
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable e) {
             LOG.error(e);
-            throw new MessageReceiveException(e.getMessage());
+            throw new MessageReceiveException(e.getMessage(), e);
 
         } finally {
             releaseLock(destCollection, Lock.WRITE_LOCK);
@@ -807,7 +1653,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         return "replication";
     }
 
-    private void updateMetadataCollection(eXistMessage em) {
+    private void updateMetadataCollection(DBBroker broker, Txn txn, eXistMessage em) {
         XmldbURI sourceColURI = XmldbURI.create(em.getResourcePath());
 
         Map<String, Object> metaData = em.getMetadata();
@@ -820,16 +1666,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
         Collection collection = null;
 
-        try( DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(sourceColURI, Lock.WRITE_LOCK);
             if (collection == null) {
                 LOG.error(String.format("Collection not found: %s", sourceColURI));
-                txnManager.abort(txn);
                 return; // be silent
             }
 
@@ -844,12 +1686,9 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 permission.setMode(mode);
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (Throwable e) {
             LOG.error(e);
-            throw new MessageReceiveException(e.getMessage());
+            throw new MessageReceiveException(e.getMessage(), e);
 
         } finally {
             releaseLock(collection,Lock.WRITE_LOCK );
@@ -949,6 +1788,33 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         return mode;
     }
 
-   
+    private String getString(Map<String, Object> metaData, String key) {
+        Object prop = metaData.get(key);
+        if (prop instanceof String) {
+            return (String) prop;
+        }
+        throw new MessageReceiveException(String.format("Missing or invalid '%s'", key));
+    }
+
+    private long getLong(Map<String, Object> metaData, String key) {
+        Object prop = metaData.get(key);
+        if (prop instanceof Number) {
+            return ((Number) prop).longValue();
+        }
+        throw new MessageReceiveException(String.format("Missing or invalid '%s'", key));
+    }
+
+    private PayloadCodec getCodec(Map<String, Object> metaData) {
+        Object prop = metaData.get(MessageHelper.EXIST_MESSAGE_CONTENTENCODING);
+        String encoding = (prop instanceof String) ? (String) prop : null;
+        try {
+            return PayloadCodecs.getCodec(encoding);
+
+        } catch (IOException ex) {
+            LOG.error(ex.getMessage());
+            throw new MessageReceiveException(String.format("Unable to decode content: %s", ex.getMessage()), ex);
+        }
+    }
+
 
 }
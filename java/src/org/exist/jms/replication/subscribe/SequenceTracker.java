@@ -0,0 +1,188 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Tracks the sequence numbers of the applied messages, per origin (instance
+ * id of the publisher) and destination. Detects gaps (missing numbers),
+ * duplicates and messages that arrive after a higher number.
+ *
+ * The state is kept in memory; after a restart the first received message
+ * is the starting point.
+ *
+ * @author Dannes Wessels
+ */
+public class SequenceTracker {
+
+    private final static Logger LOG = LogManager.getLogger(SequenceTracker.class);
+
+    /**
+     * Maximum number of missing ranges kept per stream, the oldest ranges
+     * are dropped; their numbers count as duplicates when they arrive later.
+     */
+    private static final int MAX_MISSING_RANGES = 1000;
+
+    private static final SequenceTracker INSTANCE = new SequenceTracker();
+
+    public static SequenceTracker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * State of one stream.
+     */
+    private static class Stream {
+
+        private final String origin;
+        private final String destination;
+
+        private long last = 0;
+
+        /**
+         * Missing numbers: start to end (inclusive).
+         */
+        private final TreeMap<Long, Long> missing = new TreeMap<>();
+
+        private long nrApplied = 0;
+        private long nrGaps = 0;
+        private long nrMissing = 0;
+        private long nrDuplicates = 0;
+        private long nrOutOfOrder = 0;
+
+        Stream(String origin, String destination) {
+            this.origin = origin;
+            this.destination = destination;
+        }
+    }
+
+    private final Map<String, Stream> streams = new TreeMap<>();
+
+    private SequenceTracker() {
+        // Singleton
+    }
+
+    /**
+     * Register applied message.
+     *
+     * @param origin Instance id of the publisher
+     * @param destination Destination the message was received from
+     * @param sequence Sequence number of the message
+     */
+    public synchronized void applied(String origin, String destination, long sequence) {
+
+        Stream stream = streams.computeIfAbsent(origin + "|" + destination, (key) -> new Stream(origin, destination));
+        stream.nrApplied++;
+
+        if (stream.last == 0 || sequence == stream.last + 1) {
+            stream.last = sequence;
+
+        } else if (sequence > stream.last + 1) {
+            // Numbers in between are missing, for now
+            stream.missing.put(stream.last + 1, sequence - 1);
+            stream.nrGaps++;
+            stream.nrMissing += sequence - 1 - stream.last;
+            LOG.warn(String.format("Gap in messages of %s via %s: %s-%s missing", origin, destination, stream.last + 1, sequence - 1));
+            stream.last = sequence;
+
+            if (stream.missing.size() > MAX_MISSING_RANGES) {
+                stream.missing.pollFirstEntry();
+            }
+
+        } else if (removeMissing(stream, sequence)) {
+            stream.nrOutOfOrder++;
+            stream.nrMissing--;
+            LOG.info(String.format("Message %s of %s via %s arrived out of order", sequence, origin, destination));
+
+        } else {
+            stream.nrDuplicates++;
+            LOG.warn(String.format("Duplicate message %s of %s via %s", sequence, origin, destination));
+        }
+    }
+
+    /**
+     * Remove number from the missing ranges.
+     *
+     * @return TRUE when the number was missing.
+     */
+    private static boolean removeMissing(Stream stream, long sequence) {
+
+        Map.Entry<Long, Long> range = stream.missing.floorEntry(sequence);
+        if (range == null || range.getValue() < sequence) {
+            return false;
+        }
+
+        long start = range.getKey();
+        long end = range.getValue();
+        stream.missing.remove(start);
+        if (start < sequence) {
+            stream.missing.put(start, sequence - 1);
+        }
+        if (sequence < end) {
+            stream.missing.put(sequence + 1, end);
+        }
+        return true;
+    }
+
+    /**
+     * Write state of all streams to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public synchronized void write(MemTreeBuilder builder) {
+
+        for (Stream stream : streams.values()) {
+
+            builder.startElement("", "stream", "stream", null);
+            builder.addAttribute(new QName("origin", null, null), stream.origin);
+            builder.addAttribute(new QName("destination", null, null), stream.destination);
+
+            writeValue(builder, "lastSequence", stream.last);
+            writeValue(builder, "nrApplied", stream.nrApplied);
+            writeValue(builder, "nrGaps", stream.nrGaps);
+            writeValue(builder, "nrMissing", stream.nrMissing);
+            writeValue(builder, "nrDuplicates", stream.nrDuplicates);
+            writeValue(builder, "nrOutOfOrder", stream.nrOutOfOrder);
+
+            builder.startElement("", "missing", "missing", null);
+            for (Map.Entry<Long, Long> range : stream.missing.entrySet()) {
+                builder.startElement("", "range", "range", null);
+                builder.addAttribute(new QName("from", null, null), "" + range.getKey());
+                builder.addAttribute(new QName("to", null, null), "" + range.getValue());
+                builder.endElement();
+            }
+            builder.endElement();
+
+            builder.endElement();
+        }
+    }
+}
@@ -21,9 +21,14 @@
  */
 package org.exist.jms.replication.subscribe;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.naming.Context;
 
 import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.PayloadBuffer;
 import org.exist.jms.replication.shared.ClientParameterException;
 import org.exist.jms.replication.shared.ClientParameters;
 
@@ -38,6 +43,18 @@ public class SubscriberParameters extends ClientParameters {
     public static final String MESSAGE_SELECTOR = Constants.MESSAGE_SELECTOR; //"messageselector";
     public static final String DURABLE = Constants.DURABLE; //"durable";
     public static final String NO_LOCAL = Constants.NO_LOCAL; //"nolocal";
+    public static final String SPOOL_DIR = "subscriber.spool-dir";
+    public static final String DELTA_DIR = "subscriber.delta.dir";
+    public static final String BLOB_STORE = "subscriber.blob-store";
+    public static final String DELTA_CACHE_SIZE = "subscriber.delta.cache-size";
+    public static final String LANES = "subscriber.lanes";
+    public static final String LANE_PREFIX = "lane.";
+    public static final String LANE_DESTINATION = "destination";
+    public static final String LAST_WRITER_WINS = "subscriber.last-writer-wins";
+    public static final String APPLY_THREADS = "subscriber.apply-threads";
+    public static final String BATCH_SIZE = "subscriber.batch.size";
+    public static final String BATCH_TIME = "subscriber.batch.time";
+    public static final String SPILL_THRESHOLD = "subscriber.spill-threshold";
     
     private String subscriberName;
     private String messageSelector;
@@ -45,6 +62,23 @@ public class SubscriberParameters extends ClientParameters {
     private boolean noLocal=Boolean.TRUE;
     private boolean durable=Boolean.TRUE;
 
+    private String spoolDirectory;
+
+    private String deltaDirectory;
+    private String blobStore;
+    private int deltaCacheSize = 100;
+
+    private final Map<String, String> lanes = new LinkedHashMap<>();
+
+    private boolean lastWriterWins = false;
+
+    private int applyThreads = 1;
+
+    private int batchSize = 1;
+    private long batchTime = 100;
+
+    private int spillThreshold = PayloadBuffer.DEFAULT_THRESHOLD;
+
     public boolean isDurable() {
         return durable;
     }
@@ -61,6 +95,69 @@ public class SubscriberParameters extends ClientParameters {
         return noLocal;
     }
 
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public String getDeltaDirectory() {
+        return deltaDirectory;
+    }
+
+    public int getDeltaCacheSize() {
+        return deltaCacheSize;
+    }
+
+    public String getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * @return TRUE when changes that are older than the last change of a
+     * resource are discarded.
+     */
+    public boolean isLastWriterWins() {
+        return lastWriterWins;
+    }
+
+    /**
+     * @return Number of threads that apply changes, 1 to apply changes on
+     * the receiving thread.
+     */
+    public int getApplyThreads() {
+        return applyThreads;
+    }
+
+    /**
+     * @return Maximum number of changes that are applied in one transaction,
+     * 1 to apply each change in its own transaction.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return Maximum time (ms) a received change waits for the transaction
+     * of its batch.
+     */
+    public long getBatchTime() {
+        return batchTime;
+    }
+
+    /**
+     * @return Maximum size of a received payload that is kept in memory,
+     * larger payloads are written to a temporary file.
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @return Destination by lane name, each lane has its own receiver.
+     */
+    public Map<String, String> getLanes() {
+        return Collections.unmodifiableMap(lanes);
+    }
+
     @Override
     public void processParameters() throws ClientParameterException {
 
@@ -167,6 +264,155 @@ public class SubscriberParameters extends ClientParameters {
         // Get connection authentication
         connectionUsername = props.getProperty(Constants.JMS_CONNECTION_USERNAME);
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
+
+        // Directory for chunked transfers
+        value = props.getProperty(SPOOL_DIR);
+        if (value != null && !value.equals("")) {
+            spoolDirectory = value;
+        }
+
+        // Previous versions of XML documents, for delta updates
+        value = props.getProperty(DELTA_DIR);
+        if (value != null && !value.equals("")) {
+            deltaDirectory = value;
+        }
+
+        // Shared store of binary documents sent by reference
+        value = props.getProperty(BLOB_STORE);
+        if (value != null && !value.equals("")) {
+            blobStore = value;
+        }
+
+        value = props.getProperty(DELTA_CACHE_SIZE);
+        if (value != null && !value.equals("")) {
+            try {
+                deltaCacheSize = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                String errorText = "Unable to set " + DELTA_CACHE_SIZE + "; got '" + value + "'. " + ex.getMessage();
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+
+            if (deltaCacheSize < 1) {
+                String errorText = "'" + DELTA_CACHE_SIZE + "' must be larger than 0.";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        // Conflict resolution by timestamp of the change
+        value = props.getProperty(LAST_WRITER_WINS);
+        if (value != null) {
+
+            if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+                lastWriterWins = false;
+
+            } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+                lastWriterWins = true;
+
+            } else {
+                String errorText = "'" + LAST_WRITER_WINS + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        // Parallel apply
+        value = props.getProperty(APPLY_THREADS);
+        if (value != null && !value.equals("")) {
+            try {
+                applyThreads = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                String errorText = "Unable to set " + APPLY_THREADS + "; got '" + value + "'. " + ex.getMessage();
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+
+            if (applyThreads < 1) {
+                String errorText = "'" + APPLY_THREADS + "' must be larger than 0.";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        // Batched transactions
+        value = props.getProperty(BATCH_SIZE);
+        if (value != null && !value.equals("")) {
+            try {
+                batchSize = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                String errorText = "Unable to set " + BATCH_SIZE + "; got '" + value + "'. " + ex.getMessage();
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+
+            if (batchSize < 1) {
+                String errorText = "'" + BATCH_SIZE + "' must be larger than 0.";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        value = props.getProperty(BATCH_TIME);
+        if (value != null && !value.equals("")) {
+            try {
+                batchTime = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                String errorText = "Unable to set " + BATCH_TIME + "; got '" + value + "'. " + ex.getMessage();
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+
+            if (batchTime < 1) {
+                String errorText = "'" + BATCH_TIME + "' must be larger than 0.";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        // Size of payloads kept in memory
+        value = props.getProperty(SPILL_THRESHOLD);
+        if (value != null && !value.equals("")) {
+            try {
+                spillThreshold = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                String errorText = "Unable to set " + SPILL_THRESHOLD + "; got '" + value + "'. " + ex.getMessage();
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+
+            if (spillThreshold < 0) {
+                String errorText = "'" + SPILL_THRESHOLD + "' must not be negative.";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
+        if (batchSize > 1 && applyThreads > 1) {
+            LOG.warn(String.format("'%s' is ignored, changes are applied by %s threads.", BATCH_SIZE, applyThreads));
+        }
+
+        // Priority lanes of the publisher, one receiver per lane
+        lanes.clear();
+        value = props.getProperty(LANES);
+        if (value != null && !value.trim().equals("")) {
+            for (String lane : value.trim().split("[,\\s]+")) {
+
+                if (!lane.matches("[A-Za-z0-9_-]+")) {
+                    String errorText = "'" + LANES + "' contains wrong lane name '" + lane + "'";
+                    LOG.error(errorText);
+                    throw new ClientParameterException(errorText);
+                }
+
+                String destination = props.getProperty(LANE_PREFIX + lane + "." + LANE_DESTINATION);
+                if (destination == null || destination.equals("")) {
+                    String errorText = "'" + LANE_PREFIX + lane + "." + LANE_DESTINATION + "' is not set.";
+                    LOG.error(errorText);
+                    throw new ClientParameterException(errorText);
+                }
+                lanes.put(lane, destination);
+            }
+        }
     }
 
     @Override
@@ -197,6 +443,31 @@ public class SubscriberParameters extends ClientParameters {
         sb.append(" ");
         
         sb.append(DURABLE).append("='").append(durable).append("'");
+        sb.append(" ");
+
+        sb.append(LAST_WRITER_WINS).append("='").append(lastWriterWins).append("'");
+
+        if (applyThreads > 1) {
+            sb.append(" ");
+            sb.append(APPLY_THREADS).append("='").append(applyThreads).append("'");
+        }
+
+        if (batchSize > 1) {
+            sb.append(" ");
+            sb.append(BATCH_SIZE).append("='").append(batchSize).append("'");
+            sb.append(" ");
+            sb.append(BATCH_TIME).append("='").append(batchTime).append("'");
+        }
+
+        if (spillThreshold != PayloadBuffer.DEFAULT_THRESHOLD) {
+            sb.append(" ");
+            sb.append(SPILL_THRESHOLD).append("='").append(spillThreshold).append("'");
+        }
+
+        if (!lanes.isEmpty()) {
+            sb.append(" ");
+            sb.append(LANES).append("='").append(lanes).append("'");
+        }
         
         return sb.toString();
     }
@@ -0,0 +1,245 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.exist.jms.replication.shared.BlobStore;
+import org.exist.jms.replication.shared.DeltaCache;
+import org.exist.jms.shared.PayloadBuffer;
+import org.exist.storage.BrokerPool;
+
+/**
+ * On-disk state of a subscriber: spool directory of chunked transfers,
+ * previous versions for delta updates and the shared blob store. All
+ * listeners of one subscriber, one per lane, use the same instance. The
+ * resources are opened on first use.
+ *
+ * @author Dannes Wessels
+ */
+public class SubscriberResources {
+
+    private final BrokerPool brokerPool;
+
+    private final String spoolDirectory;
+    private ChunkAssembler chunkAssembler = null;
+
+    private final String deltaDirectory;
+    private final int deltaCacheSize;
+    private DeltaCache deltaCache = null;
+
+    /**
+     * Documents of which a delta could not be applied, they need a full
+     * update first.
+     */
+    private final Set<String> outOfSync = new HashSet<>();
+
+    private final String blobStoreDirectory;
+    private BlobStore blobStore = null;
+
+    private final boolean lastWriterWins;
+    private final int applyThreads;
+    private final int batchSize;
+    private final long batchTime;
+    private final int spillThreshold;
+
+    /**
+     * Constructor
+     *
+     * @param brokerPool Reference to database broker pool
+     * @param parameters Subscriber parameters, NULL for defaults
+     */
+    public SubscriberResources(BrokerPool brokerPool, SubscriberParameters parameters) {
+        this.brokerPool = brokerPool;
+        spoolDirectory = (parameters == null) ? null : parameters.getSpoolDirectory();
+        deltaDirectory = (parameters == null) ? null : parameters.getDeltaDirectory();
+        deltaCacheSize = (parameters == null) ? 100 : parameters.getDeltaCacheSize();
+        blobStoreDirectory = (parameters == null) ? null : parameters.getBlobStore();
+        lastWriterWins = parameters != null && parameters.isLastWriterWins();
+        applyThreads = (parameters == null) ? 1 : parameters.getApplyThreads();
+        batchSize = (parameters == null || applyThreads > 1) ? 1 : parameters.getBatchSize();
+        batchTime = (parameters == null) ? 100 : parameters.getBatchTime();
+        spillThreshold = (parameters == null) ? PayloadBuffer.DEFAULT_THRESHOLD : parameters.getSpillThreshold();
+    }
+
+    /**
+     * @return Number of threads per receiver that apply changes.
+     */
+    public int getApplyThreads() {
+        return applyThreads;
+    }
+
+    /**
+     * @return Maximum number of changes per transaction, 1 when changes are
+     * not batched.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return Maximum time (ms) a change waits for the transaction of its
+     * batch.
+     */
+    public long getBatchTime() {
+        return batchTime;
+    }
+
+    /**
+     * @return Maximum size of a received payload that is kept in memory.
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @return TRUE when changes that are older than the last change of a
+     * resource are discarded.
+     */
+    public boolean isLastWriterWins() {
+        return lastWriterWins;
+    }
+
+    /**
+     * Get sub directory of the data directory of the database.
+     */
+    private Path getDataDirectory(String name, String parameter) throws IOException {
+        Object dataDir = brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        if (dataDir == null) {
+            throw new IOException(String.format("Unable to determine data directory, please set '%s'", parameter));
+        }
+        Path root = (dataDir instanceof Path) ? (Path) dataDir : Paths.get(dataDir.toString());
+        return root.resolve(name);
+    }
+
+    /**
+     * Get assembler for chunked transfers, created on first use. By default
+     * the chunks are stored in the data directory of the database.
+     *
+     * @return The assembler
+     * @throws IOException The spool directory could not be created.
+     */
+    public synchronized ChunkAssembler getChunkAssembler() throws IOException {
+
+        if (chunkAssembler == null) {
+            Path directory = (spoolDirectory != null)
+                    ? Paths.get(spoolDirectory)
+                    : getDataDirectory("jms-spool", SubscriberParameters.SPOOL_DIR);
+            chunkAssembler = new ChunkAssembler(directory);
+        }
+
+        return chunkAssembler;
+    }
+
+    /**
+     * Get cache of previous versions for delta updates, created on first use.
+     * By default the versions are stored in the data directory of the
+     * database.
+     *
+     * @return The cache
+     * @throws IOException The cache directory could not be created.
+     */
+    public synchronized DeltaCache getDeltaCache() throws IOException {
+
+        if (deltaCache == null) {
+            Path directory = (deltaDirectory != null)
+                    ? Paths.get(deltaDirectory)
+                    : getDataDirectory("jms-delta", SubscriberParameters.DELTA_DIR).resolve("subscriber");
+            deltaCache = new DeltaCache(directory, deltaCacheSize);
+        }
+
+        return deltaCache;
+    }
+
+    /**
+     * Get shared store of binary documents sent by reference, opened on
+     * first use.
+     *
+     * @return The store
+     * @throws IOException The store is not configured or cannot be opened.
+     */
+    public synchronized BlobStore getBlobStore() throws IOException {
+
+        if (blobStore == null) {
+            if (blobStoreDirectory == null) {
+                throw new IOException(String.format("Document is sent by reference, '%s' is not set.", SubscriberParameters.BLOB_STORE));
+            }
+            blobStore = new BlobStore(Paths.get(blobStoreDirectory));
+        }
+
+        return blobStore;
+    }
+
+    /**
+     * Remove document or collection from the delta cache, when in use.
+     *
+     * @param path Path of the document or collection
+     * @param isCollection TRUE for a collection
+     */
+    public synchronized void forgetDelta(String path, boolean isCollection) {
+        if (isCollection) {
+            String prefix = path.endsWith("/") ? path : path + "/";
+            outOfSync.removeIf((document) -> document.startsWith(prefix));
+        } else {
+            outOfSync.remove(path);
+        }
+
+        if (deltaCache != null) {
+            if (isCollection) {
+                deltaCache.removeCollection(path);
+            } else {
+                deltaCache.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Mark document as out of sync: later deltas are skipped until the
+     * document is updated completely.
+     *
+     * @param path Path of the document
+     */
+    public synchronized void markOutOfSync(String path) {
+        outOfSync.add(path);
+    }
+
+    /**
+     * Document is updated completely, deltas can be applied again.
+     *
+     * @param path Path of the document
+     */
+    public synchronized void markInSync(String path) {
+        outOfSync.remove(path);
+    }
+
+    /**
+     * @param path Path of the document
+     * @return TRUE when deltas of the document are skipped.
+     */
+    public synchronized boolean isOutOfSync(String path) {
+        return outOfSync.contains(path);
+    }
+}
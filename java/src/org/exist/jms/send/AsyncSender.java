@@ -0,0 +1,309 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.send;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
+/**
+ * Completes sends without blocking the caller. When the JMS provider
+ * supports the JMS 2.0 CompletionListener the message is sent
+ * asynchronously by the provider, otherwise the (blocking) send is executed
+ * by an internal thread pool. The connection is closed when the send is
+ * completed.
+ *
+ * Each pending send holds a connection; the number of pending sends is
+ * limited, sends beyond the limit are rejected.
+ *
+ * The JMS 2.0 API is accessed by reflection, the module is compiled
+ * against JMS 1.1.
+ *
+ * @author Dannes Wessels
+ */
+public class AsyncSender {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncSender.class);
+
+    private static final String COMPLETION_LISTENER = "javax.jms.CompletionListener";
+
+    private static final int NR_THREADS = 4;
+
+    /**
+     * Maximum number of sends that are not completed yet.
+     */
+    private static final int MAX_PENDING = 256;
+
+    private static final AsyncSender INSTANCE = new AsyncSender();
+
+    public static AsyncSender getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Called when the send is completed.
+     */
+    @FunctionalInterface
+    public interface Completion {
+
+        /**
+         * @param handle Handle returned to the caller
+         * @param messageId JMS message id, NULL when the send failed
+         * @param error The problem, NULL when the message is sent
+         */
+        void completed(String handle, String messageId, Throwable error);
+    }
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    /*
+     * A pending send queues at most one task, the queue can not overflow
+     */
+    private final ExecutorService executor = new ThreadPoolExecutor(NR_THREADS, NR_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING), (runnable) -> {
+        Thread thread = new Thread(runnable, "jms-async-send-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Semaphore permits = new Semaphore(MAX_PENDING);
+
+    private final Class<?> listenerClass;
+
+    /**
+     * Method send(Message, CompletionListener) per producer class, empty
+     * when not implemented by the provider.
+     */
+    private final Map<Class<?>, Optional<Method>> sendMethods = new ConcurrentHashMap<>();
+
+    private final AtomicLong nrSubmitted = new AtomicLong();
+    private final AtomicLong nrCompleted = new AtomicLong();
+    private final AtomicLong nrFailed = new AtomicLong();
+    private final AtomicLong nrProviderAsync = new AtomicLong();
+    private final AtomicLong nrRejected = new AtomicLong();
+    private final AtomicInteger nrPending = new AtomicInteger();
+    private volatile String lastError = null;
+
+    private AsyncSender() {
+        Class<?> clazz = null;
+        try {
+            clazz = Class.forName(COMPLETION_LISTENER);
+        } catch (ClassNotFoundException ex) {
+            LOG.info(String.format("%s is not available, asynchronous sends use an internal thread pool.", COMPLETION_LISTENER));
+        }
+        listenerClass = clazz;
+    }
+
+    /**
+     * Reserve a send, before its connection is created.
+     *
+     * @return FALSE when the maximum number of pending sends is reached.
+     */
+    public boolean reserve() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        nrRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Cancel reservation of a send that is not started.
+     */
+    public void cancel() {
+        permits.release();
+    }
+
+    /**
+     * Send message without waiting for the broker. The connection is closed
+     * when the send is completed, also when it failed. The send must have
+     * been reserved with {@link #reserve()}.
+     *
+     * @param connection The connection used by the producer
+     * @param producer The producer
+     * @param message The message
+     * @param handle Handle of the send, passed to the completion
+     * @param completion Called when the send is completed, NULL when not needed
+     */
+    public void send(Connection connection, MessageProducer producer, Message message, String handle, Completion completion) {
+
+        nrSubmitted.incrementAndGet();
+        nrPending.incrementAndGet();
+
+        Method method = getSendMethod(producer);
+        if (method != null) {
+            try {
+                method.invoke(producer, message, createListener(connection, message, handle, completion));
+                nrProviderAsync.incrementAndGet();
+                return;
+
+            } catch (InvocationTargetException ex) {
+                if (!(ex.getCause() instanceof AbstractMethodError) && !(ex.getCause() instanceof UnsupportedOperationException)) {
+                    finish(connection, message, handle, ex.getCause(), completion);
+                    return;
+                }
+                // Provider does not support it after all
+                sendMethods.put(producer.getClass(), Optional.empty());
+
+            } catch (IllegalAccessException | RuntimeException ex) {
+                LOG.debug(ex.getMessage());
+                sendMethods.put(producer.getClass(), Optional.empty());
+            }
+        }
+
+        executor.execute(() -> {
+            Throwable error = null;
+            try {
+                producer.send(message);
+            } catch (Throwable t) {
+                error = t;
+            }
+            finish(connection, message, handle, error, completion);
+        });
+    }
+
+    private Method getSendMethod(MessageProducer producer) {
+
+        if (listenerClass == null) {
+            return null;
+        }
+
+        return sendMethods.computeIfAbsent(producer.getClass(), (clazz) -> {
+            try {
+                Method method = clazz.getMethod("send", Message.class, listenerClass);
+                return Modifier.isAbstract(method.getModifiers()) ? Optional.empty() : Optional.of(method);
+            } catch (NoSuchMethodException ex) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * Create CompletionListener. The provider calls it on its own thread,
+     * where the connection may not be closed, the rest is handed to the
+     * thread pool.
+     */
+    private Object createListener(Connection connection, Message message, String handle, Completion completion) {
+        return Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[]{listenerClass}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "onCompletion":
+                    executor.execute(() -> finish(connection, message, handle, null, completion));
+                    return null;
+                case "onException":
+                    executor.execute(() -> finish(connection, message, handle, (Throwable) args[1], completion));
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "CompletionListener " + handle;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private void finish(Connection connection, Message message, String handle, Throwable error, Completion completion) {
+
+        String messageId = null;
+        if (error == null) {
+            try {
+                messageId = message.getJMSMessageID();
+            } catch (JMSException ex) {
+                LOG.debug(ex.getMessage());
+            }
+            nrCompleted.incrementAndGet();
+            LOG.debug(String.format("Send %s completed, messageId=%s", handle, messageId));
+
+        } else {
+            nrFailed.incrementAndGet();
+            lastError = String.format("%s: %s", handle, error.getMessage());
+            LOG.error(String.format("Send %s failed: %s", handle, error.getMessage()));
+        }
+
+        try {
+            connection.close();
+        } catch (JMSException ex) {
+            LOG.error(String.format("Problem closing connection, ignored. %s (%s)", ex.getMessage(), ex.getErrorCode()));
+        }
+
+        nrPending.decrementAndGet();
+        permits.release();
+
+        if (completion != null) {
+            try {
+                completion.completed(handle, messageId, error);
+            } catch (Throwable t) {
+                LOG.error(String.format("Completion of send %s failed: %s", handle, t.getMessage()), t);
+            }
+        }
+    }
+
+    /**
+     * @return Report with the statistics of asynchronous sends.
+     */
+    public NodeImpl getReport() {
+
+        MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        int nodeNr = builder.startElement("", "async", "async", null);
+        writeValue(builder, "completionListener", listenerClass != null);
+        writeValue(builder, "nrSubmitted", nrSubmitted.get());
+        writeValue(builder, "nrProviderAsync", nrProviderAsync.get());
+        writeValue(builder, "nrCompleted", nrCompleted.get());
+        writeValue(builder, "nrFailed", nrFailed.get());
+        writeValue(builder, "nrPending", nrPending.get());
+        writeValue(builder, "maxPending", MAX_PENDING);
+        writeValue(builder, "nrRejected", nrRejected.get());
+        if (lastError != null) {
+            writeValue(builder, "lastError", lastError);
+        }
+        builder.endElement();
+
+        return ((DocumentImpl) builder.getDocument()).getNode(nodeNr);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.send;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Output stream that writes directly into the body of a JMS bytes message,
+ * so content can be streamed into a message without an intermediate copy.
+ *
+ * @author Dannes Wessels
+ */
+class BytesMessageOutputStream extends OutputStream {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copy buffer per thread, reused for all messages.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final BytesMessage message;
+
+    BytesMessageOutputStream(BytesMessage message) {
+        this.message = message;
+    }
+
+    /**
+     * @return Copy buffer of the current thread
+     */
+    static byte[] getBuffer() {
+        return BUFFERS.get();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            message.writeByte((byte) b);
+        } catch (JMSException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            message.writeBytes(b, off, len);
+        } catch (JMSException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+}
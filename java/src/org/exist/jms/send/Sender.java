@@ -25,26 +25,26 @@ import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Map;
-import java.util.Properties;
+import java.util.UUID;
 import java.util.zip.GZIPOutputStream;
 
 import javax.jms.*;
 import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 //import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.QName;
 import org.exist.dom.memtree.DocumentImpl;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.NodeImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JndiLookupCache;
 import org.exist.jms.shared.JmsMessageProperties;
 import org.exist.jms.shared.Constants;
 
@@ -97,83 +97,26 @@ public class Sender  {
         // JMS specific checks
         jmsConfig.validate();
         
-        // Retrieve and set JMS identifier
-        String id  = Identity.getInstance().getIdentity();    
-        if(StringUtils.isNotBlank(id)){
-            msgMetaProps.setProperty(Constants.EXIST_INSTANCE_ID, id);
-        } else {
-            LOG.error(String.format("An empty value was provided for '%s'", Constants.EXIST_INSTANCE_ID));
-        }
-
-        // Set username
-        if (username != null) {
-            msgMetaProps.setProperty("exist.user", username);
-        }
-    
-
-        // Retrieve relevant values
-        String initialContextFactory = jmsConfig.getInitialContextFactory();
-        String providerURL = jmsConfig.getBrokerURL();  
-        String destinationValue = jmsConfig.getDestination();
+        // Set JMS identifier and username
+        setDefaultProperties(msgMetaProps);
 
         Connection connection = null;
 
         try {
-            Properties props = new Properties();
-            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
-            props.setProperty(Context.PROVIDER_URL, providerURL);
-            javax.naming.Context context = new InitialContext(props);
-
-            // Get connection factory
-            ConnectionFactory cf = getConnectionFactoryInstance(context, jmsConfig);
-
-            if (cf == null) {
-                throw new XPathException("Unable to create connection factory");
-            }
-            
-            // Setup username/password when required
-            String userName = jmsConfig.getConnectionUserName();
-            String password = jmsConfig.getConnectionPassword();
-            
-            connection = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
-                    ? cf.createConnection()
-                    : cf.createConnection(userName, password);
-            
-            // Set clientId when set and not empty
-            String clientId=jmsConfig.getClientId();
-            if(StringUtils.isNotBlank(clientId)){
-                connection.setClientID(clientId);
-            }
+            connection = createConnection(jmsConfig);
             
             // Lookup queue
-            Destination destination = (Destination) context.lookup(destinationValue);
+            Destination destination = (Destination) JndiLookupCache.getInstance().lookup(jmsConfig, jmsConfig.getDestination());
 
             // Create session
             Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
 
             // Create message producer
             MessageProducer producer = session.createProducer(destination);
+            configureProducer(producer, jmsConfig);
 
             // Create message, depending on incoming object type
-            boolean isExistMessageItem = (content instanceof eXistMessageItem);
-            Message message = isExistMessageItem
-                    ? createMessageFromExistMessageItem(session, (eXistMessageItem) content, msgMetaProps)
-                    : createMessageFromItem(session, content, msgMetaProps, xqcontext);
-
-            // Set Message properties from user provided data
-            setMessagePropertiesFromMap(msgMetaProps, message);
-
-            // Set time-to-live (when available)
-            Long timeToLive = jmsConfig.getTimeToLive();
-            if (timeToLive != null) {
-                producer.setTimeToLive(timeToLive);
-            }
-
-            // Set priority (when available)
-            Integer priority = jmsConfig.getPriority();
-            if (priority != null) {
-                producer.setPriority(priority);
-            }
+            Message message = createMessage(session, content, msgMetaProps);
 
             // Send message
             producer.send(message);
@@ -182,25 +125,269 @@ public class Sender  {
             return createReport(message, producer, jmsConfig);
 
         } catch (Throwable ex) {
+            // Cached lookups may be outdated
+            JndiLookupCache.getInstance().invalidate(jmsConfig);
             LOG.error(ex);
             throw new XPathException(ex.getMessage());
 
         } finally {
-            try {
-                if (connection != null) {
-                    // Close connection
-                    connection.close();
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * Send sequence of items to JMS broker, using one connection, session and
+     * producer. Each item is sent as a separate message with the same
+     * message properties.
+     *
+     * @param jmsConfig JMS configuration
+     * @param msgMetaProps JMS message properties, applied to all messages
+     * @param items The items to be transferred
+     * @param transacted TRUE when all messages are sent in one JMS transaction
+     * @return Summary report
+     * @throws XPathException Something bad happened; in a transaction no
+     * message is sent.
+     */
+    public NodeImpl sendBatch(JmsConfiguration jmsConfig, JmsMessageProperties msgMetaProps, Sequence items,
+                              boolean transacted) throws XPathException {
+
+        // JMS specific checks
+        jmsConfig.validate();
+
+        // Set JMS identifier and username
+        setDefaultProperties(msgMetaProps);
+
+        long start = System.currentTimeMillis();
+        int nrSent = 0;
+        String firstMessageId = null;
+        String lastMessageId = null;
+
+        Connection connection = null;
+        Session session = null;
+
+        try {
+            connection = createConnection(jmsConfig);
+
+            Destination destination = (Destination) JndiLookupCache.getInstance().lookup(jmsConfig, jmsConfig.getDestination());
+
+            session = transacted
+                    ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                    : connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+
+            MessageProducer producer = session.createProducer(destination);
+            configureProducer(producer, jmsConfig);
+
+            for (SequenceIterator i = items.iterate(); i.hasNext(); ) {
+
+                // Properties are changed by the conversion, each message gets a copy
+                JmsMessageProperties itemProps = new JmsMessageProperties();
+                itemProps.putAll(msgMetaProps);
+
+                Message message = createMessage(session, i.nextItem(), itemProps);
+                producer.send(message);
+                nrSent++;
+
+                lastMessageId = message.getJMSMessageID();
+                if (firstMessageId == null) {
+                    firstMessageId = lastMessageId;
+                }
+            }
+
+            if (transacted) {
+                session.commit();
+            }
+
+            return createBatchReport(nrSent, transacted, firstMessageId, lastMessageId,
+                    System.currentTimeMillis() - start, jmsConfig);
+
+        } catch (Throwable ex) {
+            // Cached lookups may be outdated
+            JndiLookupCache.getInstance().invalidate(jmsConfig);
+
+            if (transacted && session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException jex) {
+                    LOG.error(String.format("Problem during rollback, ignored. %s (%s)", jex.getMessage(), jex.getErrorCode()));
                 }
+                nrSent = 0;
+            }
+            LOG.error(ex);
+            throw new XPathException(String.format("%s (%s message(s) sent)", ex.getMessage(), nrSent));
+
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * Send content to JMS broker without waiting for the confirmation of
+     * the broker. The message is created before this method returns.
+     *
+     * @param jmsConfig JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content The content to be transferred
+     * @param completion Called when the send is completed, NULL when not needed
+     * @return Handle of the send, also set as message property
+     * @throws XPathException Something bad happened, or too many sends are
+     * pending.
+     */
+    public String sendAsync(JmsConfiguration jmsConfig, JmsMessageProperties msgMetaProps, Item content,
+                            AsyncSender.Completion completion) throws XPathException {
+
+        // JMS specific checks
+        jmsConfig.validate();
+
+        // Set JMS identifier and username
+        setDefaultProperties(msgMetaProps);
+
+        String handle = UUID.randomUUID().toString();
+        msgMetaProps.setProperty(Constants.EXIST_SEND_ID, handle);
+
+        AsyncSender asyncSender = AsyncSender.getInstance();
+        if (!asyncSender.reserve()) {
+            throw new XPathException("Too many asynchronous sends are pending, message is not sent.");
+        }
+
+        Connection connection = null;
+        boolean started = false;
+
+        try {
+            connection = createConnection(jmsConfig);
+
+            Destination destination = (Destination) JndiLookupCache.getInstance().lookup(jmsConfig, jmsConfig.getDestination());
+
+            Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+
+            MessageProducer producer = session.createProducer(destination);
+            configureProducer(producer, jmsConfig);
+
+            Message message = createMessage(session, content, msgMetaProps);
+
+            // The connection is closed when the send is completed
+            started = true;
+            asyncSender.send(connection, producer, message, handle, completion);
+            connection = null;
+
+            return handle;
+
+        } catch (Throwable ex) {
+            // Cached lookups may be outdated
+            JndiLookupCache.getInstance().invalidate(jmsConfig);
+            LOG.error(ex);
+            throw new XPathException(ex.getMessage());
+
+        } finally {
+            closeConnection(connection);
+            if (!started) {
+                asyncSender.cancel();
+            }
+        }
+    }
+
+    /**
+     * Set identifier of this instance and the name of the user.
+     */
+    private void setDefaultProperties(JmsMessageProperties msgMetaProps) {
+
+        // Retrieve and set JMS identifier
+        String id  = Identity.getInstance().getIdentity();    
+        if(StringUtils.isNotBlank(id)){
+            msgMetaProps.setProperty(Constants.EXIST_INSTANCE_ID, id);
+        } else {
+            LOG.error(String.format("An empty value was provided for '%s'", Constants.EXIST_INSTANCE_ID));
+        }
+
+        // Set username
+        if (username != null) {
+            msgMetaProps.setProperty("exist.user", username);
+        }
+    }
+
+    /**
+     * Create connection to broker, with client id when configured.
+     */
+    private Connection createConnection(JmsConfiguration jmsConfig)
+            throws NamingException, JMSException, XPathException {
+
+        // Get connection factory
+        ConnectionFactory cf = getConnectionFactoryInstance(jmsConfig);
+
+        if (cf == null) {
+            throw new XPathException("Unable to create connection factory");
+        }
+
+        // Setup username/password when required
+        String userName = jmsConfig.getConnectionUserName();
+        String password = jmsConfig.getConnectionPassword();
+
+        Connection connection = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
+                ? cf.createConnection()
+                : cf.createConnection(userName, password);
+
+        // Set clientId when set and not empty
+        String clientId=jmsConfig.getClientId();
+        if(StringUtils.isNotBlank(clientId)){
+            try {
+                connection.setClientID(clientId);
             } catch (JMSException ex) {
-                LOG.error(String.format("Problem closing connection, ignored. %s (%s)", ex.getMessage(), ex.getErrorCode()));
+                connection.close();
+                throw ex;
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Set time-to-live and priority, when available.
+     */
+    private void configureProducer(MessageProducer producer, JmsConfiguration jmsConfig) throws JMSException {
+
+        Long timeToLive = jmsConfig.getTimeToLive();
+        if (timeToLive != null) {
+            producer.setTimeToLive(timeToLive);
+        }
+
+        Integer priority = jmsConfig.getPriority();
+        if (priority != null) {
+            producer.setPriority(priority);
+        }
+    }
+
+    /**
+     * Create message depending on the object type of the content, with
+     * the message properties.
+     */
+    private Message createMessage(Session session, Item content, JmsMessageProperties msgMetaProps)
+            throws JMSException, XPathException {
+
+        boolean isExistMessageItem = (content instanceof eXistMessageItem);
+        Message message = isExistMessageItem
+                ? createMessageFromExistMessageItem(session, (eXistMessageItem) content, msgMetaProps)
+                : createMessageFromItem(session, content, msgMetaProps, xqcontext);
+
+        // Set Message properties from user provided data
+        setMessagePropertiesFromMap(msgMetaProps, message);
+
+        return message;
+    }
+
+    private void closeConnection(Connection connection) {
+        try {
+            if (connection != null) {
+                // Close connection
+                connection.close();
             }
+        } catch (JMSException ex) {
+            LOG.error(String.format("Problem closing connection, ignored. %s (%s)", ex.getMessage(), ex.getErrorCode()));
         }
     }
 
     /**
      * Get connection factory
      */
-    private ConnectionFactory getConnectionFactoryInstance(javax.naming.Context context, JmsConfiguration jmsConfig) throws NamingException {
+    private ConnectionFactory getConnectionFactoryInstance(JmsConfiguration jmsConfig) throws NamingException {
 
         ConnectionFactory retVal;
  
@@ -208,18 +395,15 @@ public class Sender  {
         String poolValue = jmsConfig.getProperty(EXIST_CONNECTION_POOL);
         if (StringUtils.isNotBlank(poolValue)) {
 
-            // Get URL to broker
-            String providerURL = jmsConfig.getBrokerURL();
-
-            // Get ConnectionFactory
-            retVal = SenderConnectionFactory.getConnectionFactoryInstance(providerURL, poolValue);
+            // Get ConnectionFactory for the identity of the connection
+            retVal = SenderConnectionFactory.getInstance().getConnectionFactory(jmsConfig, poolValue);
 
         } else {
             // Get name of connection factory
             String connectionFactory = jmsConfig.getConnectionFactory();
 
-            // Get connection factory, the context already contains the brokerURL.
-            retVal = (ConnectionFactory) context.lookup(connectionFactory);
+            // Get connection factory, cached by broker URL and name
+            retVal = (ConnectionFactory) JndiLookupCache.getInstance().lookup(jmsConfig, connectionFactory);
         }
 
         return retVal;
@@ -256,35 +440,12 @@ public class Sender  {
                 jmp.setProperty(EXIST_DOCUMENT_MIMETYPE, np.getDoc().getMetadata().getMimeType());
             }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream os = baos;
-
-            // Stream content node to buffer
+            // Stream content node directly into the message
             NodeValue node = (NodeValue) item;
             Serializer serializer = xqcontext.getBroker().newSerializer();
             InputStream is = new NodeInputStream(serializer, node);
 
-            try {
-                if (isCompressed) {
-                    os = new GZIPOutputStream(os);
-                }
-                IOUtils.copy(is, os);
-
-            } catch (IOException ex) {
-                LOG.error(ex);
-                throw new XPathException(ex);
-
-            } finally {
-                IOUtils.closeQuietly(is);
-                IOUtils.closeQuietly(os);
-            }
-
-            // Create actual message, pass data
-            BytesMessage bytesMessage = session.createBytesMessage();
-            bytesMessage.writeBytes(baos.toByteArray());
-
-            // Swap
-            message = bytesMessage;
+            message = createBytesMessage(session, is, isCompressed);
 
 
         } else if (item.getType() == Type.BASE64_BINARY || item.getType() == Type.HEX_BINARY) {
@@ -302,33 +463,11 @@ public class Sender  {
                 
             }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream os = baos;
-
-            // Copy data from item to buffer
+            // Stream data from item directly into the message
             BinaryValue binary = (BinaryValue) item;
             InputStream is = binary.getInputStream();
-            try {
-                if (isCompressed) {
-                    os = new GZIPOutputStream(os);
-                }
-                IOUtils.copy(is, os);
-
-            } catch (IOException ex) {
-                LOG.error(ex);
-                throw new XPathException(ex);
-
-            } finally {
-                IOUtils.closeQuietly(is);
-                IOUtils.closeQuietly(os);
-            }
-
-            // Create actual message, pass data
-            BytesMessage bytesMessage = session.createBytesMessage();
-            bytesMessage.writeBytes(baos.toByteArray());
 
-            // Swap
-            message = bytesMessage;
+            message = createBytesMessage(session, is, isCompressed);
 
         } else if (item.getType() == Type.STRING) {
             // xs:string() is mapped to a TextMessage
@@ -373,6 +512,43 @@ public class Sender  {
         return message;
     }
 
+    /**
+     * Create bytes message, the data is streamed into the message body in
+     * chunks using a pooled buffer and is never held in full by this method.
+     *
+     * @param session The JMS session
+     * @param is The data, the stream is closed
+     * @param isCompressed TRUE when the data must be gzipped
+     * @return JMS message
+     * @throws JMSException When a problem occurs in the JMS domain
+     * @throws XPathException When the data could not be read
+     */
+    private BytesMessage createBytesMessage(Session session, InputStream is, boolean isCompressed) throws JMSException, XPathException {
+
+        BytesMessage bytesMessage = session.createBytesMessage();
+        OutputStream os = new BytesMessageOutputStream(bytesMessage);
+
+        try {
+            if (isCompressed) {
+                os = new GZIPOutputStream(os, BytesMessageOutputStream.BUFFER_SIZE);
+            }
+            IOUtils.copyLarge(is, os, BytesMessageOutputStream.getBuffer());
+
+            // Writes the remaining compressed data
+            os.close();
+
+        } catch (IOException ex) {
+            LOG.error(ex);
+            throw new XPathException(ex);
+
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+
+        return bytesMessage;
+    }
+
     /**
      * Convert replication originated data into a JMS message.
       *
@@ -390,12 +566,22 @@ public class Sender  {
         // Set payload when available
         eXistMessage em = emi.getData();
 
-        byte[] payload = em.getPayload();
-
-        if (payload == null) {
+        if (!em.hasPayload()) {
             LOG.error("No payload for replication");
+
+        } else if (em.isPayloadInMemory()) {
+            message.writeBytes(em.getPayload());
+
         } else {
-            message.writeBytes(payload);
+            // Payload on disk is streamed into the message
+            try (InputStream is = em.getPayloadInputStream()) {
+                IOUtils.copyLarge(is, new BytesMessageOutputStream(message), BytesMessageOutputStream.getBuffer());
+
+            } catch (IOException ex) {
+                JMSException jex = new JMSException(String.format("Unable to read payload: %s", ex.getMessage()));
+                jex.setLinkedException(ex);
+                throw jex;
+            }
         }
 
         em.updateMessageProperties(message);
@@ -455,6 +641,41 @@ public class Sender  {
         }
     }
 
+    /**
+     * Create summary report of a batch.
+     */
+    private NodeImpl createBatchReport(int nrSent, boolean transacted, String firstMessageId, String lastMessageId,
+                                       long duration, JmsConfiguration config) {
+
+        MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        int nodeNr = builder.startElement("", JMS, JMS, null);
+        builder.addAttribute(new QName("count", null, null), "" + nrSent);
+        builder.addAttribute(new QName("transacted", null, null), "" + transacted);
+        builder.addAttribute(new QName("duration", null, null), "" + duration);
+
+        if (firstMessageId != null) {
+            builder.startElement("", JMS_FIRST_MESSAGE_ID, JMS_FIRST_MESSAGE_ID, null);
+            builder.characters(firstMessageId);
+            builder.endElement();
+        }
+
+        if (lastMessageId != null) {
+            builder.startElement("", JMS_LAST_MESSAGE_ID, JMS_LAST_MESSAGE_ID, null);
+            builder.characters(lastMessageId);
+            builder.endElement();
+        }
+
+        builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+        builder.characters(config.getDestination());
+        builder.endElement();
+
+        builder.endElement();
+
+        return ((DocumentImpl) builder.getDocument()).getNode(nodeNr);
+    }
+
     /**
      * Create messaging results report
      */
@@ -19,70 +19,356 @@
  */
 package org.exist.jms.send;
 
-import java.util.HashMap;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.jms.shared.DatabaseShutdown;
+import org.exist.jms.shared.JmsConfiguration;
+
+import static org.exist.jms.shared.ReportHelper.writeValue;
+
 /**
- * Helper class for creating and buffering ConnectionFactory instances.
+ * Registry of pooled connection factories, keyed by the identity of the
+ * connection: pool class, broker URL, user and pool settings. Pools that are
+ * not used for some time are closed, all pools are closed when the database
+ * shuts down.
+ *
+ * Connections are handed out through a wrapper that keeps track of active
+ * connections and of the time needed to get a connection.
  *
  * @author Dannes Wessels
  */
-class SenderConnectionFactory {
+public class SenderConnectionFactory {
 
     private final static Logger LOG = LogManager.getLogger(SenderConnectionFactory.class);
 
-    private static final Map<String, ConnectionFactory> connectionFactories = new HashMap<>();
+    public static final String ACTIVEMQ_POOLED_CONNECTION_FACTORY = "org.apache.activemq.pool.PooledConnectionFactory";
+
+    /*
+     * Pool settings, part of the JMS configuration
+     */
+    public static final String MAX_CONNECTIONS = "exist.connection.pool.max-connections";
+    public static final String MAX_SESSIONS = "exist.connection.pool.max-sessions";
+    public static final String IDLE_TIMEOUT = "exist.connection.pool.idle-timeout";
+    public static final String EVICT_AFTER = "exist.connection.pool.evict-after";
+
+    private static final long DEFAULT_EVICT_AFTER = 30 * 60 * 1000L;
+    private static final long EVICTION_INTERVAL = 60 * 1000L;
+
+    private static SenderConnectionFactory instance = null;
+
+    public static synchronized SenderConnectionFactory getInstance() {
+        if (instance == null) {
+            instance = new SenderConnectionFactory();
+        }
+        return instance;
+    }
+
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "jms-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SenderConnectionFactory() {
+        evictor.scheduleWithFixedDelay(this::evictIdlePools, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        DatabaseShutdown.register("jms-pool-shutdown", SenderConnectionFactory::shutdownInstance);
+    }
+
+    /**
+     * Close all pools and drop the registry, a restarted database gets a new
+     * one.
+     */
+    private static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
 
     /**
-     * Get Connection Factory. Return existing factory or create new one if not existent.
+     * Get pooled connection factory. Return existing pool or create new one
+     * if not existent.
      *
-     * @param brokerURL URL to broker
-     * @return the connection factory
-     * @throws NamingException
+     * @param jmsConfig The JMS configuration, containing the pool settings
+     * @param className Class of the pool; blank, 'yes', 'true' and 'activemq'
+     * select the ActiveMQ pool.
+     * @return the connection factory, NULL when it could not be created.
      */
-    static ConnectionFactory getConnectionFactoryInstance(String brokerURL, String className) {
+    ConnectionFactory getConnectionFactory(JmsConfiguration jmsConfig, String className) {
 
-        // Get CF
-        ConnectionFactory retVal = connectionFactories.get(brokerURL);
+        if (StringUtils.isBlank(className) || "yes".equalsIgnoreCase(className)
+                || "true".equalsIgnoreCase(className) || "activemq".equalsIgnoreCase(className)) {
+            className = ACTIVEMQ_POOLED_CONNECTION_FACTORY;
+        }
 
-        // WHen not available create a new CF
-        if (retVal == null) {
-            try {
-                LOG.info(String.format("Creating new PooledConnectionFactory for %s", brokerURL));
+        String brokerURL = jmsConfig.getBrokerURL();
+        String userName = StringUtils.defaultString(jmsConfig.getConnectionUserName());
 
-                if (StringUtils.isBlank(className) || "yes".equalsIgnoreCase(className)
-                        || "true".equalsIgnoreCase(className) || "activemq".equalsIgnoreCase(className)) {
-                    className = ACTIVEMQ_POOLED_CONNECTION_FACTORY;
-                }
+        Integer maxConnections = getInteger(jmsConfig, MAX_CONNECTIONS);
+        Integer maxSessions = getInteger(jmsConfig, MAX_SESSIONS);
+        Integer idleTimeout = getInteger(jmsConfig, IDLE_TIMEOUT);
+        Integer evictAfter = getInteger(jmsConfig, EVICT_AFTER);
 
-                // Construct and initialize the factory
-                Class<?> clazz = Class.forName(className);
-                Object object = ConstructorUtils.invokeConstructor(clazz, brokerURL);
+        String key = String.format("%s|%s|%s|%s|%s|%s", className, brokerURL, userName, maxConnections, maxSessions, idleTimeout);
+        String poolClassName = className;
 
-                // Convert to class
-                ConnectionFactory cf = (ConnectionFactory) object;
+        Pool pool = pools.computeIfAbsent(key, (k) -> {
+            try {
+                LOG.info(String.format("Creating new %s for %s", poolClassName, brokerURL));
+
+                // Construct and initialize the factory
+                Class<?> clazz = Class.forName(poolClassName);
+                ConnectionFactory cf = (ConnectionFactory) ConstructorUtils.invokeConstructor(clazz, brokerURL);
 
-                // Store newly created factory
-                connectionFactories.put(brokerURL, cf);
+                configure(cf, "setMaxConnections", maxConnections);
+                configure(cf, "setMaximumActiveSessionPerConnection", maxSessions);
+                configure(cf, "setIdleTimeout", idleTimeout);
 
-                // Return to requester
-                retVal =  cf;
+                return new Pool(poolClassName, brokerURL, userName, cf,
+                        (evictAfter == null) ? DEFAULT_EVICT_AFTER : evictAfter);
 
             } catch (Throwable t) {
-                LOG.error(t);
+                LOG.error(String.format("Unable to create %s for %s: %s", poolClassName, brokerURL, t.getMessage()), t);
+                return null;
             }
+        });
 
-        } else {
-            LOG.debug(String.format("Reusing existing connectionFactory for %s", brokerURL));
+        if (pool != null) {
+            pool.touch();
         }
+        return pool;
+    }
 
-        return retVal;
+    private static Integer getInteger(JmsConfiguration jmsConfig, String name) {
+        String value = jmsConfig.getProperty(name);
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.error(String.format("Unable to set %s; got '%s', ignored. %s", name, value, ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Set pool property, when supported by the pool class.
+     */
+    private static void configure(ConnectionFactory cf, String setter, Integer value) {
+        if (value == null) {
+            return;
+        }
+        try {
+            MethodUtils.invokeMethod(cf, setter, value);
+        } catch (NoSuchMethodException ex) {
+            LOG.warn(String.format("%s does not support %s, ignored.", cf.getClass().getName(), setter));
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            LOG.error(String.format("Unable to call %s: %s", setter, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Close pools without active connections that are not used for some
+     * time.
+     */
+    private void evictIdlePools() {
+        long now = System.currentTimeMillis();
+        pools.forEach((key, pool) -> {
+            if (pool.active.get() == 0 && now - pool.lastUsed > pool.evictAfter && pools.remove(key, pool)) {
+                LOG.info(String.format("Closing idle pool for %s", pool.brokerURL));
+                pool.close();
+            }
+        });
     }
-    public static final String ACTIVEMQ_POOLED_CONNECTION_FACTORY = "org.apache.activemq.pool.PooledConnectionFactory";
 
+    /**
+     * Close all pools.
+     */
+    public void shutdown() {
+        LOG.info(String.format("Closing %s connection pool(s)", pools.size()));
+        evictor.shutdownNow();
+        pools.values().forEach(Pool::close);
+        pools.clear();
+    }
+
+    /**
+     * @return Report with the state of all pools.
+     */
+    public NodeImpl getReport() {
+
+        MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        int nodeNr = builder.startElement("", "pools", "pools", null);
+
+        // Sorted, for a stable report
+        Map<String, Pool> sorted = new TreeMap<>(pools);
+        for (Pool pool : sorted.values()) {
+            pool.write(builder);
+        }
+
+        builder.endElement();
+
+        return ((DocumentImpl) builder.getDocument()).getNode(nodeNr);
+    }
+
+    /**
+     * Pooled connection factory with statistics.
+     */
+    private static class Pool implements ConnectionFactory {
+
+        private final String className;
+        private final String brokerURL;
+        private final String userName;
+        private final ConnectionFactory delegate;
+        private final long evictAfter;
+
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong nrConnections = new AtomicLong();
+        private final AtomicLong nrFailed = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private volatile long maxWaitNanos = 0;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Pool(String className, String brokerURL, String userName, ConnectionFactory delegate, long evictAfter) {
+            this.className = className;
+            this.brokerURL = brokerURL;
+            this.userName = userName;
+            this.delegate = delegate;
+            this.evictAfter = evictAfter;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        @Override
+        public Connection createConnection() throws JMSException {
+            return createConnection(null, null);
+        }
+
+        @Override
+        public Connection createConnection(String user, String password) throws JMSException {
+
+            touch();
+            long start = System.nanoTime();
+
+            Connection connection;
+            try {
+                connection = (user == null) ? delegate.createConnection() : delegate.createConnection(user, password);
+            } catch (JMSException | RuntimeException ex) {
+                nrFailed.incrementAndGet();
+                throw ex;
+            }
+
+            long wait = System.nanoTime() - start;
+            totalWaitNanos.addAndGet(wait);
+            if (wait > maxWaitNanos) {
+                maxWaitNanos = wait;
+            }
+            nrConnections.incrementAndGet();
+            active.incrementAndGet();
+
+            return wrap(connection);
+        }
+
+        /**
+         * Wrap connection, closing the connection (once) returns it to the
+         * pool.
+         */
+        private Connection wrap(Connection connection) {
+
+            AtomicBoolean closed = new AtomicBoolean(false);
+
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if ("close".equals(method.getName()) && closed.compareAndSet(false, true)) {
+                            active.decrementAndGet();
+                            touch();
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        }
+                    });
+        }
+
+        /**
+         * @return Number of connections held by the pool, NULL when not
+         * available.
+         */
+        private Integer getPooledConnections() {
+            try {
+                Object value = MethodUtils.invokeMethod(delegate, "getNumConnections");
+                return (value instanceof Number) ? ((Number) value).intValue() : null;
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+                return null;
+            }
+        }
+
+        void close() {
+            try {
+                MethodUtils.invokeMethod(delegate, "stop");
+            } catch (NoSuchMethodException ex) {
+                LOG.debug(String.format("%s can not be stopped.", className));
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                LOG.error(String.format("Problem closing pool for %s, ignored. %s", brokerURL, ex.getMessage()));
+            }
+        }
+
+        void write(MemTreeBuilder builder) {
+
+            int nrActive = active.get();
+            Integer pooled = getPooledConnections();
+            long count = nrConnections.get();
+
+            builder.startElement("", "pool", "pool", null);
+            builder.addAttribute(new QName("class", null, null), className);
+            builder.addAttribute(new QName("url", null, null), brokerURL);
+            if (StringUtils.isNotEmpty(userName)) {
+                builder.addAttribute(new QName("user", null, null), userName);
+            }
+
+            writeValue(builder, "active", nrActive);
+            if (pooled != null) {
+                writeValue(builder, "pooled", pooled);
+                writeValue(builder, "idle", Math.max(0, pooled - nrActive));
+            }
+            writeValue(builder, "nrConnections", count);
+            writeValue(builder, "nrFailed", nrFailed.get());
+            writeValue(builder, "averageWait", (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count));
+            writeValue(builder, "maxWait", TimeUnit.NANOSECONDS.toMicros(maxWaitNanos));
+            writeValue(builder, "idleTime", System.currentTimeMillis() - lastUsed);
+
+            builder.endElement();
+        }
+    }
 }
@@ -49,6 +49,18 @@ public class Constants {
      * eXist-db JMS instance id
      */
     public static final String EXIST_INSTANCE_ID = "exist.instance-id";
+    /*
+     * Sequence number of the message, per instance and destination
+     */
+    public static final String EXIST_SEQUENCE = "exist.sequence";
+    /*
+     * Hybrid logical clock timestamp of the change
+     */
+    public static final String EXIST_HLC = "exist.hlc";
+    /*
+     * Handle of an asynchronous send
+     */
+    public static final String EXIST_SEND_ID = "exist.send-id";
     /*
      * JMS reporting
      */
@@ -56,6 +68,8 @@ public class Constants {
     public static final String JMS_CORRELATION_ID = "jms.correlation-id";
     public static final String JMS_EXPIRATION = "jms.expiration";
     public static final String JMS_MESSAGE_ID = "jms.message-id";
+    public static final String JMS_FIRST_MESSAGE_ID = "jms.first-message-id";
+    public static final String JMS_LAST_MESSAGE_ID = "jms.last-message-id";
     public static final String JMS_PRIORITY = "jms.priority";
     public static final String JMS_TIMESTAMP = "jms.timestamp";
     public static final String JMS_TYPE = "jms.type";
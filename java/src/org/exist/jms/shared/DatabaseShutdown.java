@@ -0,0 +1,63 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+
+/**
+ * Runs cleanup actions when the database shuts down, so resources do not
+ * outlive a database that is restarted within the same JVM.
+ *
+ * @author Dannes Wessels
+ */
+public class DatabaseShutdown {
+
+    private final static Logger LOG = LogManager.getLogger(DatabaseShutdown.class);
+
+    private DatabaseShutdown() {
+        // Utility class
+    }
+
+    /**
+     * Register action that is run when the database shuts down. When there
+     * is no database (yet), the action is run when the JVM shuts down.
+     *
+     * @param name Name of the action, used for logging
+     * @param action The action
+     */
+    public static void register(final String name, final Runnable action) {
+
+        try {
+            BrokerPool.getInstance().registerShutdownListener((dbName, remainingInstances) -> {
+                LOG.debug(String.format("Database %s shuts down, running %s", dbName, name));
+                action.run();
+            });
+
+        } catch (EXistException ex) {
+            LOG.warn(String.format("Database is not available, %s runs when the JVM shuts down. %s", name, ex.getMessage()));
+            Runtime.getRuntime().addShutdownHook(new Thread(action, name));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hybrid logical clock of this instance. A timestamp is one long: the
+ * physical time in milliseconds (upper 48 bits) and a logical counter (lower
+ * 16 bits). Timestamps are strictly increasing and, because received
+ * timestamps are merged, a change is always newer than every change that
+ * was applied before it, also when the system clocks differ.
+ *
+ * @author Dannes Wessels
+ */
+public class HybridLogicalClock {
+
+    private final static Logger LOG = LogManager.getLogger(HybridLogicalClock.class);
+
+    private static final int LOGICAL_BITS = 16;
+
+    /**
+     * Remote clocks that are further ahead are reported.
+     */
+    private static final long MAX_DRIFT = 60 * 1000L;
+
+    private static final HybridLogicalClock INSTANCE = new HybridLogicalClock();
+
+    public static HybridLogicalClock getInstance() {
+        return INSTANCE;
+    }
+
+    private long last = 0;
+
+    private HybridLogicalClock() {
+        // Singleton
+    }
+
+    /**
+     * @return New timestamp, larger than all previous and merged timestamps.
+     */
+    public synchronized long now() {
+        long physical = System.currentTimeMillis() << LOGICAL_BITS;
+        last = (physical > last) ? physical : last + 1;
+        return last;
+    }
+
+    /**
+     * Merge timestamp of received message.
+     *
+     * @param remote The timestamp
+     */
+    public synchronized void update(long remote) {
+        if (getPhysicalTime(remote) - System.currentTimeMillis() > MAX_DRIFT) {
+            LOG.warn(String.format("Received timestamp %s is more than %s ms ahead of the local clock.", toString(remote), MAX_DRIFT));
+        }
+        last = Math.max(last, remote);
+    }
+
+    /**
+     * @param timestamp The timestamp
+     * @return Physical time in milliseconds
+     */
+    public static long getPhysicalTime(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * @param timestamp The timestamp
+     * @return Readable representation: physical time and logical counter
+     */
+    public static String toString(long timestamp) {
+        return String.format("%s.%s", getPhysicalTime(timestamp), timestamp & ((1 << LOGICAL_BITS) - 1));
+    }
+}
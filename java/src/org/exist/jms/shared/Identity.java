@@ -63,6 +63,13 @@ public class Identity {
         return identity;
     }
 
+    /**
+     * @return Location of the identity file, NULL when unknown
+     */
+    public Path getIdentityFile(){
+        return identityFile;
+    }
+
     /**
      * Find identity file
      */
@@ -105,6 +105,25 @@ public class JmsConfiguration extends MessagingConfiguration {
         setLocalProperty(Constants.JMS_CONNECTION_PASSWORD, params.getConnectionPassword());
     }
 
+    /**
+     * Load subscriber parameters for the receiver of a lane: the destination
+     * of the lane and, as each lane has its own connection and durable
+     * subscription, client id and subscriber name suffixed with the lane.
+     *
+     * @param params The subscriber parameters
+     * @param lane Name of the lane
+     * @param destination Destination of the lane
+     */
+    public void loadSubscriberLane(SubscriberParameters params, String lane, String destination) {
+        loadSubscriberParameters(params);
+
+        setLocalProperty(Constants.DESTINATION, destination);
+        setLocalProperty(Constants.SUBSCRIBER_NAME, params.getSubscriberName() + "-" + lane);
+        if (params.getClientId() != null) {
+            setLocalProperty(Constants.CLIENT_ID, params.getClientId() + "-" + lane);
+        }
+    }
+
     private void setLocalProperty(String key, String value) {
         if (StringUtils.isNotBlank(key) && value != null) {
             setProperty(key, value);
@@ -0,0 +1,228 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache of JNDI initial contexts and lookups (connection factories,
+ * destinations), keyed by initial context factory, provider URL and name.
+ * Entries expire after a time-to-live; the cached context and its entries
+ * are removed when a lookup or the use of a looked-up object fails.
+ *
+ * @author Dannes Wessels
+ */
+public class JndiLookupCache {
+
+    private final static Logger LOG = LogManager.getLogger(JndiLookupCache.class);
+
+    /**
+     * Time-to-live of a lookup in milliseconds, 0 disables the cache.
+     */
+    public static final String CACHE_TTL = "exist.jndi.cache-ttl";
+
+    private static final long DEFAULT_TTL = 5 * 60 * 1000L;
+
+    private static final JndiLookupCache INSTANCE = new JndiLookupCache();
+
+    public static JndiLookupCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Looked-up object with expiry time.
+     */
+    private static class Entry {
+
+        private final Object value;
+        private final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong nrHits = new AtomicLong();
+    private final AtomicLong nrMisses = new AtomicLong();
+
+    private JndiLookupCache() {
+        // Singleton
+    }
+
+    /**
+     * Lookup object for JMS configuration.
+     *
+     * @param jmsConfig The JMS configuration; initial context factory,
+     * provider URL and time-to-live of the cache
+     * @param name The name of the object
+     * @return The object
+     * @throws NamingException The object could not be found.
+     */
+    public Object lookup(JmsConfiguration jmsConfig, String name) throws NamingException {
+        return lookup(jmsConfig.getInitialContextFactory(), jmsConfig.getBrokerURL(), name, getTimeToLive(jmsConfig));
+    }
+
+    /**
+     * Lookup object, the cached object is returned when available.
+     *
+     * @param initialContextFactory Class name of initial context factory
+     * @param providerURL The provider URL
+     * @param name The name of the object
+     * @param timeToLive Time-to-live of the cached object in milliseconds,
+     * 0 to always lookup
+     * @return The object
+     * @throws NamingException The object could not be found.
+     */
+    public Object lookup(String initialContextFactory, String providerURL, String name, long timeToLive) throws NamingException {
+
+        String contextKey = initialContextFactory + "|" + providerURL;
+        String key = contextKey + "|" + name;
+
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires > now) {
+            nrHits.incrementAndGet();
+            return entry.value;
+        }
+        nrMisses.incrementAndGet();
+
+        // A context that is not cached is closed after the lookup
+        Context context = contexts.get(contextKey);
+        boolean isCached = (context != null);
+        if (context == null) {
+            Properties props = new Properties();
+            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
+            props.setProperty(Context.PROVIDER_URL, providerURL);
+            context = new InitialContext(props);
+
+            if (timeToLive > 0) {
+                Context existing = contexts.putIfAbsent(contextKey, context);
+                if (existing != null) {
+                    close(context);
+                    context = existing;
+                }
+                isCached = true;
+            }
+        }
+
+        try {
+            Object value;
+            synchronized (context) {
+                value = context.lookup(name);
+            }
+
+            if (timeToLive > 0) {
+                entries.put(key, new Entry(value, now + timeToLive));
+            }
+            return value;
+
+        } catch (NamingException ex) {
+            invalidate(initialContextFactory, providerURL);
+            throw ex;
+
+        } finally {
+            if (!isCached) {
+                close(context);
+            }
+        }
+    }
+
+    /**
+     * Remove context and all lookups of the JMS configuration, to be called
+     * when an object that was looked up fails.
+     *
+     * @param jmsConfig The JMS configuration
+     */
+    public void invalidate(JmsConfiguration jmsConfig) {
+        invalidate(jmsConfig.getInitialContextFactory(), jmsConfig.getBrokerURL());
+    }
+
+    /**
+     * Remove context and all lookups of the initial context factory and
+     * provider URL.
+     *
+     * @param initialContextFactory Class name of initial context factory
+     * @param providerURL The provider URL
+     */
+    public void invalidate(String initialContextFactory, String providerURL) {
+
+        String contextKey = initialContextFactory + "|" + providerURL;
+
+        entries.keySet().removeIf((key) -> key.startsWith(contextKey + "|"));
+
+        Context context = contexts.remove(contextKey);
+        if (context != null) {
+            LOG.debug(String.format("Invalidated JNDI lookups of %s", providerURL));
+            close(context);
+        }
+    }
+
+    private static long getTimeToLive(JmsConfiguration jmsConfig) {
+        String value = jmsConfig.getProperty(CACHE_TTL);
+        if (StringUtils.isBlank(value)) {
+            return DEFAULT_TTL;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.error(String.format("Unable to set %s; got '%s', using %s. %s", CACHE_TTL, value, DEFAULT_TTL, ex.getMessage()));
+            return DEFAULT_TTL;
+        }
+    }
+
+    private static void close(Context context) {
+        try {
+            context.close();
+        } catch (NamingException ex) {
+            LOG.debug(ex.getMessage());
+        }
+    }
+
+    /**
+     * @return Number of lookups served from the cache
+     */
+    public long getHits() {
+        return nrHits.get();
+    }
+
+    /**
+     * @return Number of lookups that needed JNDI
+     */
+    public long getMisses() {
+        return nrMisses.get();
+    }
+}
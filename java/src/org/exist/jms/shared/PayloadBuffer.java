@@ -0,0 +1,248 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Output stream for message payloads. Data is kept in memory until the
+ * threshold is exceeded, then everything is written to a temporary file. Heap
+ * usage is therefore limited to the threshold, independent of the size of
+ * the payload.
+ *
+ * The temporary file is deleted by {@link #release()}.
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadBuffer extends OutputStream {
+
+    private final static Logger LOG = LogManager.getLogger(PayloadBuffer.class);
+
+    /**
+     * Default size of in-memory data, 1MB
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private static final String TEMP_PREFIX = "exist-jms-payload";
+
+    private final int threshold;
+
+    private byte[] data = new byte[1024];
+    private long length = 0;
+
+    private Path file = null;
+    private OutputStream fileStream = null;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor, using default threshold.
+     */
+    public PayloadBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threshold Maximum number of bytes kept in memory
+     */
+    public PayloadBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Create closed buffer for existing file, the file is deleted by
+     * {@link #release()}.
+     *
+     * @param file File containing the data
+     * @return The buffer
+     * @throws IOException The size of the file could not be determined.
+     */
+    public static PayloadBuffer wrap(Path file) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(0);
+        buffer.file = file;
+        buffer.length = Files.size(file);
+        buffer.data = null;
+        buffer.closed = true;
+        return buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (closed) {
+            throw new IOException("Buffer is closed.");
+        }
+
+        if (fileStream == null && length + len > threshold) {
+            spill();
+        }
+
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+
+        } else {
+            int required = (int) length + len;
+            if (required > data.length) {
+                data = Arrays.copyOf(data, Math.min(threshold, Math.max(required, data.length * 2)));
+            }
+            System.arraycopy(b, off, data, (int) length, len);
+        }
+
+        length += len;
+    }
+
+    /**
+     * Move data from memory to temporary file.
+     */
+    private void spill() throws IOException {
+        file = Files.createTempFile(TEMP_PREFIX, ".tmp");
+        fileStream = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+        fileStream.write(data, 0, (int) length);
+        data = null;
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Payload exceeds %s bytes, writing to %s", threshold, file));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    /**
+     * Finish writing, the data can be read afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (fileStream != null) {
+                fileStream.close();
+            }
+        }
+    }
+
+    /**
+     * @return Number of bytes written.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return TRUE when the data is stored in a temporary file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Get stream to read the data, can be called multiple times.
+     *
+     * @return Stream to read the data
+     * @throws IOException The buffer is not closed or the data is released.
+     */
+    public InputStream getInputStream() throws IOException {
+
+        if (!closed) {
+            throw new IOException("Buffer is not closed.");
+        }
+
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+
+        if (data == null) {
+            throw new IOException("Buffer is released.");
+        }
+
+        return new ByteArrayInputStream(data, 0, (int) length);
+    }
+
+    /**
+     * Get data as byte array. Only to be used for small payloads.
+     *
+     * @return The data
+     * @throws IOException The data could not be read.
+     */
+    public byte[] toByteArray() throws IOException {
+
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException(String.format("Payload is too large for byte array (%s bytes)", length));
+        }
+
+        byte[] result = new byte[(int) length];
+        try (InputStream is = getInputStream()) {
+            int pos = 0;
+            while (pos < result.length) {
+                int read = is.read(result, pos, result.length - pos);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of payload.");
+                }
+                pos += read;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Delete temporary file and release memory.
+     */
+    public void release() {
+
+        try {
+            close();
+        } catch (IOException ex) {
+            LOG.debug(ex.getMessage());
+        }
+
+        data = null;
+
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to delete %s: %s", file, ex.getMessage()));
+            }
+        }
+    }
+}
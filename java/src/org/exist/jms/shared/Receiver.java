@@ -19,19 +19,16 @@
  */
 package org.exist.jms.shared;
 
-import java.util.Properties;
-
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
 import javax.jms.Topic;
 
 import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -77,13 +74,24 @@ public class Receiver {
      * 
      */
     private final JmsConfiguration jmsConfig;
-    private Context initialContext = null;
     private ConnectionFactory connectionFactory = null;
     private Session session = null;
     private Destination destination = null;
     private MessageConsumer messageConsumer = null;
     private Connection connection = null;
 
+    /**
+     * Set while the thread for a listener with a receive timeout is
+     * receiving messages.
+     */
+    private volatile boolean receiving = false;
+
+    /**
+     * Delays between attempts to reconnect the receiving thread.
+     */
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 60000;
+
     private int id = 0;
     private static volatile int lastId = 0;
 
@@ -167,14 +175,8 @@ public class Receiver {
         jmsConfig.validate();
 
         try {
-            // Setup Context
-            Properties props = new Properties();
-            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, jmsConfig.getInitialContextFactory());
-            props.setProperty(Context.PROVIDER_URL, jmsConfig.getBrokerURL());
-            initialContext = new InitialContext(props);
-
-            // Setup connection
-            connectionFactory = (ConnectionFactory) initialContext.lookup(jmsConfig.getConnectionFactory());
+            // Setup connection, the JNDI lookup is cached
+            connectionFactory = (ConnectionFactory) JndiLookupCache.getInstance().lookup(jmsConfig, jmsConfig.getConnectionFactory());
 
             // Setup username/password when required
             String userName = jmsConfig.getConnectionUserName();
@@ -198,7 +200,7 @@ public class Receiver {
             session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
 
             // Setup destination
-            destination = (Destination) initialContext.lookup(jmsConfig.getDestination());
+            destination = (Destination) JndiLookupCache.getInstance().lookup(jmsConfig, jmsConfig.getDestination());
 
             // Setup consumer with message selector
             String messageSelector = jmsConfig.getMessageSelector();
@@ -219,7 +221,17 @@ public class Receiver {
             
             // Register listener
             messageListener.setSession(session);
-            messageConsumer.setMessageListener(messageListener);
+            if (messageListener.getReceiveTimeout() > 0) {
+                // Messages are received and handled by one thread, which
+                // also gives the listener control when no message arrives
+                receiving = true;
+                Thread receiveThread = new Thread(this::receive, "jms-receive-" + id);
+                receiveThread.setDaemon(true);
+                receiveThread.start();
+
+            } else {
+                messageConsumer.setMessageListener(messageListener);
+            }
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug(String.format("JMS connection is initialized: %s=%s %s",
@@ -234,8 +246,12 @@ public class Receiver {
 
         } catch (Throwable t) {
             state = STATE.ERROR;
+            receiving = false;
             
-            closeAllSilently(initialContext, connection, session);
+            closeAllSilently(connection, session);
+
+            // Cached lookups may be outdated
+            JndiLookupCache.getInstance().invalidate(jmsConfig);
             
             LOG.error(t.getMessage(), t);
             LOG.debug("" + jmsConfig.toString());
@@ -284,7 +300,7 @@ public class Receiver {
      *
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      */
-    public void close() throws XPathException {
+    public synchronized void close() throws XPathException {
 
         if (connection == null) {
             String txt = "JMS connection must be initialized first";
@@ -313,6 +329,7 @@ public class Receiver {
             }
 
             // Start listener
+            receiving = false;
             connection.close();
 
             // Report with client ID when available
@@ -332,6 +349,89 @@ public class Receiver {
         }
     }
 
+    /**
+     * Receive messages for the listener until the connection is closed.
+     * When receiving fails the connection is replaced.
+     */
+    private void receive() {
+
+        MessageConsumer consumer = messageConsumer;
+        while (receiving) {
+            try {
+                Message msg = consumer.receive(Math.max(1, messageListener.getReceiveTimeout()));
+                if (msg != null) {
+                    messageListener.onMessage(msg);
+
+                } else if (receiving) {
+                    messageListener.onIdle();
+                }
+
+            } catch (JMSException ex) {
+                if (receiving) {
+                    // Reported as the listener reports errors of the connection
+                    messageListener.onException(ex);
+                    reconnect(consumer);
+                }
+                return;
+
+            } catch (RuntimeException ex) {
+                // Reported by the listener
+                LOG.debug(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replace the connection of a receiving thread that failed, with an
+     * increasing delay between attempts. A new thread is started when the
+     * connection is initialized again; stops when the receiver is closed.
+     *
+     * @param consumer The consumer of the failed thread
+     */
+    private void reconnect(MessageConsumer consumer) {
+
+        long delay = MIN_RECONNECT_DELAY;
+        while (true) {
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            synchronized (this) {
+                // Closed, or replaced already
+                if (!receiving || consumer != messageConsumer) {
+                    return;
+                }
+
+                state = STATE.ERROR;
+                closeAllSilently(connection, session);
+
+                try {
+                    initialize();
+                    start();
+                    LOG.info(String.format("Receiver %s is reconnected.", id));
+                    return;
+
+                } catch (XPathException ex) {
+                    LOG.error(String.format("Receiver %s could not reconnect, retry in %s ms: %s",
+                            id, Math.min(delay * 2, MAX_RECONNECT_DELAY), ex.getMessage()));
+
+                    // A thread started by the failed attempt stops when its
+                    // consumer is closed, it is not the current one
+                    closeAllSilently(connection, session);
+                    messageConsumer = null;
+                    consumer = null;
+                    receiving = true;
+                }
+            }
+
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
     /**
      * @return Get report about Receiver and Listener
      */
@@ -456,7 +556,7 @@ public class Receiver {
     /**
      * Helper method to give resources back
      */
-    private void closeAllSilently(Context context, Connection connection, Session session) {
+    private void closeAllSilently(Connection connection, Session session) {
 
         boolean doLog = LOG.isDebugEnabled();
 
@@ -483,17 +583,5 @@ public class Receiver {
                 LOG.error(ex.getMessage());
             }
         }
-
-        if (context != null) {
-            if (doLog) {
-                LOG.debug("Closing context");
-            }
-
-            try {
-                context.close();
-            } catch (NamingException ex) {
-                LOG.error(ex.getMessage());
-            }
-        }
     }
 }
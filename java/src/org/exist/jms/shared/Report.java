@@ -57,7 +57,7 @@ public class Report {
     /**
      * Increase the nr of total received messages
      */
-    public void incMessageCounterTotal() {
+    public synchronized void incMessageCounterTotal() {
         messageCounterTotal++;
     }
 
@@ -78,7 +78,7 @@ public class Report {
     /**
      * Increase the number of correctly processed messages
      */
-    public void incMessageCounterOK() {
+    public synchronized void incMessageCounterOK() {
         messageCounterOK++;
     }
 
@@ -107,7 +107,7 @@ public class Report {
      *
      * @param error The Listener error
      */
-    public void addListenerError(Throwable error) {
+    public synchronized void addListenerError(Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.LISTENER));
     }
 
@@ -116,7 +116,7 @@ public class Report {
      *
      * @param error The Receiver error
      */
-    public void addReceiverError(Throwable error) {
+    public synchronized void addReceiverError(Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.RECEIVER));
     }
 
@@ -125,14 +125,14 @@ public class Report {
      *
      * @param error The connection error
      */
-    public void addConnectionError(Throwable error) {
+    public synchronized void addConnectionError(Throwable error) {
         errors.add(new ReportItem(error, CONTEXT.CONNECTION));
     }
 
     /**
      * @return List tests of all problems
      */
-    public List<String> getErrorMessages() {
+    public synchronized List<String> getErrorMessages() {
         List<String> errorMessages = new ArrayList<>();
         errors.stream().forEach((t) -> {
             errorMessages.add(t.getMessage());
@@ -168,7 +168,7 @@ public class Report {
      *
      * @param builder The builder to create the XML report.
      */
-    public void write(MemTreeBuilder builder) {
+    public synchronized void write(MemTreeBuilder builder) {
 
         builder.startElement("", "errorMessages", "errorMessages", null);
 
@@ -0,0 +1,49 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+/**
+ * Helper methods for creating XML reports.
+ *
+ * @author Dannes Wessels
+ */
+public class ReportHelper {
+
+    private ReportHelper() {
+        // Utility class
+    }
+
+    /**
+     * Write element with text value.
+     *
+     * @param builder The builder of the report
+     * @param name Name of the element
+     * @param value The value
+     */
+    public static void writeValue(MemTreeBuilder builder, String name, Object value) {
+        builder.startElement("", name, name, null);
+        builder.characters("" + value);
+        builder.endElement();
+    }
+}
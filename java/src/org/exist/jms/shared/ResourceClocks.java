@@ -0,0 +1,376 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Timestamp ({@link HybridLogicalClock}) and origin of the last change per
+ * resource path, for last-writer-wins conflict resolution. Both local changes
+ * (by the publisher) and applied remote changes are registered; deletes are
+ * kept as well, so an older update cannot bring a document back.
+ *
+ * The map is stored in the file 'jms.hlc' next to the identity file, as a
+ * log of changes that is rewritten when it contains too many outdated
+ * records. The log is flushed once per second. The largest timestamp is
+ * kept as well; it seeds the {@link HybridLogicalClock} at startup, so local
+ * changes are newer than all stored changes, also when the system clock is
+ * set back.
+ *
+ * Entries older than {@link #RETENTION} are dropped when the log is
+ * rewritten, and the map is limited to {@link #MAX_ENTRIES} entries, oldest
+ * first; a change of a resource that is not known is always applied.
+ *
+ * @author Dannes Wessels
+ */
+public class ResourceClocks {
+
+    private final static Logger LOG = LogManager.getLogger(ResourceClocks.class);
+
+    private static final String CLOCKS_FILE = "jms.hlc";
+
+    /**
+     * Record with the largest timestamp, not a resource.
+     */
+    private static final String MAX_RECORD = "";
+
+    /**
+     * Changes older than 7 days are not expected to arrive anymore.
+     */
+    static final long RETENTION = 7 * 24 * 60 * 60 * 1000L;
+
+    static final int MAX_ENTRIES = 1000000;
+
+    private static final long FLUSH_INTERVAL = 1000L;
+
+    private static ResourceClocks instance = null;
+
+    public static synchronized ResourceClocks getInstance() {
+        if (instance == null) {
+            Path identityFile = Identity.getInstance().getIdentityFile();
+            if (identityFile == null) {
+                LOG.error("Location of identity file is unknown, timestamps of resources are not persistent.");
+            }
+            instance = new ResourceClocks(identityFile == null ? null : identityFile.resolveSibling(CLOCKS_FILE));
+        }
+        return instance;
+    }
+
+    /**
+     * Last change of a resource.
+     */
+    private static class Entry {
+
+        private final long timestamp;
+        private final String origin;
+
+        Entry(long timestamp, String origin) {
+            this.timestamp = timestamp;
+            this.origin = origin;
+        }
+
+        /**
+         * Equal timestamps are ordered by origin, so all instances make the
+         * same decision.
+         */
+        boolean isOlderThan(long otherTimestamp, String otherOrigin) {
+            if (timestamp != otherTimestamp) {
+                return timestamp < otherTimestamp;
+            }
+            return origin.compareTo(otherOrigin) < 0;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, String> origins = new HashMap<>();
+
+    private final Path file;
+    private DataOutputStream log = null;
+    private long nrRecords = 0;
+    private boolean dirty = false;
+
+    private long maxTimestamp = 0;
+
+    /**
+     * Constructor
+     *
+     * @param file Log of the timestamps, NULL when not persistent
+     */
+    ResourceClocks(Path file) {
+        this.file = file;
+
+        if (file != null) {
+            try {
+                load();
+                rewrite();
+                LOG.debug(String.format("Read timestamps of %s resources from %s, last timestamp %s", entries.size(), file,
+                        HybridLogicalClock.toString(maxTimestamp)));
+
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to use %s, timestamps of resources are not persistent. %s", file, ex.getMessage()));
+                log = null;
+            }
+        }
+
+        // Local changes are newer than the stored changes
+        HybridLogicalClock.getInstance().update(maxTimestamp);
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "jms-hlc-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get paths of the resources that are changed by an operation.
+     *
+     * @param operation The operation
+     * @param path Path of the resource
+     * @param destinationPath Path of the destination of a move or copy
+     * @return The changed paths
+     */
+    public static List<String> getChangedPaths(eXistMessage.ResourceOperation operation, String path, String destinationPath) {
+
+        if (operation == eXistMessage.ResourceOperation.MOVE && destinationPath != null) {
+            return Arrays.asList(path, destinationPath);
+
+        } else if (operation == eXistMessage.ResourceOperation.COPY && destinationPath != null) {
+            return Collections.singletonList(destinationPath);
+
+        } else {
+            return Collections.singletonList(path);
+        }
+    }
+
+    private String intern(String origin) {
+        return origins.computeIfAbsent(origin, (o) -> o);
+    }
+
+    /**
+     * Check if a change is newer than the last change of the resource.
+     *
+     * @param path Path of the resource
+     * @param timestamp Timestamp of the change
+     * @param origin Instance id of the origin of the change
+     * @return TRUE when the resource is not known or the change is newer.
+     */
+    public synchronized boolean isNewer(String path, long timestamp, String origin) {
+        Entry entry = entries.get(path);
+        return entry == null || entry.isOlderThan(timestamp, origin);
+    }
+
+    /**
+     * Check if a change is newer than the last changes of all resources.
+     *
+     * @param paths Paths of the resources
+     * @param timestamp Timestamp of the change
+     * @param origin Instance id of the origin of the change
+     * @return TRUE when the change is newer for all resources.
+     */
+    public synchronized boolean isNewer(List<String> paths, long timestamp, String origin) {
+        for (String path : paths) {
+            if (!isNewer(path, timestamp, origin)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Register change of resources.
+     *
+     * @param paths Paths of the resources
+     * @param timestamp Timestamp of the change
+     * @param origin Instance id of the origin of the change
+     */
+    public synchronized void update(List<String> paths, long timestamp, String origin) {
+        for (String path : paths) {
+            update(path, timestamp, origin);
+        }
+    }
+
+    /**
+     * Register change when it is newer than the last change of the resource.
+     *
+     * @param path Path of the resource
+     * @param timestamp Timestamp of the change
+     * @param origin Instance id of the origin of the change
+     */
+    public synchronized void update(String path, long timestamp, String origin) {
+
+        if (!isNewer(path, timestamp, origin)) {
+            return;
+        }
+
+        entries.put(path, new Entry(timestamp, intern(origin)));
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+
+        if (log != null) {
+            try {
+                writeRecord(log, path, timestamp, origin);
+                nrRecords++;
+                dirty = true;
+
+                if (nrRecords > 2 * entries.size() + 10000 || entries.size() > MAX_ENTRIES) {
+                    rewrite();
+                }
+
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to write %s, timestamps of resources are not persistent anymore. %s", file, ex.getMessage()));
+                closeLog();
+            }
+        }
+    }
+
+    /**
+     * Write buffered records to the file.
+     */
+    synchronized void flush() {
+        if (log != null && dirty) {
+            try {
+                log.flush();
+                dirty = false;
+
+            } catch (IOException ex) {
+                LOG.error(String.format("Unable to write %s, timestamps of resources are not persistent anymore. %s", file, ex.getMessage()));
+                closeLog();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                String path;
+                long timestamp;
+                String origin;
+                try {
+                    path = dis.readUTF();
+                    timestamp = dis.readLong();
+                    origin = dis.readUTF();
+                } catch (EOFException ex) {
+                    // End of log, or a record that was not written completely
+                    break;
+                }
+
+                maxTimestamp = Math.max(maxTimestamp, timestamp);
+                if (MAX_RECORD.equals(path)) {
+                    continue;
+                }
+
+                Entry entry = entries.get(path);
+                if (entry == null || entry.isOlderThan(timestamp, origin)) {
+                    entries.put(path, new Entry(timestamp, intern(origin)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write current entries to a new log, replacing the existing log. Old
+     * entries are dropped.
+     */
+    private void rewrite() throws IOException {
+
+        closeLog();
+        prune();
+
+        Path tmp = file.resolveSibling(CLOCKS_FILE + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            writeRecord(dos, MAX_RECORD, maxTimestamp, MAX_RECORD);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(dos, entry.getKey(), entry.getValue().timestamp, entry.getValue().origin);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        nrRecords = entries.size() + 1;
+        dirty = false;
+
+        log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * Drop entries older than the retention period; when there are still too
+     * many entries, the oldest are dropped until 90% of the maximum is left.
+     */
+    private void prune() {
+
+        int before = entries.size();
+
+        long cutoff = System.currentTimeMillis() - RETENTION;
+        entries.values().removeIf((entry) -> HybridLogicalClock.getPhysicalTime(entry.timestamp) < cutoff);
+
+        if (entries.size() > MAX_ENTRIES) {
+            long[] timestamps = entries.values().stream().mapToLong((entry) -> entry.timestamp).sorted().toArray();
+            long limit = timestamps[entries.size() - MAX_ENTRIES * 9 / 10];
+            entries.values().removeIf((entry) -> entry.timestamp < limit);
+        }
+
+        if (entries.size() < before) {
+            LOG.info(String.format("Dropped timestamps of %s resources", before - entries.size()));
+        }
+    }
+
+    private static void writeRecord(DataOutputStream dos, String path, long timestamp, String origin) throws IOException {
+        dos.writeUTF(path);
+        dos.writeLong(timestamp);
+        dos.writeUTF(origin);
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException ex) {
+                LOG.debug(ex.getMessage());
+            }
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent, monotonically increasing sequence numbers of this instance,
+ * one sequence per stream (destination). The counters are stored in the
+ * file 'jms.sequence' next to the identity file.
+ *
+ * The file is memory mapped, every increment is written to the page cache
+ * without a system call and therefore survives a restart or crash of the
+ * JVM. After a crash of the operating system the counter can go back; the
+ * subscribers report the repeated numbers as duplicates.
+ *
+ * @author Dannes Wessels
+ */
+public class SequenceCounter {
+
+    private final static Logger LOG = LogManager.getLogger(SequenceCounter.class);
+
+    private static final String SEQUENCE_FILE = "jms.sequence";
+
+    /**
+     * Slot: length of name (int), name (UTF-8) and counter (long).
+     */
+    private static final int SLOT_SIZE = 256;
+    private static final int MAX_NAME_LENGTH = SLOT_SIZE - 4 - 8;
+    private static final int NR_SLOTS = 256;
+
+    private static SequenceCounter instance = null;
+
+    public static synchronized SequenceCounter getInstance() {
+        if (instance == null) {
+            instance = new SequenceCounter();
+        }
+        return instance;
+    }
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Map<String, Long> counters = new HashMap<>();
+
+    private MappedByteBuffer buffer = null;
+    private int nrSlots = 0;
+
+    private SequenceCounter() {
+
+        Path identityFile = Identity.getInstance().getIdentityFile();
+        if (identityFile == null) {
+            LOG.error("Location of identity file is unknown, sequence numbers are not persistent.");
+            return;
+        }
+
+        Path file = identityFile.resolveSibling(SEQUENCE_FILE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOT_SIZE * NR_SLOTS);
+            load();
+
+            LOG.debug(String.format("Read %s sequence(s) from %s", nrSlots, file));
+
+        } catch (IOException ex) {
+            LOG.error(String.format("Unable to open %s, sequence numbers are not persistent. %s", file, ex.getMessage()));
+            buffer = null;
+        }
+    }
+
+    private void load() {
+        for (int slot = 0; slot < NR_SLOTS; slot++) {
+            int position = slot * SLOT_SIZE;
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > MAX_NAME_LENGTH) {
+                break;
+            }
+
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = buffer.get(position + 4 + i);
+            }
+
+            String stream = new String(name, StandardCharsets.UTF_8);
+            slots.put(stream, slot);
+            counters.put(stream, buffer.getLong(position + SLOT_SIZE - 8));
+            nrSlots = slot + 1;
+        }
+    }
+
+    /**
+     * Get next sequence number of stream.
+     *
+     * @param stream Name of the stream, e.g. the destination
+     * @return The sequence number, the first number is 1.
+     */
+    public synchronized long next(String stream) {
+
+        long value = counters.getOrDefault(stream, 0L) + 1;
+        counters.put(stream, value);
+
+        if (buffer != null) {
+            Integer slot = slots.get(stream);
+            if (slot == null) {
+                slot = allocate(stream);
+            }
+            if (slot != null) {
+                buffer.putLong(slot * SLOT_SIZE + SLOT_SIZE - 8, value);
+            }
+        }
+
+        return value;
+    }
+
+    private Integer allocate(String stream) {
+
+        byte[] name = stream.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH || nrSlots >= NR_SLOTS) {
+            LOG.error(String.format("Unable to store sequence of '%s', the sequence is not persistent.", stream));
+            return null;
+        }
+
+        int slot = nrSlots++;
+        int position = slot * SLOT_SIZE;
+        for (int i = 0; i < name.length; i++) {
+            buffer.put(position + 4 + i, name[i]);
+        }
+        buffer.putLong(position + SLOT_SIZE - 8, 0);
+
+        // Length is written last, it marks the slot as used
+        buffer.putInt(position, name.length);
+
+        slots.put(stream, slot);
+        return slot;
+    }
+}
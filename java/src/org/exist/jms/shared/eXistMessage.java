@@ -21,6 +21,9 @@
  */
 package org.exist.jms.shared;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -63,14 +66,17 @@ public class eXistMessage {
     private String path;
     private String destination;
     private byte[] payload;
+    private PayloadBuffer payloadBuffer;
+    private Runnable releaseListener;
     
     private Map<String, Object> metaData = new HashMap<>();
 
     /**
-     * Atomic operations on resources
+     * Atomic operations on resources; DELTA is an update that carries only
+     * the changed part of an XML document.
      */
     public enum ResourceOperation {
-        CREATE, UPDATE, DELETE, MOVE, COPY, METADATA, UNDEFINED
+        CREATE, UPDATE, DELETE, MOVE, COPY, METADATA, DELTA, UNDEFINED
     }
 
     /**
@@ -139,18 +145,104 @@ public class eXistMessage {
         return destination;
     }
 
+    /**
+     * Get payload as byte array; a buffered payload is read into memory.
+     *
+     * @return The payload, NULL when not available
+     */
     public byte[] getPayload() {
+        if (payload == null && payloadBuffer != null) {
+            try {
+                return payloadBuffer.toByteArray();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        }
         return payload;
     }
 
     public void setPayload(byte[] data) {
+        releasePayload();
         payload = data;
     }
+
+    /**
+     * Set payload, the data is streamed from the (closed) buffer when sent.
+     *
+     * @param buffer The buffer containing the payload
+     */
+    public void setPayload(PayloadBuffer buffer) {
+        releasePayload();
+        payloadBuffer = buffer;
+    }
+
+    public boolean hasPayload() {
+        return payload != null || payloadBuffer != null;
+    }
+
+    /**
+     * @return Size of payload in bytes, 0 when not available.
+     */
+    public long getPayloadLength() {
+        if (payloadBuffer != null) {
+            return payloadBuffer.length();
+        }
+        return payload == null ? 0 : payload.length;
+    }
+
+    /**
+     * Get stream to read the payload, without reading it into memory.
+     *
+     * @return Stream to read the payload, NULL when not available
+     * @throws IOException The stream could not be opened.
+     */
+    public InputStream getPayloadInputStream() throws IOException {
+        if (payloadBuffer != null) {
+            return payloadBuffer.getInputStream();
+        }
+        return payload == null ? null : new ByteArrayInputStream(payload);
+    }
     
     public void resetPayload(){
+        releasePayload();
         payload = new byte[0];
     }
 
+    /**
+     * Release the payload, temporary files are deleted. To be called when
+     * the message is not needed anymore.
+     */
+    public void releasePayload() {
+        if (payloadBuffer != null) {
+            payloadBuffer.release();
+            payloadBuffer = null;
+        }
+        payload = null;
+
+        Runnable listener = releaseListener;
+        releaseListener = null;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Set action that is run once, when the payload is released.
+     *
+     * @param listener The action, NULL to remove
+     */
+    public void setReleaseListener(Runnable listener) {
+        releaseListener = listener;
+    }
+
+    /**
+     * @return TRUE when the payload is kept in memory, FALSE when there is no
+     * payload or it is stored in a temporary file.
+     */
+    public boolean isPayloadInMemory() {
+        return payload != null || (payloadBuffer != null && !payloadBuffer.isSpilled());
+    }
+
     public void setMetadata(Map<String, Object> props) {
         metaData = props;
     }
@@ -184,8 +276,8 @@ public class eXistMessage {
             sb.append("DestinationPath='").append(resourceType.toString()).append("'  ");
         }
         
-        if(payload!=null && payload.length>0){
-            sb.append("PayloadSize='").append(payload.length).append("'  ");
+        if(getPayloadLength()>0){
+            sb.append("PayloadSize='").append(getPayloadLength()).append("'  ");
         }
         
         // Iterate over properties if present
@@ -85,6 +85,26 @@ public abstract class eXistMessagingListener implements MessageListener, Excepti
     }
 
 
+    /**
+     * Get the time to wait for a message before {@link #onIdle()} is
+     * called. When larger than 0, the receiver receives the messages with
+     * one thread and passes them to {@link #onMessage(javax.jms.Message)},
+     * so the listener can act on the session when no message arrives.
+     *
+     * @return Time in milliseconds, 0 when the session delivers the messages.
+     */
+    public long getReceiveTimeout() {
+        return 0;
+    }
+
+    /**
+     * Called by the receiving thread when no message arrived within the
+     * receive timeout.
+     */
+    public void onIdle() {
+        // Nothing to do
+    }
+
     @Override
     public void onException(JMSException jmse) {
 
@@ -22,6 +22,7 @@ package org.exist.jms.xquery;
 import java.util.List;
 import java.util.Map;
 import org.exist.dom.QName;
+import org.exist.jms.xquery.management.ListConnectionPools;
 import org.exist.jms.xquery.management.ListReceivers;
 import org.exist.jms.xquery.management.ManageReceivers;
 import org.exist.xquery.AbstractInternalModule;
@@ -47,6 +48,8 @@ public class JmsModule extends AbstractInternalModule {
         new FunctionDef(ManageReceivers.signatures[1], ManageReceivers.class),
         new FunctionDef(ManageReceivers.signatures[2], ManageReceivers.class),
         new FunctionDef(ManageReceivers.signatures[3], ManageReceivers.class),
+
+        new FunctionDef(ListConnectionPools.signatures[0], ListConnectionPools.class),
     };
     
     public final static QName EXCEPTION_QNAME =
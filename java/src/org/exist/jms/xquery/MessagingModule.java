@@ -19,6 +19,8 @@
  */
 package org.exist.jms.xquery;
 
+import org.exist.jms.xquery.messaging.SendAsync;
+import org.exist.jms.xquery.messaging.SendBatch;
 import org.exist.jms.xquery.messaging.SendMessage;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +45,11 @@ public class MessagingModule extends AbstractInternalModule {
     public final static FunctionDef[] functions = {
         new FunctionDef(RegisterReceiver.signatures[0], RegisterReceiver.class),
         new FunctionDef(SendMessage.signatures[0], SendMessage.class),
+        new FunctionDef(SendBatch.signatures[0], SendBatch.class),
+        new FunctionDef(SendBatch.signatures[1], SendBatch.class),
+        new FunctionDef(SendAsync.signatures[0], SendAsync.class),
+        new FunctionDef(SendAsync.signatures[1], SendAsync.class),
+        new FunctionDef(SendAsync.signatures[2], SendAsync.class),
     };
     
     public final static QName EXCEPTION_QNAME =
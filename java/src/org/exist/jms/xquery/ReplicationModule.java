@@ -20,6 +20,8 @@
 package org.exist.jms.xquery;
 
 
+import org.exist.jms.xquery.replication.ListPublishers;
+import org.exist.jms.xquery.replication.ListSequences;
 import org.exist.jms.xquery.replication.RegisterReceiver;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +44,8 @@ public class ReplicationModule extends AbstractInternalModule {
     
     public final static FunctionDef[] functions = {
         new FunctionDef(RegisterReceiver.signatures[0], RegisterReceiver.class),
+        new FunctionDef(ListPublishers.signatures[0], ListPublishers.class),
+        new FunctionDef(ListSequences.signatures[0], ListSequences.class),
     };
     
     public final static QName EXCEPTION_QNAME =
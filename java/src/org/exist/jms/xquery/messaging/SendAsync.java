@@ -0,0 +1,188 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.messaging;
+
+import java.util.Optional;
+
+import org.exist.dom.QName;
+import org.exist.jms.send.AsyncSender;
+import org.exist.jms.send.Sender;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.jms.xquery.MessagingModule;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+/**
+ *  Implementation of the messaging:send-async() and messaging:async-report()
+ *  functions.
+ *
+ * @author Dannes Wessels
+ */
+public class SendAsync extends BasicFunction {
+
+    public static final String SEND_ASYNC = "send-async";
+    public static final String ASYNC_REPORT = "async-report";
+
+    public final static FunctionSignature signatures[] = {
+
+        new FunctionSignature(
+            new QName(SEND_ASYNC, MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+            "Send JMS message without waiting for the broker. An error is raised when too many sends are pending.",
+            new SequenceType[]{
+            new FunctionParameterSequenceType("content", Type.ITEM, Cardinality.ONE, "Send message to remote server"),
+            new FunctionParameterSequenceType("jmsMessageProperties", Type.MAP, Cardinality.ZERO_OR_ONE, "Application-defined property values"),
+            new FunctionParameterSequenceType("jmsConfiguration", Type.MAP, Cardinality.ONE, "JMS configuration settings")
+            },
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "Handle of the send, set as message property '" + Constants.EXIST_SEND_ID + "'")
+        ),
+
+        new FunctionSignature(
+            new QName(SEND_ASYNC, MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+            "Send JMS message without waiting for the broker, the function is called when the send is completed. An error is raised when too many sends are pending.",
+            new SequenceType[]{
+            new FunctionParameterSequenceType("content", Type.ITEM, Cardinality.ONE, "Send message to remote server"),
+            new FunctionParameterSequenceType("jmsMessageProperties", Type.MAP, Cardinality.ZERO_OR_ONE, "Application-defined property values"),
+            new FunctionParameterSequenceType("jmsConfiguration", Type.MAP, Cardinality.ONE, "JMS configuration settings"),
+            new FunctionParameterSequenceType("callback", Type.FUNCTION_REFERENCE, Cardinality.ZERO_OR_ONE,
+                    "Function with parameters: handle (xs:string), message id (xs:string?) and error (xs:string?)")
+            },
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "Handle of the send, set as message property '" + Constants.EXIST_SEND_ID + "'")
+        ),
+
+        new FunctionSignature(
+            new QName(ASYNC_REPORT, MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+            "Get statistics of asynchronous sends.",
+            new SequenceType[]{
+            },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "Submitted, completed, failed, pending and rejected sends")
+        ),
+
+    };
+
+    public SendAsync(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            XPathException ex = new XPathException(this, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        if (isCalledAs(ASYNC_REPORT)) {
+            return AsyncSender.getInstance().getReport();
+        }
+
+        // Get content
+        Item content = args[0].itemAt(0);
+
+        // Get application properties
+        JmsMessageProperties messageProperties = new JmsMessageProperties();
+        if (!args[1].isEmpty()) {
+            AbstractMapType msgPropertiesMap = (AbstractMapType) args[1].itemAt(0);
+            messageProperties.loadConfiguration(msgPropertiesMap);
+        }
+
+        // Get JMS configuration
+        AbstractMapType jmsConfigurationMap = (AbstractMapType) args[2].itemAt(0);
+        JmsConfiguration jmsConfiguration = new JmsConfiguration();
+        jmsConfiguration.loadConfiguration(jmsConfigurationMap);
+
+        // Get callback function
+        AsyncSender.Completion completion = null;
+        if (args.length > 3 && !args[3].isEmpty()) {
+            FunctionReference reference = (FunctionReference) args[3].itemAt(0);
+            completion = new Callback(context.getSubject(), reference, context.copyContext());
+        }
+
+        try {
+            // Send message and return handle
+            Sender sender = new Sender(context);
+            return new StringValue(sender.sendAsync(jmsConfiguration, messageProperties, content, completion));
+
+        } catch (XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (Throwable t) {
+            LOG.error(t.getMessage());
+            XPathException ex = new XPathException(this, t);
+            throw ex;
+        }
+    }
+
+    /**
+     * Calls the XQuery callback function when a send is completed, as the
+     * user that started the send.
+     */
+    private static class Callback implements AsyncSender.Completion {
+
+        private final Subject subject;
+        private final FunctionReference functionReference;
+        private final XQueryContext xqueryContext;
+
+        Callback(Subject subject, FunctionReference functionReference, XQueryContext xqueryContext) {
+            this.subject = subject;
+            this.functionReference = functionReference;
+            this.xqueryContext = xqueryContext;
+        }
+
+        @Override
+        public void completed(String handle, String messageId, Throwable error) {
+
+            try {
+                BrokerPool brokerPool = BrokerPool.getInstance();
+
+                try (DBBroker broker = brokerPool.get(Optional.of(subject))) {
+
+                    functionReference.setContext(xqueryContext.copyContext());
+
+                    Sequence params[] = new Sequence[3];
+                    params[0] = new StringValue(handle);
+                    params[1] = (messageId == null) ? Sequence.EMPTY_SEQUENCE : new StringValue(messageId);
+                    params[2] = (error == null) ? Sequence.EMPTY_SEQUENCE
+                            : new StringValue(error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage());
+
+                    functionReference.evalFunction(null, null, params);
+                }
+
+            } catch (Throwable t) {
+                LOG.error(String.format("Unable to call callback function of send %s: %s", handle, t.getMessage()), t);
+            }
+        }
+    }
+}
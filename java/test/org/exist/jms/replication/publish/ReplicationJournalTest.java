@@ -0,0 +1,221 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.publish;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Write, replay and recovery of the {@link ReplicationJournal}.
+ *
+ * @author Dannes Wessels
+ */
+public class ReplicationJournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int THRESHOLD = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static eXistMessage createMessage(String path, long sequence, byte[] payload) {
+        eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UPDATE);
+        em.setResourcePath(path);
+        em.getMetadata().put(Constants.EXIST_SEQUENCE, sequence);
+        if (payload != null) {
+            em.setPayload(payload);
+        }
+        return em;
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private ReplicationJournal open(Path directory) throws IOException {
+        return new ReplicationJournal(directory, SEGMENT_SIZE, true, THRESHOLD, "test-flusher");
+    }
+
+    private static void assertMessage(eXistMessage expected, eXistMessage actual) {
+        assertEquals(expected.getResourceType(), actual.getResourceType());
+        assertEquals(expected.getResourceOperation(), actual.getResourceOperation());
+        assertEquals(expected.getResourcePath(), actual.getResourcePath());
+        assertEquals(expected.getMetadata().get(Constants.EXIST_SEQUENCE), actual.getMetadata().get(Constants.EXIST_SEQUENCE));
+        assertArrayEquals(expected.getPayload(), actual.getPayload());
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        ReplicationJournal journal = open(directory);
+        try {
+            eXistMessage small = createMessage("/db/a.xml", 1L, "<a/>".getBytes(StandardCharsets.UTF_8));
+            eXistMessage large = createMessage("/db/b.bin", 2L, content(3 * THRESHOLD, 7));
+            eXistMessage empty = createMessage("/db/c.xml", 3L, null);
+            journal.append(Arrays.asList(small, large, empty));
+
+            assertFalse(journal.isEmpty());
+            assertMessage(small, journal.next(0));
+            assertMessage(large, journal.next(0));
+
+            eXistMessage read = journal.next(0);
+            assertMessage(empty, read);
+            assertFalse(read.hasPayload());
+
+            assertNull(journal.next(0));
+
+            journal.acknowledge();
+            assertTrue(journal.isEmpty());
+
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void rewindReadsUnacknowledgedAgain() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        ReplicationJournal journal = open(directory);
+        try {
+            eXistMessage first = createMessage("/db/a.xml", 1L, content(100, 1));
+            eXistMessage second = createMessage("/db/b.xml", 2L, content(100, 2));
+            journal.append(first);
+            journal.append(second);
+
+            assertMessage(first, journal.next(0));
+            journal.acknowledge();
+            assertMessage(second, journal.next(0));
+
+            // Sending failed
+            journal.rewind();
+            assertMessage(second, journal.next(0));
+            assertNull(journal.next(0));
+
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void replayAfterRestart() throws IOException {
+        Path directory = folder.newFolder().toPath();
+
+        // Records span several segments
+        eXistMessage[] messages = new eXistMessage[20];
+        ReplicationJournal journal = open(directory);
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = createMessage("/db/doc" + i + ".xml", i + 1L, content(1000, i));
+                journal.append(messages[i]);
+            }
+
+            for (int i = 0; i < 5; i++) {
+                assertMessage(messages[i], journal.next(0));
+            }
+            journal.acknowledge();
+            journal.checkpoint();
+
+            // Read, but not acknowledged before the restart
+            assertMessage(messages[5], journal.next(0));
+
+        } finally {
+            journal.close();
+        }
+
+        journal = open(directory);
+        try {
+            for (int i = 5; i < messages.length; i++) {
+                assertMessage(messages[i], journal.next(0));
+            }
+            assertNull(journal.next(0));
+
+            // Appending continues after the replayed records
+            eXistMessage next = createMessage("/db/next.xml", 21L, content(10, 21));
+            journal.append(next);
+            assertMessage(next, journal.next(0));
+
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void corruptRecordIsTruncated() throws IOException {
+        Path directory = folder.newFolder().toPath();
+
+        eXistMessage first = createMessage("/db/a.xml", 1L, content(200, 1));
+        eXistMessage second = createMessage("/db/b.xml", 2L, content(200, 2));
+
+        ReplicationJournal journal = open(directory);
+        try {
+            journal.append(first);
+            journal.append(second);
+        } finally {
+            journal.close();
+        }
+
+        // Damage the payload of the second record: [length][crc32][header][payload length][payload]
+        int firstLength = ReplicationJournal.encodeHeader(first).length + 4 + 200;
+        int secondPayload = 8 + firstLength + 8 + ReplicationJournal.encodeHeader(second).length + 4;
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("segment-%016d.journal", 0)), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff}), secondPayload + 10);
+        }
+
+        journal = open(directory);
+        try {
+            assertMessage(first, journal.next(0));
+            assertNull(journal.next(0));
+
+            // The damaged record is overwritten
+            eXistMessage third = createMessage("/db/c.xml", 3L, content(200, 3));
+            journal.append(third);
+            assertMessage(third, journal.next(0));
+
+        } finally {
+            journal.close();
+        }
+    }
+}
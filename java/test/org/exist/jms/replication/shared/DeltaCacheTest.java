@@ -0,0 +1,197 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Deltas of the {@link DeltaCache}: a delta computed by the publisher must
+ * reproduce the new version from the previous version on the subscriber.
+ *
+ * @author Dannes Wessels
+ */
+public class DeltaCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Compute delta as the publisher does and apply it as the subscriber does.
+     */
+    private void assertRoundTrip(String base, String target) throws IOException {
+        Path baseFile = write(base);
+        Path targetFile = write(target);
+
+        DeltaCache.Delta delta = DeltaCache.compare(baseFile, targetFile);
+        assertTrue(delta.getPrefix() + delta.getSuffix() <= Math.min(base.length(), target.length()));
+
+        ByteArrayOutputStream replacement = new ByteArrayOutputStream();
+        DeltaCache.writeReplacement(targetFile, delta, replacement);
+        assertEquals(delta.getReplacementLength(), replacement.size());
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DeltaCache.apply(baseFile, delta.getPrefix(), delta.getSuffix(),
+                new ByteArrayInputStream(replacement.toByteArray()), result);
+        assertEquals(target, new String(result.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        String doc = "<doc><title>Delta</title><para>one</para><para>two</para></doc>";
+
+        assertRoundTrip(doc, doc);
+        assertRoundTrip(doc, doc.replace("one", "uno"));
+        assertRoundTrip(doc, doc.replace("<para>two</para>", ""));
+        assertRoundTrip(doc, doc.replace("</doc>", "<para>three</para></doc>"));
+        assertRoundTrip(doc, "<?xml version=\"1.0\"?>" + doc);
+        assertRoundTrip(doc, "<other/>");
+        assertRoundTrip("", doc);
+        assertRoundTrip(doc, "");
+    }
+
+    @Test
+    public void repeatedContentDoesNotOverlap() throws IOException {
+        assertRoundTrip("aaaa", "aaaaaa");
+        assertRoundTrip("aaaaaa", "aaaa");
+        assertRoundTrip("abab", "ababab");
+    }
+
+    @Test
+    public void largeDocument() throws IOException {
+        StringBuilder sb = new StringBuilder("<doc>");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<item n=\"").append(i).append("\"/>");
+        }
+        String base = sb.append("</doc>").toString();
+
+        assertRoundTrip(base, base.replace("<item n=\"10000\"/>", "<item n=\"10000\" changed=\"true\"/>"));
+        assertRoundTrip(base, base.replace("<item n=\"1\"/>", "").replace("<item n=\"19999\"/>", ""));
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaDoesNotFitBase() throws IOException {
+        Path base = write("<doc/>");
+        DeltaCache.apply(base, 4, 4, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void hashOfStreamAndFile() throws IOException {
+        byte[] content = "<doc/>".getBytes(StandardCharsets.UTF_8);
+
+        DigestOutputStream dos = DeltaCache.createDigestStream(new ByteArrayOutputStream());
+        dos.write(content);
+        dos.close();
+
+        Path file = folder.newFile().toPath();
+        Files.write(file, content);
+
+        assertEquals(DeltaCache.toHash(dos.getMessageDigest()), DeltaCache.hash(file));
+    }
+
+    private void put(DeltaCache cache, String path, String content) throws IOException {
+        Path file = cache.createTempFile();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        cache.put(path, file, DeltaCache.hash(file), 0);
+    }
+
+    @Test
+    public void cacheSharesFilesOfEqualContent() throws IOException {
+        DeltaCache cache = new DeltaCache(folder.newFolder().toPath(), 10);
+
+        put(cache, "/db/a.xml", "<same/>");
+        put(cache, "/db/b.xml", "<same/>");
+        Path shared = cache.get("/db/a.xml").getFile();
+        assertEquals(shared, cache.get("/db/b.xml").getFile());
+
+        cache.remove("/db/a.xml");
+        assertNull(cache.get("/db/a.xml"));
+        assertTrue(Files.exists(shared));
+
+        cache.remove("/db/b.xml");
+        assertFalse(Files.exists(shared));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsRemoved() throws IOException {
+        DeltaCache cache = new DeltaCache(folder.newFolder().toPath(), 2);
+
+        put(cache, "/db/a.xml", "<a/>");
+        put(cache, "/db/b.xml", "<b/>");
+        Path fileB = cache.get("/db/b.xml").getFile();
+
+        // Use a, so b is the least recently used entry
+        assertNotNull(cache.get("/db/a.xml"));
+        put(cache, "/db/c.xml", "<c/>");
+
+        assertNull(cache.get("/db/b.xml"));
+        assertFalse(Files.exists(fileB));
+        assertNotNull(cache.get("/db/a.xml"));
+        assertNotNull(cache.get("/db/c.xml"));
+    }
+
+    @Test
+    public void removeCollection() throws IOException {
+        DeltaCache cache = new DeltaCache(folder.newFolder().toPath(), 10);
+
+        put(cache, "/db/col/a.xml", "<a/>");
+        put(cache, "/db/col/sub/b.xml", "<b/>");
+        put(cache, "/db/col2/c.xml", "<c/>");
+
+        cache.removeCollection("/db/col");
+        assertNull(cache.get("/db/col/a.xml"));
+        assertNull(cache.get("/db/col/sub/b.xml"));
+        assertNotNull(cache.get("/db/col2/c.xml"));
+    }
+
+    @Test
+    public void clearedWhenOpened() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        DeltaCache cache = new DeltaCache(directory, 10);
+        put(cache, "/db/a.xml", "<a/>");
+        Path file = cache.get("/db/a.xml").getFile();
+
+        new DeltaCache(directory, 10);
+        assertFalse(Files.exists(file));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.eXistMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reassembly of chunked transfers by the {@link ChunkAssembler}, the
+ * messages are created as the publisher sends them.
+ *
+ * @author Dannes Wessels
+ */
+public class ChunkAssemblerTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path spool;
+    private ChunkAssembler assembler;
+
+    private final String transferId = UUID.randomUUID().toString();
+    private final byte[] data = content(10 * CHUNK_SIZE + 500);
+
+    @Before
+    public void setUp() throws IOException {
+        spool = folder.newFolder().toPath();
+        assembler = new ChunkAssembler(spool);
+    }
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static long checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    private int count() {
+        return (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private eXistMessage message(String type) {
+        eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(eXistMessage.ResourceOperation.CREATE);
+        em.setResourcePath("/db/large.bin");
+        em.getMetadata().put("exist.test", "value");
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_TYPE, type);
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_TRANSFER_ID, transferId);
+        return em;
+    }
+
+    private eXistMessage header() {
+        eXistMessage em = message(MessageHelper.CHUNK_TYPE_HEADER);
+        Map<String, Object> metadata = em.getMetadata();
+        metadata.put(MessageHelper.EXIST_CHUNK_COUNT, count());
+        metadata.put(MessageHelper.EXIST_CHUNK_SIZE, CHUNK_SIZE);
+        metadata.put(MessageHelper.EXIST_CHUNK_LENGTH, (long) data.length);
+        metadata.put(MessageHelper.EXIST_CHUNK_CHECKSUM, checksum(data, 0, data.length));
+        return em;
+    }
+
+    private eXistMessage chunk(int sequence) {
+        int offset = sequence * CHUNK_SIZE;
+        int length = Math.min(CHUNK_SIZE, data.length - offset);
+
+        eXistMessage em = message(MessageHelper.CHUNK_TYPE_CHUNK);
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_SEQUENCE, sequence);
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_CHECKSUM, checksum(data, offset, length));
+        em.setPayload(Arrays.copyOfRange(data, offset, offset + length));
+        return em;
+    }
+
+    private eXistMessage complete() {
+        return message(MessageHelper.CHUNK_TYPE_COMPLETE);
+    }
+
+    private long nrSpoolFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spool)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void reassembleOutOfOrder() throws IOException {
+        assertNull(assembler.process(header()));
+        for (int i = count() - 1; i >= 0; i--) {
+            assertNull(assembler.process(chunk(i)));
+        }
+
+        eXistMessage em = assembler.process(complete());
+        assertNotNull(em);
+        assertEquals("/db/large.bin", em.getResourcePath());
+        assertEquals(eXistMessage.ResourceOperation.CREATE, em.getResourceOperation());
+        assertEquals("value", em.getMetadata().get("exist.test"));
+        assertEquals(data.length, em.getPayloadLength());
+        assertArrayEquals(data, em.getPayload());
+
+        // Only the data file is left, it is removed with the payload
+        em.releasePayload();
+        assertEquals(0, nrSpoolFiles());
+    }
+
+    @Test
+    public void resumeIncompleteTransfer() {
+        assertNull(assembler.process(header()));
+        for (int i = 0; i < count() / 2; i++) {
+            assertNull(assembler.process(chunk(i)));
+        }
+
+        // Chunks are missing, the received chunks are kept
+        assertNull(assembler.process(complete()));
+
+        // Transfer is sent again, received chunks are skipped
+        assertNull(assembler.process(header()));
+        for (int i = 0; i < count(); i++) {
+            assertNull(assembler.process(chunk(i)));
+        }
+
+        eXistMessage em = assembler.process(complete());
+        assertNotNull(em);
+        assertArrayEquals(data, em.getPayload());
+        em.releasePayload();
+    }
+
+    @Test
+    public void chunkWithoutHeaderIsIgnored() {
+        assertNull(assembler.process(chunk(0)));
+        assertNull(assembler.process(complete()));
+    }
+
+    @Test(expected = MessageReceiveException.class)
+    public void corruptChunk() {
+        assembler.process(header());
+
+        eXistMessage em = chunk(0);
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_CHECKSUM, 0L);
+        assembler.process(em);
+    }
+
+    @Test(expected = MessageReceiveException.class)
+    public void chunkOutOfRange() {
+        assembler.process(header());
+
+        eXistMessage em = chunk(0);
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_SEQUENCE, count());
+        assembler.process(em);
+    }
+
+    @Test(expected = MessageReceiveException.class)
+    public void invalidTransferId() {
+        eXistMessage em = header();
+        em.getMetadata().put(MessageHelper.EXIST_CHUNK_TRANSFER_ID, "../../etc/passwd");
+        assembler.process(em);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering of {@link HybridLogicalClock} timestamps.
+ *
+ * @author Dannes Wessels
+ */
+public class HybridLogicalClockTest {
+
+    private final HybridLogicalClock clock = HybridLogicalClock.getInstance();
+
+    @Test
+    public void timestampsAreStrictlyIncreasing() {
+        long last = clock.now();
+        for (int i = 0; i < 100000; i++) {
+            long next = clock.now();
+            assertTrue(next > last);
+            last = next;
+        }
+    }
+
+    @Test
+    public void physicalTime() {
+        long before = System.currentTimeMillis();
+        long physical = HybridLogicalClock.getPhysicalTime(clock.now());
+        long after = System.currentTimeMillis();
+
+        // The clock may be ahead by merged timestamps, not behind
+        assertTrue(physical >= before);
+        assertTrue(physical - after < 60 * 1000L);
+    }
+
+    @Test
+    public void mergedTimestampIsOlderThanNewChanges() {
+        long remote = (System.currentTimeMillis() + 10 * 1000L) << 16;
+        clock.update(remote + 5);
+        assertTrue(clock.now() > remote + 5);
+    }
+
+    @Test
+    public void olderTimestampDoesNotSetClockBack() {
+        long now = clock.now();
+        clock.update(now - (1000L << 16));
+        assertTrue(clock.now() > now);
+    }
+
+    @Test
+    public void readableTimestamp() {
+        long timestamp = (1234567L << 16) + 3;
+        assertEquals(1234567L, HybridLogicalClock.getPhysicalTime(timestamp));
+        assertEquals("1234567.3", HybridLogicalClock.toString(timestamp));
+    }
+}
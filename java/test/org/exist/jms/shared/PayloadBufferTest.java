@@ -0,0 +1,125 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * In-memory and spilled payloads of {@link PayloadBuffer}.
+ *
+ * @author Dannes Wessels
+ */
+public class PayloadBufferTest {
+
+    private static final int THRESHOLD = 1000;
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static PayloadBuffer fill(byte[] data, int blockSize) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        for (int offset = 0; offset < data.length; offset += blockSize) {
+            buffer.write(data, offset, Math.min(blockSize, data.length - offset));
+        }
+        buffer.close();
+        return buffer;
+    }
+
+    @Test
+    public void smallPayloadStaysInMemory() throws IOException {
+        byte[] data = content(THRESHOLD);
+        PayloadBuffer buffer = fill(data, 100);
+
+        assertFalse(buffer.isSpilled());
+        assertEquals(data.length, buffer.length());
+        assertArrayEquals(data, buffer.toByteArray());
+        buffer.release();
+    }
+
+    @Test
+    public void largePayloadIsSpilled() throws IOException {
+        byte[] data = content(10 * THRESHOLD + 1);
+        PayloadBuffer buffer = fill(data, 333);
+
+        assertTrue(buffer.isSpilled());
+        assertEquals(data.length, buffer.length());
+
+        // Can be read more than once
+        for (int i = 0; i < 2; i++) {
+            try (InputStream is = buffer.getInputStream()) {
+                assertArrayEquals(data, IOUtils.toByteArray(is));
+            }
+        }
+        buffer.release();
+    }
+
+    @Test
+    public void releaseDeletesFile() throws IOException {
+        Path file = Files.createTempFile("payload-test", ".tmp");
+        Files.write(file, content(100));
+
+        PayloadBuffer buffer = PayloadBuffer.wrap(file);
+        assertEquals(100, buffer.length());
+        assertArrayEquals(content(100), buffer.toByteArray());
+
+        buffer.release();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void readBeforeClose() throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        buffer.write(content(10));
+        buffer.getInputStream();
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer(THRESHOLD);
+        buffer.close();
+        buffer.write(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void readAfterRelease() throws IOException {
+        PayloadBuffer buffer = fill(content(10), 10);
+        buffer.release();
+        buffer.getInputStream();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.jms.shared;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Last-writer-wins decisions and persistence of {@link ResourceClocks}.
+ *
+ * @author Dannes Wessels
+ */
+public class ResourceClocksTest {
+
+    private static final String DOC = "/db/test/doc.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long timestamp(long millis) {
+        return millis << 16;
+    }
+
+    private Path file() throws IOException {
+        return folder.newFolder().toPath().resolve("jms.hlc");
+    }
+
+    @Test
+    public void newerChangeWins() {
+        ResourceClocks clocks = new ResourceClocks(null);
+        long now = HybridLogicalClock.getInstance().now();
+
+        assertTrue(clocks.isNewer(DOC, now, "a"));
+
+        clocks.update(DOC, now, "a");
+        assertFalse(clocks.isNewer(DOC, now - 1, "a"));
+        assertTrue(clocks.isNewer(DOC, now + 1, "a"));
+
+        // An older change does not replace the entry
+        clocks.update(DOC, now - 1, "b");
+        assertFalse(clocks.isNewer(DOC, now, "a"));
+    }
+
+    @Test
+    public void equalTimestampsAreOrderedByOrigin() {
+        ResourceClocks clocks = new ResourceClocks(null);
+        long now = HybridLogicalClock.getInstance().now();
+
+        clocks.update(DOC, now, "b");
+        assertFalse(clocks.isNewer(DOC, now, "a"));
+        assertFalse(clocks.isNewer(DOC, now, "b"));
+        assertTrue(clocks.isNewer(DOC, now, "c"));
+    }
+
+    @Test
+    public void changeMustBeNewerForAllPaths() {
+        ResourceClocks clocks = new ResourceClocks(null);
+        long now = HybridLogicalClock.getInstance().now();
+
+        clocks.update("/db/b.xml", now, "a");
+        assertFalse(clocks.isNewer(Arrays.asList("/db/a.xml", "/db/b.xml"), now - 1, "a"));
+        assertTrue(clocks.isNewer(Arrays.asList("/db/a.xml", "/db/b.xml"), now + 1, "a"));
+    }
+
+    @Test
+    public void changedPaths() {
+        assertEquals(Arrays.asList("/db/a.xml", "/db/b.xml"),
+                ResourceClocks.getChangedPaths(eXistMessage.ResourceOperation.MOVE, "/db/a.xml", "/db/b.xml"));
+        assertEquals(Collections.singletonList("/db/b.xml"),
+                ResourceClocks.getChangedPaths(eXistMessage.ResourceOperation.COPY, "/db/a.xml", "/db/b.xml"));
+        assertEquals(Collections.singletonList("/db/a.xml"),
+                ResourceClocks.getChangedPaths(eXistMessage.ResourceOperation.DELETE, "/db/a.xml", null));
+    }
+
+    @Test
+    public void timestampsArePersistent() throws IOException {
+        Path file = file();
+        long now = HybridLogicalClock.getInstance().now();
+
+        ResourceClocks clocks = new ResourceClocks(file);
+        clocks.update(DOC, now, "a");
+        clocks.update(DOC, now + 1, "a");
+        clocks.flush();
+
+        ResourceClocks reopened = new ResourceClocks(file);
+        assertFalse(reopened.isNewer(DOC, now, "a"));
+        assertFalse(reopened.isNewer(DOC, now + 1, "a"));
+        assertTrue(reopened.isNewer(DOC, now + 2, "a"));
+    }
+
+    @Test
+    public void storedTimestampSeedsClock() throws IOException {
+        Path file = file();
+
+        // A change stored before the system clock was set back
+        long ahead = timestamp(System.currentTimeMillis() + 30 * 1000L);
+
+        ResourceClocks clocks = new ResourceClocks(file);
+        clocks.update(DOC, ahead, "a");
+        clocks.flush();
+
+        new ResourceClocks(file);
+        assertTrue(HybridLogicalClock.getInstance().now() > ahead);
+    }
+
+    @Test
+    public void oldTimestampsAreDropped() throws IOException {
+        Path file = file();
+        long old = timestamp(System.currentTimeMillis() - ResourceClocks.RETENTION - 60 * 1000L);
+
+        ResourceClocks clocks = new ResourceClocks(file);
+        clocks.update(DOC, old, "a");
+        assertFalse(clocks.isNewer(DOC, old - 1, "a"));
+        clocks.flush();
+
+        // Dropped when the log is rewritten at startup
+        ResourceClocks reopened = new ResourceClocks(file);
+        assertTrue(reopened.isNewer(DOC, old - 1, "a"));
+    }
+}